@@ -0,0 +1,31 @@
+package no.difi.statistics.ingest.client;
+
+import java.time.Instant;
+
+public class AccessToken {
+
+    private final String value;
+    private final Instant expiresAt;
+
+    public AccessToken(String value, Instant expiresAt) {
+        this.value = value;
+        this.expiresAt = expiresAt;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    public Instant getExpiresAt() {
+        return expiresAt;
+    }
+
+    /**
+     * Source of new access tokens, typically a token endpoint.
+     */
+    @FunctionalInterface
+    public interface Source {
+        AccessToken fetch();
+    }
+
+}
@@ -0,0 +1,71 @@
+package no.difi.statistics.ingest.client;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.function.Supplier;
+
+import static java.net.HttpURLConnection.HTTP_OK;
+
+/**
+ * Fetches access tokens from an OAuth2 token endpoint, e.g. Maskinporten. The grant is supplied as a form encoded
+ * request body, typically <code>grant_type=urn:ietf:params:oauth:grant-type:jwt-bearer&amp;assertion=...</code>.
+ */
+public class HttpTokenSource implements AccessToken.Source {
+
+    private final URL tokenEndpoint;
+    private final Supplier<String> grant;
+    private final int readTimeoutMillis;
+    private final int connectionTimeoutMillis;
+    private final ObjectReader responseReader = new ObjectMapper().readerFor(JsonNode.class);
+
+    public HttpTokenSource(URL tokenEndpoint, Supplier<String> grant, int readTimeoutMillis, int connectionTimeoutMillis) {
+        this.tokenEndpoint = tokenEndpoint;
+        this.grant = grant;
+        this.readTimeoutMillis = readTimeoutMillis;
+        this.connectionTimeoutMillis = connectionTimeoutMillis;
+    }
+
+    @Override
+    public AccessToken fetch() {
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) tokenEndpoint.openConnection();
+            connection.setDoOutput(true);
+            connection.setConnectTimeout(connectionTimeoutMillis);
+            connection.setReadTimeout(readTimeoutMillis);
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+            try (OutputStream output = connection.getOutputStream()) {
+                output.write(grant.get().getBytes(StandardCharsets.UTF_8));
+            }
+            if (connection.getResponseCode() != HTTP_OK)
+                throw new IngestService.Unauthorized(String.format(
+                        "Failed to get access token [%d %s] from %s",
+                        connection.getResponseCode(),
+                        connection.getResponseMessage(),
+                        tokenEndpoint
+                ));
+            JsonNode response = responseReader.readValue(connection.getInputStream());
+            if (!response.hasNonNull("access_token") || !response.hasNonNull("expires_in"))
+                throw new IngestService.Failed("Invalid token response from " + tokenEndpoint);
+            return new AccessToken(
+                    response.get("access_token").asText(),
+                    Instant.now().plusSeconds(response.get("expires_in").asLong())
+            );
+        } catch (IOException e) {
+            throw new IngestService.Failed("Failed to get access token", e);
+        } finally {
+            if (connection != null)
+                connection.disconnect();
+        }
+    }
+
+}
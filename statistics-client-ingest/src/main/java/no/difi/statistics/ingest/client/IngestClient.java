@@ -1,7 +1,7 @@
 package no.difi.statistics.ingest.client;
 
 import com.fasterxml.jackson.annotation.JsonInclude;
-import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.ObjectReader;
 import com.fasterxml.jackson.databind.ObjectWriter;
@@ -14,12 +14,17 @@ import no.difi.statistics.ingest.client.model.TimeSeriesDefinition;
 import no.difi.statistics.ingest.client.model.TimeSeriesPoint;
 
 import java.io.IOException;
+import java.net.HttpRetryException;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.ProtocolException;
 import java.net.URL;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Optional;
+import java.util.stream.Stream;
 
 import static java.net.HttpURLConnection.*;
 
@@ -29,10 +34,16 @@ public class IngestClient implements IngestService {
     private static final String JSON_CONTENT_TYPE = "application/json";
     private static final String AUTHORIZATION_KEY = "Authorization";
     private static final String AUTH_METHOD = "Bearer";
+    private static final String ETAG_KEY = "ETag";
+    private static final String IF_NONE_MATCH_KEY = "If-None-Match";
+    private static final int STREAMING_CHUNK_SIZE = 8192;
+    private static final Duration LOCAL_LAST_POINT_TIME_TO_LIVE = Duration.ofMinutes(1);
 
-    private final ObjectWriter requestWriter;
+    private final ObjectWriter pointWriter;
     private final ObjectReader responseReader;
     private final ObjectReader lastResponseReader;
+    private final LastPointCache lastPoints;
+    private final IngestMetricsListener metricsListener;
 
     private final URL baseUrl;
     private final String owner;
@@ -40,6 +51,14 @@ public class IngestClient implements IngestService {
     private final int connectionTimeoutMillis;
 
     public IngestClient(URL baseURL, int readTimeoutMillis, int connectionTimeoutMillis, String owner) {
+        this(baseURL, readTimeoutMillis, connectionTimeoutMillis, owner, IngestMetricsListener.NONE);
+    }
+
+    public IngestClient(URL baseURL, int readTimeoutMillis, int connectionTimeoutMillis, String owner, IngestMetricsListener metricsListener) {
+        this(baseURL, readTimeoutMillis, connectionTimeoutMillis, owner, metricsListener, Clock.systemUTC());
+    }
+
+    IngestClient(URL baseURL, int readTimeoutMillis, int connectionTimeoutMillis, String owner, IngestMetricsListener metricsListener, Clock clock) {
         ObjectMapper objectMapper = new ObjectMapper()
                 .registerModule(new JavaTimeModule())
                 .registerModule(new Jdk8Module())
@@ -47,25 +66,54 @@ public class IngestClient implements IngestService {
                 .setSerializationInclusion(JsonInclude.Include.NON_NULL)
                 .setSerializationInclusion(JsonInclude.Include.NON_EMPTY)
                 .configure(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS, false);
-        this.requestWriter = objectMapper.writerFor(new TypeReference<List<TimeSeriesPoint>>() {
-        });
+        // Points are written one by one to the same generator, so flushing after each of them would defeat the buffering
+        this.pointWriter = objectMapper.writerFor(TimeSeriesPoint.class).without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
         this.responseReader = objectMapper.readerFor(IngestResponse.class);
         this.lastResponseReader = objectMapper.readerFor(TimeSeriesPoint.class);
         this.baseUrl = baseURL;
         this.connectionTimeoutMillis = connectionTimeoutMillis;
         this.readTimeoutMillis = readTimeoutMillis;
         this.owner = owner;
+        this.metricsListener = metricsListener;
+        this.lastPoints = new LastPointCache(LOCAL_LAST_POINT_TIME_TO_LIVE, clock);
     }
 
     @Override
     public IngestResponse ingest(TimeSeriesDefinition seriesDefinition, List<TimeSeriesPoint> dataPoints, String token) {
+        return ingest(seriesDefinition, dataPoints.iterator(), token);
+    }
+
+    @Override
+    public IngestResponse ingest(TimeSeriesDefinition seriesDefinition, Stream<TimeSeriesPoint> dataPoints, String token) {
+        return ingest(seriesDefinition, dataPoints.iterator(), token);
+    }
+
+    @Override
+    public IngestResponse ingest(TimeSeriesDefinition seriesDefinition, Iterator<TimeSeriesPoint> dataPoints, String token) {
         if(token == null || token.isEmpty()){
             throw new Unauthorized("Access token is null or emtpy. An valid access token from Maskinporten must be provided.");
         }
-        HttpURLConnection connection = getConnection(ingestUrlFor(seriesDefinition), "POST", token);
-        writeRequest(dataPoints, connection);
-        handleResponseCode(connection);
-        return readResponse(connection);
+        long start = System.nanoTime();
+        HttpURLConnection connection = getConnection(ingestUrlFor(seriesDefinition), "POST", token, true);
+        IngestResponse response;
+        WrittenPoints written;
+        try {
+            connect(connection);
+            written = writeRequest(dataPoints, connection);
+            int responseCode = responseCode(connection);
+            metricsListener.ingested(seriesDefinition, written.count, written.bytes, responseCode, System.nanoTime() - start);
+            handleResponseCode(responseCode);
+            response = readResponse(connection);
+        } catch (RuntimeException e) {
+            lastPoints.invalidate(seriesDefinition);
+            metricsListener.failed(seriesDefinition, e);
+            throw e;
+        }
+        if (!response.getStatuses().contains(IngestResponse.Status.Failed) && written.last != null)
+            lastPoints.ingested(seriesDefinition, written.last);
+        else
+            lastPoints.invalidate(seriesDefinition);
+        return response;
     }
 
     private IngestResponse readResponse(HttpURLConnection connection) {
@@ -78,7 +126,18 @@ public class IngestClient implements IngestService {
 
     @Override
     public Optional<TimeSeriesPoint> last(TimeSeriesDefinition seriesDefinition) {
-        return getFrom(lastUrlFor(seriesDefinition));
+        long start = System.nanoTime();
+        LastPointCache.Entry cached = lastPoints.get(seriesDefinition);
+        if (cached != null && cached.local()) {
+            metricsListener.lastRequested(seriesDefinition, true, System.nanoTime() - start);
+            return cached.point();
+        }
+        try {
+            return getFrom(lastUrlFor(seriesDefinition), seriesDefinition, cached, start);
+        } catch (RuntimeException e) {
+            metricsListener.failed(seriesDefinition, e);
+            throw e;
+        }
     }
 
     private URL ingestUrlFor(TimeSeriesDefinition seriesDefinition) {
@@ -101,13 +160,18 @@ public class IngestClient implements IngestService {
         }
     }
 
-    private void handleResponseCode(HttpURLConnection connection) {
-        int responseCode;
+    private int responseCode(HttpURLConnection connection) {
         try {
-            responseCode = connection.getResponseCode();
+            return connection.getResponseCode();
+        } catch (HttpRetryException e) {
+            // A streamed request body cannot be resent, so authentication challenges surface as this exception
+            return e.responseCode();
         } catch (IOException e) {
             throw new Failed("Could not read response code", e);
         }
+    }
+
+    private void handleResponseCode(int responseCode) {
         switch (responseCode) {
             case HTTP_OK:
             case HTTP_CREATED:
@@ -124,20 +188,33 @@ public class IngestClient implements IngestService {
         }
     }
 
-    private Optional<TimeSeriesPoint> getFrom(URL url) {
+    private Optional<TimeSeriesPoint> getFrom(URL url, TimeSeriesDefinition seriesDefinition, LastPointCache.Entry cached, long start) {
         HttpURLConnection connection = null;
         try {
-            connection = getConnection(url, "GET", null);
-            if (connection.getResponseCode() == 204)
+            connection = getConnection(url, "GET", null, false);
+            if (cached != null)
+                connection.setRequestProperty(IF_NONE_MATCH_KEY, cached.entityTag());
+            connect(connection);
+            if (connection.getResponseCode() == HTTP_NOT_MODIFIED) {
+                metricsListener.lastRequested(seriesDefinition, true, System.nanoTime() - start);
+                return cached.point();
+            }
+            if (connection.getResponseCode() == HTTP_NO_CONTENT) {
+                lastPoints.validated(seriesDefinition, null, connection.getHeaderField(ETAG_KEY));
+                metricsListener.lastRequested(seriesDefinition, false, System.nanoTime() - start);
                 return Optional.empty();
-            if (connection.getResponseCode() != 200)
+            }
+            if (connection.getResponseCode() != HTTP_OK)
                 throw new Failed(String.format(
                         "Failed to get response from ingest service [%d %s] on URL: %s",
                         connection.getResponseCode(),
                         connection.getResponseMessage(),
                         url
                 ));
-            return Optional.of(lastResponseReader.readValue(connection.getInputStream()));
+            TimeSeriesPoint point = lastResponseReader.readValue(connection.getInputStream());
+            lastPoints.validated(seriesDefinition, point, connection.getHeaderField(ETAG_KEY));
+            metricsListener.lastRequested(seriesDefinition, false, System.nanoTime() - start);
+            return Optional.of(point);
         } catch (IOException e) {
             throw new Failed("Failed to get last point", e);
         } finally {
@@ -147,7 +224,7 @@ public class IngestClient implements IngestService {
         }
     }
 
-    private HttpURLConnection getConnection(URL url, String requestMethod, final String token) {
+    private HttpURLConnection getConnection(URL url, String requestMethod, final String token, boolean streaming) {
         HttpURLConnection conn;
         try {
             conn = (HttpURLConnection) url.openConnection();
@@ -155,6 +232,8 @@ public class IngestClient implements IngestService {
             throw new ConnectFailed(e);
         }
         conn.setDoOutput(true);
+        if (streaming)
+            conn.setChunkedStreamingMode(STREAMING_CHUNK_SIZE); // Otherwise the whole request body is buffered in memory
         conn.setConnectTimeout(connectionTimeoutMillis);
         conn.setReadTimeout(readTimeoutMillis);
         try {
@@ -166,20 +245,52 @@ public class IngestClient implements IngestService {
         if (token != null) {
             conn.setRequestProperty(AUTHORIZATION_KEY, AUTH_METHOD + " " + token);
         }
+        return conn;
+    }
+
+    private void connect(HttpURLConnection conn) {
         try {
             conn.connect(); // Connect early. Otherwise will be called implicitly later.
         } catch (IOException e) {
             throw new ConnectFailed(e);
         }
-        return conn;
     }
 
-    private void writeRequest(List<TimeSeriesPoint> requestData, HttpURLConnection connection) {
+    private WrittenPoints writeRequest(Iterator<TimeSeriesPoint> requestData, HttpURLConnection connection) {
+        WrittenPoints written = new WrittenPoints();
+        CountingOutputStream output;
         try {
-            requestWriter.writeValue(connection.getOutputStream(), requestData);
+            output = new CountingOutputStream(connection.getOutputStream());
+        } catch (IOException e) {
+            throw new Failed("Could not write request", e);
+        }
+        try (JsonGenerator generator = pointWriter.getFactory().createGenerator(output)) {
+            generator.writeStartArray();
+            while (requestData.hasNext()) {
+                TimeSeriesPoint point = requestData.next();
+                pointWriter.writeValue(generator, point);
+                written.add(point);
+            }
+            generator.writeEndArray();
         } catch (IOException e) {
             throw new Failed("Could not write request", e);
         }
+        written.bytes = output.count();
+        return written;
+    }
+
+    private static class WrittenPoints {
+
+        private int count;
+        private long bytes;
+        private TimeSeriesPoint last;
+
+        private void add(TimeSeriesPoint point) {
+            count++;
+            if (last == null || point.getTimestamp().isAfter(last.getTimestamp()))
+                last = point;
+        }
+
     }
 
 }
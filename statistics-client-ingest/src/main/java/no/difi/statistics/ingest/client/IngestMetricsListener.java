@@ -0,0 +1,41 @@
+package no.difi.statistics.ingest.client;
+
+import no.difi.statistics.ingest.client.model.TimeSeriesDefinition;
+
+/**
+ * Receives measurements of the requests made by {@link IngestClient}. Methods are called on the thread making the
+ * request, and should return quickly.
+ *
+ * @see no.difi.statistics.ingest.client.micrometer.MicrometerIngestMetricsListener
+ */
+public interface IngestMetricsListener {
+
+    IngestMetricsListener NONE = new IngestMetricsListener() {};
+
+    /**
+     * An ingest request was answered by the ingest service.
+     *
+     * @param points number of points sent
+     * @param bytes size of the serialized request body
+     * @param status HTTP status code of the response
+     * @param durationNanos time from connecting until the response status was received
+     */
+    default void ingested(TimeSeriesDefinition seriesDefinition, int points, long bytes, int status, long durationNanos) {
+    }
+
+    /**
+     * An ingest or last request failed, either in transmission or by a response status signalling failure.
+     */
+    default void failed(TimeSeriesDefinition seriesDefinition, RuntimeException failure) {
+    }
+
+    /**
+     * The last point of a series was requested.
+     *
+     * @param cached true if the point was served from the cache of the client, possibly after revalidation
+     * @param durationNanos time spent, including any request to the ingest service
+     */
+    default void lastRequested(TimeSeriesDefinition seriesDefinition, boolean cached, long durationNanos) {
+    }
+
+}
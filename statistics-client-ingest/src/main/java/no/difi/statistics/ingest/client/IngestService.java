@@ -4,13 +4,39 @@ import no.difi.statistics.ingest.client.model.IngestResponse;
 import no.difi.statistics.ingest.client.model.TimeSeriesDefinition;
 import no.difi.statistics.ingest.client.model.TimeSeriesPoint;
 
+import java.util.Iterator;
 import java.util.List;
 import java.util.Optional;
+import java.util.stream.Stream;
 
 public interface IngestService {
 
     IngestResponse ingest(TimeSeriesDefinition seriesDefinition, List<TimeSeriesPoint> dataPoints, String token);
 
+    /**
+     * Ingest points as they are produced by the iterator, without materializing them first. Suitable for large
+     * uploads of historic data.
+     */
+    IngestResponse ingest(TimeSeriesDefinition seriesDefinition, Iterator<TimeSeriesPoint> dataPoints, String token);
+
+    IngestResponse ingest(TimeSeriesDefinition seriesDefinition, Stream<TimeSeriesPoint> dataPoints, String token);
+
+    default IngestResponse ingest(TimeSeriesDefinition seriesDefinition, List<TimeSeriesPoint> dataPoints, TokenProvider tokenProvider) {
+        return ingest(seriesDefinition, dataPoints, tokenProvider.token());
+    }
+
+    default IngestResponse ingest(TimeSeriesDefinition seriesDefinition, Iterator<TimeSeriesPoint> dataPoints, TokenProvider tokenProvider) {
+        return ingest(seriesDefinition, dataPoints, tokenProvider.token());
+    }
+
+    default IngestResponse ingest(TimeSeriesDefinition seriesDefinition, Stream<TimeSeriesPoint> dataPoints, TokenProvider tokenProvider) {
+        return ingest(seriesDefinition, dataPoints, tokenProvider.token());
+    }
+
+    /**
+     * The last point is cached per series. After a successful ingest the cache is updated from the ingested points,
+     * otherwise it is revalidated with the ingest service.
+     */
     Optional<TimeSeriesPoint> last(TimeSeriesDefinition seriesDefinition);
 
     class Failed extends RuntimeException {
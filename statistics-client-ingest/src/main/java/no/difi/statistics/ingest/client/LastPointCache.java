@@ -0,0 +1,94 @@
+package no.difi.statistics.ingest.client;
+
+import no.difi.statistics.ingest.client.model.TimeSeriesDefinition;
+import no.difi.statistics.ingest.client.model.TimeSeriesPoint;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Last point per time series, as last seen by this client. An entry is either validated by the ingest service (and
+ * carries its entity tag for revalidation), or updated locally after a successful ingest from this client. Only an
+ * entry already there is updated locally, as the points ingested may be older than those the service has. A local
+ * entry has nothing to revalidate with, so it is dropped when its time to live has passed since the entry was last
+ * validated, in case another client feeds the same series.
+ */
+class LastPointCache {
+
+    private final Map<TimeSeriesDefinition, Entry> entries = new ConcurrentHashMap<>();
+    private final Duration localTimeToLive;
+    private final Clock clock;
+
+    LastPointCache(Duration localTimeToLive, Clock clock) {
+        this.localTimeToLive = localTimeToLive;
+        this.clock = clock;
+    }
+
+    /**
+     * @return the entry of the series, or null if there is none or it is local and has expired
+     */
+    Entry get(TimeSeriesDefinition seriesDefinition) {
+        Entry entry = entries.get(seriesDefinition);
+        if (entry != null && entry.local() && !entry.validatedAt.plus(localTimeToLive).isAfter(clock.instant())) {
+            entries.remove(seriesDefinition, entry);
+            return null;
+        }
+        return entry;
+    }
+
+    void validated(TimeSeriesDefinition seriesDefinition, TimeSeriesPoint point, String entityTag) {
+        if (entityTag == null)
+            entries.remove(seriesDefinition); // Nothing to revalidate with
+        else
+            entries.put(seriesDefinition, new Entry(point, entityTag, clock.instant()));
+    }
+
+    void ingested(TimeSeriesDefinition seriesDefinition, TimeSeriesPoint point) {
+        entries.computeIfPresent(
+                seriesDefinition,
+                (key, current) -> current.isAfter(point) ? current : new Entry(point, null, current.validatedAt)
+        );
+    }
+
+    void invalidate(TimeSeriesDefinition seriesDefinition) {
+        entries.remove(seriesDefinition);
+    }
+
+    static class Entry {
+
+        private final TimeSeriesPoint point;
+        private final String entityTag;
+        private final Instant validatedAt;
+
+        private Entry(TimeSeriesPoint point, String entityTag, Instant validatedAt) {
+            this.point = point;
+            this.entityTag = entityTag;
+            this.validatedAt = validatedAt;
+        }
+
+        Optional<TimeSeriesPoint> point() {
+            return Optional.ofNullable(point);
+        }
+
+        String entityTag() {
+            return entityTag;
+        }
+
+        /**
+         * An entry updated locally is used without revalidation until it expires.
+         */
+        boolean local() {
+            return entityTag == null;
+        }
+
+        private boolean isAfter(TimeSeriesPoint other) {
+            return point != null && point.getTimestamp().isAfter(other.getTimestamp());
+        }
+
+    }
+
+}
@@ -0,0 +1,100 @@
+package no.difi.statistics.ingest.client;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Caches an access token and replaces it in the background shortly before it expires. Only the first call to
+ * {@link #token()} waits for a token to be fetched; later calls return the current token immediately, also while a
+ * refresh is in progress. If a refresh fails the current token is kept and the refresh is retried. Once the current
+ * token has expired, callers fetch a new one themselves, as an expired token is of no use to them.
+ */
+public class RefreshingTokenProvider implements TokenProvider, AutoCloseable {
+
+    private static final Duration RETRY_DELAY = Duration.ofSeconds(5);
+    private static final Duration MIN_REFRESH_DELAY = Duration.ofSeconds(5);
+
+    private final AccessToken.Source source;
+    private final Duration refreshMargin;
+    private final Clock clock;
+    private final ScheduledExecutorService scheduler;
+    private volatile AccessToken current;
+
+    /**
+     * @param refreshMargin how long before expiry the token should be refreshed
+     */
+    public RefreshingTokenProvider(AccessToken.Source source, Duration refreshMargin) {
+        this(source, refreshMargin, Clock.systemUTC(), Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "access-token-refresh");
+            thread.setDaemon(true);
+            return thread;
+        }));
+    }
+
+    RefreshingTokenProvider(AccessToken.Source source, Duration refreshMargin, Clock clock, ScheduledExecutorService scheduler) {
+        this.source = source;
+        this.refreshMargin = refreshMargin;
+        this.clock = clock;
+        this.scheduler = scheduler;
+    }
+
+    @Override
+    public String token() {
+        AccessToken token = current;
+        if (token == null || expired(token))
+            token = fetch();
+        return token.getValue();
+    }
+
+    /**
+     * Fetches a token if there is none or it has expired. Refreshes are scheduled from the first token only, since a
+     * refresh already scheduled or being retried keeps going when the token expires.
+     */
+    private synchronized AccessToken fetch() {
+        AccessToken token = current;
+        if (token != null && !expired(token))
+            return token;
+        current = source.fetch();
+        if (token == null)
+            scheduleRefresh(current);
+        return current;
+    }
+
+    private boolean expired(AccessToken token) {
+        return !token.getExpiresAt().isAfter(clock.instant());
+    }
+
+    private void refresh() {
+        AccessToken token;
+        try {
+            token = source.fetch();
+        } catch (RuntimeException e) {
+            scheduler.schedule(this::refresh, RETRY_DELAY.toMillis(), MILLISECONDS);
+            return;
+        }
+        current = token;
+        scheduleRefresh(token);
+    }
+
+    private void scheduleRefresh(AccessToken token) {
+        Duration lifetime = Duration.between(clock.instant(), token.getExpiresAt());
+        Duration delay = lifetime.minus(refreshMargin);
+        // Avoid refreshing continuously when tokens live shorter than the margin
+        if (delay.compareTo(lifetime.dividedBy(2)) < 0)
+            delay = lifetime.dividedBy(2);
+        // Nor when tokens are already expired or about to
+        if (delay.compareTo(MIN_REFRESH_DELAY) < 0)
+            delay = MIN_REFRESH_DELAY;
+        scheduler.schedule(this::refresh, delay.toMillis(), MILLISECONDS);
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+
+}
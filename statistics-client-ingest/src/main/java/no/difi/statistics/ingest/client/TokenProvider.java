@@ -0,0 +1,13 @@
+package no.difi.statistics.ingest.client;
+
+/**
+ * Supplies access tokens for the ingest service.
+ *
+ * @see RefreshingTokenProvider
+ */
+@FunctionalInterface
+public interface TokenProvider {
+
+    String token();
+
+}
@@ -0,0 +1,71 @@
+package no.difi.statistics.ingest.client.micrometer;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import no.difi.statistics.ingest.client.IngestMetricsListener;
+import no.difi.statistics.ingest.client.model.TimeSeriesDefinition;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes ingest client metrics to a Micrometer registry. Meters are tagged with series and distance, so the
+ * number of series should be bounded. Requires micrometer-core on the class path.
+ */
+public class MicrometerIngestMetricsListener implements IngestMetricsListener {
+
+    static final String PREFIX = "statistics.ingest.client";
+
+    private final MeterRegistry registry;
+
+    public MicrometerIngestMetricsListener(MeterRegistry registry) {
+        this.registry = registry;
+    }
+
+    @Override
+    public void ingested(TimeSeriesDefinition seriesDefinition, int points, long bytes, int status, long durationNanos) {
+        Timer.builder(PREFIX + ".requests")
+                .description("Duration of ingest requests")
+                .tags("series", seriesDefinition.getName(), "distance", seriesDefinition.getDistance().name())
+                .tag("status", Integer.toString(status))
+                .publishPercentileHistogram()
+                .register(registry)
+                .record(durationNanos, TimeUnit.NANOSECONDS);
+        DistributionSummary.builder(PREFIX + ".request.size")
+                .description("Size of serialized ingest requests")
+                .baseUnit("bytes")
+                .tags("series", seriesDefinition.getName(), "distance", seriesDefinition.getDistance().name())
+                .publishPercentileHistogram()
+                .register(registry)
+                .record(bytes);
+        DistributionSummary.builder(PREFIX + ".request.points")
+                .description("Number of points per ingest request")
+                .baseUnit("points")
+                .tags("series", seriesDefinition.getName(), "distance", seriesDefinition.getDistance().name())
+                .publishPercentileHistogram()
+                .register(registry)
+                .record(points);
+    }
+
+    @Override
+    public void failed(TimeSeriesDefinition seriesDefinition, RuntimeException failure) {
+        Counter.builder(PREFIX + ".failures")
+                .description("Failed requests to the ingest service")
+                .tags("series", seriesDefinition.getName(), "distance", seriesDefinition.getDistance().name())
+                .tag("exception", failure.getClass().getSimpleName())
+                .register(registry)
+                .increment();
+    }
+
+    @Override
+    public void lastRequested(TimeSeriesDefinition seriesDefinition, boolean cached, long durationNanos) {
+        Timer.builder(PREFIX + ".last")
+                .description("Duration of last point lookups")
+                .tags("series", seriesDefinition.getName(), "distance", seriesDefinition.getDistance().name())
+                .tag("cached", Boolean.toString(cached))
+                .register(registry)
+                .record(durationNanos, TimeUnit.NANOSECONDS);
+    }
+
+}
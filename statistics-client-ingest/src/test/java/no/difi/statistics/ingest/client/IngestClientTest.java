@@ -8,6 +8,8 @@ import com.fasterxml.jackson.databind.util.ISO8601DateFormat;
 import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import no.difi.statistics.ingest.client.micrometer.MicrometerIngestMetricsListener;
 import no.difi.statistics.ingest.client.model.IngestResponse;
 import no.difi.statistics.ingest.client.model.TimeSeriesDefinition;
 import no.difi.statistics.ingest.client.model.TimeSeriesPoint;
@@ -19,10 +21,13 @@ import org.junit.rules.ExpectedException;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.time.Duration;
+import java.time.Instant;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.util.List;
 import java.util.Optional;
+import java.util.stream.Stream;
 
 import static com.github.tomakehurst.wiremock.client.WireMock.*;
 import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
@@ -84,6 +89,33 @@ public class IngestClientTest {
         assertEquals(Ok, response.getStatuses().get(0));
     }
 
+    @Test
+    public void shouldStreamPointsWithChunkedEncoding() {
+        givenOkResponse(2);
+        List<TimeSeriesPoint> points = twoPoints();
+        IngestResponse response = ingestClient.ingest(aSeriesDefinition(), points.iterator(), BEARER_TOKEN);
+        assertEquals(2, response.getStatuses().size());
+        verify(postRequestedFor(urlEqualTo("/999888777/aSeries/hours"))
+                .withHeader("Transfer-Encoding", equalTo("chunked"))
+                .withRequestBody(equalToJson(json(points))));
+    }
+
+    @Test
+    public void shouldIngestStreamOfPoints() {
+        givenOkResponse(2);
+        List<TimeSeriesPoint> points = twoPoints();
+        ingestClient.ingest(aSeriesDefinition(), points.stream(), BEARER_TOKEN);
+        verify(postRequestedFor(urlEqualTo("/999888777/aSeries/hours"))
+                .withRequestBody(equalToJson(json(points))));
+    }
+
+    @Test
+    public void shouldWriteEmptyArrayWhenNoPoints() {
+        givenOkResponse(0);
+        ingestClient.ingest(aSeriesDefinition(), Stream.empty(), BEARER_TOKEN);
+        verify(postRequestedFor(urlEqualTo("/999888777/aSeries/hours")).withRequestBody(equalToJson("[]")));
+    }
+
     @Test
     public void shouldFailWithFailedWhenSomethingFailsInTransmission() {
         createWiremockStub(HttpURLConnection.HTTP_OK);
@@ -175,6 +207,106 @@ public class IngestClientTest {
         assertFalse(actualPoint.isPresent());
     }
 
+    @Test
+    public void shouldRevalidateCachedLastWithEntityTag() {
+        TimeSeriesPoint expectedPoint = timeSeriesPoint().timestamp(aTimestamp).measurement("x", 3).build();
+        stubFor(get(urlMatching(format(".*/%s/test/hours/last", owner)))
+                .willReturn(aResponse().withHeader("ETag", "\"1\"").withBody(json(expectedPoint))));
+        stubFor(get(urlMatching(format(".*/%s/test/hours/last", owner))).withHeader("If-None-Match", equalTo("\"1\""))
+                .willReturn(aResponse().withStatus(304)));
+        assertEquals(expectedPoint, ingestClient.last(timeSeriesDefinition().name("test").distance(hours)).orElse(null));
+        assertEquals(expectedPoint, ingestClient.last(timeSeriesDefinition().name("test").distance(hours)).orElse(null));
+        verify(1, getRequestedFor(urlMatching(".*/last")).withHeader("If-None-Match", equalTo("\"1\"")));
+    }
+
+    @Test
+    public void shouldReturnLastIngestedPointWithoutRequest() {
+        givenOkResponse(2);
+        givenLast(timeSeriesPoint().timestamp(aTimestamp.minusHours(1)).measurement("m1", 3L).build());
+        List<TimeSeriesPoint> points = asList(
+                timeSeriesPoint().timestamp(aTimestamp.plusHours(1)).measurement("m1", 1L).build(),
+                timeSeriesPoint().timestamp(aTimestamp).measurement("m1", 2L).build()
+        );
+        ingestClient.last(aSeriesDefinition());
+        ingestClient.ingest(aSeriesDefinition(), points, BEARER_TOKEN);
+        assertEquals(points.get(0), ingestClient.last(aSeriesDefinition()).orElse(null));
+        verify(1, getRequestedFor(urlMatching(".*/last")));
+    }
+
+    @Test
+    public void shouldRequestLastAfterIngestWhenNoLastPointIsCached() {
+        TimeSeriesPoint expectedPoint = timeSeriesPoint().timestamp(aTimestamp.plusHours(5)).measurement("m1", 3L).build();
+        givenOkResponse(1);
+        givenLast(expectedPoint);
+        ingestClient.ingest(aSeriesDefinition(), singletonList(timeSeriesPoint().timestamp(aTimestamp).measurement("m1", 1L).build()), BEARER_TOKEN);
+        assertEquals(expectedPoint, ingestClient.last(aSeriesDefinition()).orElse(null));
+        verify(1, getRequestedFor(urlMatching(".*/last")));
+    }
+
+    @Test
+    public void shouldRequestLastWhenLastIngestedPointHasExpired() throws MalformedURLException {
+        MutableClock clock = new MutableClock(Instant.parse("2018-01-01T00:00:00Z"));
+        ingestClient = new IngestClient(
+                new URL("http://localhost:" + wireMockRule.port()), 500, 500, owner, IngestMetricsListener.NONE, clock
+        );
+        TimeSeriesPoint expectedPoint = timeSeriesPoint().timestamp(aTimestamp.plusHours(2)).measurement("x", 3).build();
+        givenOkResponse(2);
+        givenLast(expectedPoint);
+        ingestClient.last(aSeriesDefinition());
+        clock.advance(Duration.ofSeconds(30));
+        ingestClient.ingest(aSeriesDefinition(), twoPoints(), BEARER_TOKEN);
+        ingestClient.last(aSeriesDefinition());
+        verify(1, getRequestedFor(urlMatching(".*/last")));
+        clock.advance(Duration.ofSeconds(30)); // A minute since the entry was validated
+        assertEquals(expectedPoint, ingestClient.last(aSeriesDefinition()).orElse(null));
+        verify(2, getRequestedFor(urlMatching(".*/last")));
+    }
+
+    @Test
+    public void shouldRequestLastWhenIngestFailed() {
+        TimeSeriesPoint expectedPoint = timeSeriesPoint().timestamp(aTimestamp).measurement("x", 3).build();
+        IngestResponse failed = IngestResponse.builder().status(Ok).status(IngestResponse.Status.Failed).build();
+        stubFor(post(urlMatching(".*")).willReturn(aResponse().withHeader("Content-Type", JSON).withBody(json(failed))));
+        stubFor(get(urlMatching(".*/last")).willReturn(aResponse().withBody(json(expectedPoint))));
+        ingestClient.ingest(aSeriesDefinition(), twoPoints(), BEARER_TOKEN);
+        assertEquals(expectedPoint, ingestClient.last(aSeriesDefinition()).orElse(null));
+        verify(1, getRequestedFor(urlMatching(".*/last")));
+    }
+
+    @Test
+    public void shouldReportRequestMetrics() throws MalformedURLException {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        ingestClient = new IngestClient(
+                new URL("http://localhost:" + wireMockRule.port()), 500, 500, owner, new MicrometerIngestMetricsListener(registry)
+        );
+        givenOkResponse(2);
+        givenLast(aPoint());
+        ingestClient.last(aSeriesDefinition());
+        List<TimeSeriesPoint> points = twoPoints();
+        ingestClient.ingest(aSeriesDefinition(), points, BEARER_TOKEN);
+        assertEquals(1, registry.get("statistics.ingest.client.requests").tag("status", "200").timer().count());
+        assertEquals(2.0, registry.get("statistics.ingest.client.request.points").summary().totalAmount(), 0.0);
+        assertEquals(json(points).length(), registry.get("statistics.ingest.client.request.size").summary().totalAmount(), 0.0);
+        ingestClient.last(aSeriesDefinition());
+        assertEquals(1, registry.get("statistics.ingest.client.last").tag("cached", "true").timer().count());
+    }
+
+    @Test
+    public void shouldReportFailures() throws MalformedURLException {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        ingestClient = new IngestClient(
+                new URL("http://localhost:" + wireMockRule.port()), 500, 500, owner, new MicrometerIngestMetricsListener(registry)
+        );
+        createStub(HttpURLConnection.HTTP_UNAUTHORIZED);
+        try {
+            ingestClient.ingest(aSeriesDefinition(), twoPoints(), BEARER_TOKEN);
+        } catch (IngestService.Unauthorized e) {
+            // Expected
+        }
+        assertEquals(1, registry.get("statistics.ingest.client.requests").tag("status", "401").timer().count());
+        assertEquals(1.0, registry.get("statistics.ingest.client.failures").tag("exception", "Unauthorized").counter().count(), 0.0);
+    }
+
     private void createStub(int status) {
         stubFor(
                 any(urlPathMatching(".*"))
@@ -201,6 +333,10 @@ public class IngestClientTest {
         );
     }
 
+    private void givenLast(TimeSeriesPoint point) {
+        stubFor(get(urlMatching(".*/last")).willReturn(aResponse().withHeader("ETag", "\"1\"").withBody(json(point))));
+    }
+
     private static TimeSeriesPoint aPoint() {
         return timeSeriesPoint().timestamp(now()).measurement("m1", 111L).build();
     }
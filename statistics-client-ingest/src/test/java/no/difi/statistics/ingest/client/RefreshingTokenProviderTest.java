@@ -0,0 +1,224 @@
+package no.difi.statistics.ingest.client;
+
+import com.github.tomakehurst.wiremock.client.ResponseDefinitionBuilder;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
+import static java.lang.String.format;
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static no.difi.statistics.ingest.client.model.MeasurementDistance.hours;
+import static no.difi.statistics.ingest.client.model.TimeSeriesDefinition.timeSeriesDefinition;
+import static org.junit.Assert.assertEquals;
+
+public class RefreshingTokenProviderTest {
+
+    private static final String TOKEN_PATH = "/token";
+
+    @Rule
+    public WireMockRule wireMockRule = new WireMockRule(wireMockConfig().bindAddress("localhost").dynamicPort());
+
+    private RefreshingTokenProvider tokenProvider;
+    private final MutableClock clock = new MutableClock(Instant.parse("2018-01-01T00:00:00Z"));
+    private final ManualScheduler scheduler = new ManualScheduler();
+
+    @Before
+    public void before() throws MalformedURLException {
+        tokenProvider = new RefreshingTokenProvider(
+                new HttpTokenSource(
+                        new URL("http://localhost:" + wireMockRule.port() + TOKEN_PATH),
+                        () -> "grant_type=urn:ietf:params:oauth:grant-type:jwt-bearer&assertion=aGrant",
+                        2000,
+                        2000
+                ),
+                Duration.ofMillis(1500)
+        );
+    }
+
+    @After
+    public void after() {
+        tokenProvider.close();
+    }
+
+    @Test
+    public void shouldFetchTokenOnceWhileValid() {
+        givenToken("token1", 120);
+        assertEquals("token1", tokenProvider.token());
+        assertEquals("token1", tokenProvider.token());
+        verify(1, postRequestedFor(urlEqualTo(TOKEN_PATH))
+                .withHeader("Content-Type", equalTo("application/x-www-form-urlencoded"))
+                .withRequestBody(containing("assertion=aGrant")));
+    }
+
+    @Test
+    public void shouldRefreshTokenBeforeExpiry() {
+        Tokens tokens = new Tokens(token("token1", 120), token("token2", 120));
+        RefreshingTokenProvider tokenProvider = new RefreshingTokenProvider(tokens, Duration.ofSeconds(30), clock, scheduler);
+        assertEquals("token1", tokenProvider.token());
+        assertEquals(Duration.ofSeconds(90), scheduler.nextDelay());
+        scheduler.runNext();
+        assertEquals("token2", tokenProvider.token());
+        assertEquals(2, tokens.fetched);
+    }
+
+    @Test
+    public void shouldWaitBeforeRefreshingTokensThatAreExpiredOrAboutTo() {
+        Tokens tokens = new Tokens(token("token1", 2), token("token2", -10), token("token3", 120));
+        RefreshingTokenProvider tokenProvider = new RefreshingTokenProvider(tokens, Duration.ofSeconds(30), clock, scheduler);
+        assertEquals("token1", tokenProvider.token());
+        assertEquals(Duration.ofSeconds(5), scheduler.nextDelay());
+        scheduler.runNext();
+        assertEquals(Duration.ofSeconds(5), scheduler.nextDelay());
+        scheduler.runNext();
+        assertEquals(3, tokens.fetched);
+    }
+
+    @Test
+    public void shouldNotBlockCallersWhileRefreshing() throws InterruptedException {
+        CountDownLatch refreshing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Tokens tokens = new Tokens(token("token1", 120), token("token2", 120)) {
+            @Override
+            public AccessToken fetch() {
+                if (fetched == 1) {
+                    refreshing.countDown();
+                    await(release);
+                }
+                return super.fetch();
+            }
+        };
+        RefreshingTokenProvider tokenProvider = new RefreshingTokenProvider(tokens, Duration.ofSeconds(30), clock, scheduler);
+        assertEquals("token1", tokenProvider.token());
+        Thread refresh = new Thread(scheduler::runNext);
+        refresh.start();
+        refreshing.await();
+        assertEquals("token1", tokenProvider.token());
+        release.countDown();
+        refresh.join();
+        assertEquals("token2", tokenProvider.token());
+    }
+
+    @Test
+    public void shouldKeepTokenWhenRefreshFails() {
+        Tokens tokens = new Tokens(token("token1", 120), null);
+        RefreshingTokenProvider tokenProvider = new RefreshingTokenProvider(tokens, Duration.ofSeconds(30), clock, scheduler);
+        assertEquals("token1", tokenProvider.token());
+        scheduler.runNext();
+        assertEquals(2, tokens.fetched);
+        assertEquals(Duration.ofSeconds(5), scheduler.nextDelay()); // Retried
+        assertEquals("token1", tokenProvider.token());
+    }
+
+    @Test
+    public void shouldFetchTokenWhenExpiredWhileRefreshFails() {
+        Tokens tokens = new Tokens(token("token1", 120), null, token("token2", 240));
+        RefreshingTokenProvider tokenProvider = new RefreshingTokenProvider(tokens, Duration.ofSeconds(30), clock, scheduler);
+        assertEquals("token1", tokenProvider.token());
+        scheduler.runNext();
+        clock.advance(Duration.ofSeconds(120));
+        assertEquals("token2", tokenProvider.token());
+        assertEquals("token2", tokenProvider.token());
+        assertEquals(3, tokens.fetched);
+    }
+
+    @Test
+    public void shouldUseProvidedTokenWhenIngesting() throws MalformedURLException {
+        givenToken("token1", 120);
+        stubFor(post(urlEqualTo("/owner/series/hours")).willReturn(aResponse().withBody("{\"statuses\":[]}")));
+        new IngestClient(new URL("http://localhost:" + wireMockRule.port()), 2000, 2000, "owner")
+                .ingest(timeSeriesDefinition().name("series").distance(hours), emptyList(), tokenProvider);
+        verify(postRequestedFor(urlEqualTo("/owner/series/hours")).withHeader("Authorization", equalTo("Bearer token1")));
+    }
+
+    private AccessToken token(String value, int expiresIn) {
+        return new AccessToken(value, clock.instant().plusSeconds(expiresIn));
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void givenToken(String token, int expiresIn) {
+        stubFor(post(urlEqualTo(TOKEN_PATH)).willReturn(tokenResponse(token, expiresIn)));
+    }
+
+    private static ResponseDefinitionBuilder tokenResponse(String token, int expiresIn) {
+        return aResponse()
+                .withHeader("Content-Type", "application/json")
+                .withBody(format("{\"access_token\":\"%s\",\"token_type\":\"Bearer\",\"expires_in\":%d}", token, expiresIn));
+    }
+
+    /**
+     * Gives the tokens in order, where null is a failed fetch.
+     */
+    private static class Tokens implements AccessToken.Source {
+
+        private final List<AccessToken> tokens;
+        volatile int fetched;
+
+        private Tokens(AccessToken... tokens) {
+            this.tokens = asList(tokens);
+        }
+
+        @Override
+        public AccessToken fetch() {
+            AccessToken token = tokens.get(fetched++);
+            if (token == null)
+                throw new IllegalStateException("Failed to fetch token");
+            return token;
+        }
+
+    }
+
+    /**
+     * Keeps scheduled tasks until the test runs them.
+     */
+    private static class ManualScheduler extends ScheduledThreadPoolExecutor {
+
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final Queue<Duration> delays = new ConcurrentLinkedQueue<>();
+
+        private ManualScheduler() {
+            super(0);
+        }
+
+        @Override
+        public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+            tasks.add(command);
+            delays.add(Duration.ofMillis(unit.toMillis(delay)));
+            return null;
+        }
+
+        Duration nextDelay() {
+            return delays.peek();
+        }
+
+        void runNext() {
+            delays.remove();
+            tasks.remove().run();
+        }
+
+    }
+
+}
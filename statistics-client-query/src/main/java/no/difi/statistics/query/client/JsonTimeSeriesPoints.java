@@ -0,0 +1,139 @@
+package no.difi.statistics.query.client;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import no.difi.statistics.query.client.model.TimeSeriesPoint;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.Consumer;
+
+import static com.fasterxml.jackson.core.JsonToken.*;
+import static no.difi.statistics.query.client.model.TimeSeriesPoint.timeSeriesPoint;
+
+/**
+ * Parses a JSON array of points one point at a time, directly from the token stream.
+ */
+class JsonTimeSeriesPoints implements TimeSeriesPoints {
+
+    private final JsonParser parser;
+    private final Consumer<List<TimeSeriesPoint>> completionListener;
+    private final long maxCollected;
+    private List<TimeSeriesPoint> collected;
+    private TimeSeriesPoint next;
+    private boolean closed;
+
+    /**
+     * @param completionListener receives all points when the array has been read to the end, or null
+     * @param maxCollected the most points to collect for the listener. It is not called for longer arrays.
+     */
+    JsonTimeSeriesPoints(JsonParser parser, Consumer<List<TimeSeriesPoint>> completionListener, long maxCollected) {
+        this.parser = parser;
+        this.completionListener = completionListener;
+        this.maxCollected = maxCollected;
+        this.collected = completionListener != null ? new ArrayList<>() : null;
+        try {
+            JsonToken token = parser.nextToken();
+            if (token == null) {
+                close(); // Empty response
+            } else if (token != START_ARRAY) {
+                close();
+                throw new QueryService.Failed("Expected an array of points, got " + token);
+            }
+        } catch (IOException e) {
+            close();
+            throw new QueryService.Failed("Failed to read response", e);
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next != null)
+            return true;
+        if (closed)
+            return false;
+        try {
+            if (parser.nextToken() == START_OBJECT) {
+                next = parse(parser);
+                if (collected != null) {
+                    if (collected.size() < maxCollected)
+                        collected.add(next);
+                    else
+                        collected = null; // Too large to keep
+                }
+                return true;
+            }
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw new QueryService.Failed("Failed to read response", e);
+        }
+        close();
+        if (collected != null)
+            completionListener.accept(collected);
+        return false;
+    }
+
+    @Override
+    public TimeSeriesPoint next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        try {
+            return next;
+        } finally {
+            next = null;
+        }
+    }
+
+    @Override
+    public void close() {
+        if (closed)
+            return;
+        closed = true;
+        try {
+            parser.close();
+        } catch (IOException e) {
+            // Connection will not be reused
+        }
+    }
+
+    /**
+     * Parses the object starting at the current token.
+     */
+    static TimeSeriesPoint parse(JsonParser parser) throws IOException {
+        TimeSeriesPoint.Builder point = timeSeriesPoint();
+        while (parser.nextToken() == FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            switch (field) {
+                case "timestamp":
+                    point.timestamp(value == VALUE_NUMBER_INT
+                            ? ZonedDateTime.ofInstant(Instant.ofEpochMilli(parser.getLongValue()), ZoneOffset.UTC)
+                            : ZonedDateTime.parse(parser.getText()));
+                    break;
+                case "measurements":
+                    while (value == START_OBJECT && parser.nextToken() == FIELD_NAME) {
+                        String measurementId = parser.getCurrentName();
+                        parser.nextToken();
+                        point.measurement(measurementId, parser.getLongValue());
+                    }
+                    break;
+                case "categories":
+                    while (value == START_OBJECT && parser.nextToken() == FIELD_NAME) {
+                        String key = parser.getCurrentName();
+                        parser.nextToken();
+                        point.category(key, parser.getText());
+                    }
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+        }
+        return point.build();
+    }
+
+}
@@ -0,0 +1,46 @@
+package no.difi.statistics.query.client;
+
+import no.difi.statistics.query.client.model.TimeSeriesPoint;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the most recently used responses, bounded by the total number of points held.
+ */
+public class LruQueryCache implements QueryCache {
+
+    private final long maxPoints;
+    private long points;
+    private final LinkedHashMap<String, List<TimeSeriesPoint>> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    public LruQueryCache(long maxPoints) {
+        this.maxPoints = maxPoints;
+    }
+
+    @Override
+    public synchronized List<TimeSeriesPoint> get(String key) {
+        return entries.get(key);
+    }
+
+    @Override
+    public long maxPoints() {
+        return maxPoints;
+    }
+
+    @Override
+    public synchronized void put(String key, List<TimeSeriesPoint> value) {
+        if (value.size() > maxPoints)
+            return;
+        List<TimeSeriesPoint> replaced = entries.put(key, value);
+        points += value.size() - (replaced != null ? replaced.size() : 0);
+        Iterator<Map.Entry<String, List<TimeSeriesPoint>>> eldest = entries.entrySet().iterator();
+        while (points > maxPoints) {
+            points -= eldest.next().getValue().size();
+            eldest.remove();
+        }
+    }
+
+}
@@ -0,0 +1,26 @@
+package no.difi.statistics.query.client;
+
+import no.difi.statistics.query.client.model.TimeSeriesPoint;
+
+import java.util.List;
+
+/**
+ * Cache of responses for time ranges that are closed, i.e. ending in the past. Keys identify the complete request.
+ *
+ * @see LruQueryCache
+ */
+public interface QueryCache {
+
+    /**
+     * @return the cached points, or null if none
+     */
+    List<TimeSeriesPoint> get(String key);
+
+    void put(String key, List<TimeSeriesPoint> points);
+
+    /**
+     * @return the largest number of points the cache will keep for a single key
+     */
+    long maxPoints();
+
+}
@@ -0,0 +1,279 @@
+package no.difi.statistics.query.client;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import no.difi.statistics.query.client.model.MeasurementDistance;
+import no.difi.statistics.query.client.model.PercentileFilter;
+import no.difi.statistics.query.client.model.QueryFilter;
+import no.difi.statistics.query.client.model.TimeSeriesDefinition;
+import no.difi.statistics.query.client.model.TimeSeriesPoint;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Scanner;
+
+import static com.fasterxml.jackson.core.JsonToken.*;
+import static java.net.HttpURLConnection.HTTP_OK;
+import static java.time.format.DateTimeFormatter.ISO_OFFSET_DATE_TIME;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static java.util.stream.Collectors.joining;
+import static no.difi.statistics.query.client.model.TimeSeriesDefinition.timeSeriesDefinition;
+
+/**
+ * Client for the query API. Connections are kept alive and reused between requests by the JDK's HTTP connection
+ * cache (its size is set with the system property <code>http.maxConnections</code>), which requires every response
+ * to be read to the end or closed.
+ */
+public class QueryClient implements QueryService {
+
+    private final JsonFactory jsonFactory = new JsonFactory();
+    private final URL baseUrl;
+    private final int readTimeoutMillis;
+    private final int connectionTimeoutMillis;
+    private final QueryCache cache;
+
+    public QueryClient(URL baseURL, int readTimeoutMillis, int connectionTimeoutMillis) {
+        this(baseURL, readTimeoutMillis, connectionTimeoutMillis, null);
+    }
+
+    /**
+     * @param cache cache for responses to queries with closed time ranges, or null
+     */
+    public QueryClient(URL baseURL, int readTimeoutMillis, int connectionTimeoutMillis, QueryCache cache) {
+        this.baseUrl = baseURL;
+        this.readTimeoutMillis = readTimeoutMillis;
+        this.connectionTimeoutMillis = connectionTimeoutMillis;
+        this.cache = cache;
+    }
+
+    @Override
+    public List<TimeSeriesDefinition> availableTimeSeries() {
+        try (JsonParser parser = get(url(baseUrl + "/meta"))) {
+            List<TimeSeriesDefinition> definitions = new ArrayList<>();
+            if (parser.nextToken() != START_ARRAY)
+                throw new Failed("Expected an array of time series definitions");
+            while (parser.nextToken() == START_OBJECT) {
+                Map<String, String> fields = new LinkedHashMap<>();
+                while (parser.nextToken() == FIELD_NAME) {
+                    String field = parser.getCurrentName();
+                    parser.nextToken();
+                    fields.put(field, parser.getText());
+                    parser.skipChildren();
+                }
+                definitions.add(timeSeriesDefinition()
+                        .owner(fields.get("owner"))
+                        .name(fields.get("name"))
+                        .distance(MeasurementDistance.valueOf(fields.get("distance"))));
+            }
+            return definitions;
+        } catch (IOException e) {
+            throw new Failed("Failed to read response", e);
+        }
+    }
+
+    @Override
+    public TimeSeriesPoints query(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter) {
+        return points(url(seriesDefinition, "", parameters(queryFilter)), queryFilter);
+    }
+
+    @Override
+    public Optional<TimeSeriesPoint> last(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter) {
+        return point(url(seriesDefinition, "/last", parameters(queryFilter)), queryFilter);
+    }
+
+    @Override
+    public TimeSeriesPoints lastHistogram(TimeSeriesDefinition seriesDefinition, MeasurementDistance targetDistance, QueryFilter queryFilter) {
+        return points(url(seriesDefinition, "/last/" + targetDistance, parameters(queryFilter)), queryFilter);
+    }
+
+    @Override
+    public Optional<TimeSeriesPoint> sum(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter) {
+        return point(url(seriesDefinition, "/sum", parameters(queryFilter)), queryFilter);
+    }
+
+    @Override
+    public TimeSeriesPoints sumHistogram(TimeSeriesDefinition seriesDefinition, MeasurementDistance targetDistance, QueryFilter queryFilter) {
+        return points(url(seriesDefinition, "/sum/" + targetDistance, parameters(queryFilter)), queryFilter);
+    }
+
+    @Override
+    public TimeSeriesPoints cardinalityHistogram(TimeSeriesDefinition seriesDefinition, MeasurementDistance targetDistance, String categoryKey, QueryFilter queryFilter) {
+        Map<String, String> parameters = parameters(queryFilter);
+        parameters.put("categoryKey", categoryKey);
+        return points(url(seriesDefinition, "/cardinality/" + targetDistance, parameters), queryFilter);
+    }
+
+    @Override
+    public TimeSeriesPoints percentile(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter, PercentileFilter percentileFilter) {
+        Map<String, String> parameters = parameters(queryFilter);
+        parameters.put("percentile", Integer.toString(percentileFilter.getPercentile()));
+        parameters.put("measurementId", percentileFilter.getMeasurementId());
+        parameters.put("operator", percentileFilter.getOperator().name());
+        return points(url(seriesDefinition, "/percentile", parameters), queryFilter);
+    }
+
+    private TimeSeriesPoints points(URL url, QueryFilter queryFilter) {
+        String cacheKey = url.toString();
+        if (cacheable(queryFilter)) {
+            List<TimeSeriesPoint> cached = cache.get(cacheKey);
+            if (cached != null)
+                return new CachedTimeSeriesPoints(cached);
+            return new JsonTimeSeriesPoints(get(url), points -> cache.put(cacheKey, points), cache.maxPoints());
+        }
+        return new JsonTimeSeriesPoints(get(url), null, 0);
+    }
+
+    private Optional<TimeSeriesPoint> point(URL url, QueryFilter queryFilter) {
+        String cacheKey = url.toString();
+        if (cacheable(queryFilter)) {
+            List<TimeSeriesPoint> cached = cache.get(cacheKey);
+            if (cached != null)
+                return cached.stream().findFirst();
+        }
+        Optional<TimeSeriesPoint> point;
+        try (JsonParser parser = get(url)) {
+            JsonToken token = parser.nextToken();
+            if (token == null || token == VALUE_NULL)
+                point = Optional.empty();
+            else if (token == START_OBJECT)
+                point = Optional.of(JsonTimeSeriesPoints.parse(parser));
+            else
+                throw new Failed("Expected a point, got " + token);
+        } catch (IOException e) {
+            throw new Failed("Failed to read response", e);
+        }
+        if (cacheable(queryFilter))
+            cache.put(cacheKey, point.map(p -> singletonList(p)).orElse(emptyList()));
+        return point;
+    }
+
+    private boolean cacheable(QueryFilter queryFilter) {
+        return cache != null && queryFilter.closedBefore(ZonedDateTime.now());
+    }
+
+    private JsonParser get(URL url) {
+        HttpURLConnection connection;
+        try {
+            connection = (HttpURLConnection) url.openConnection();
+            connection.setConnectTimeout(connectionTimeoutMillis);
+            connection.setReadTimeout(readTimeoutMillis);
+            connection.setRequestProperty("Accept", "application/json");
+            connection.connect();
+        } catch (IOException e) {
+            throw new ConnectFailed(e);
+        }
+        try {
+            if (connection.getResponseCode() != HTTP_OK)
+                throw new Failed(String.format(
+                        "Failed to get response from query service [%d %s] on URL %s: %s",
+                        connection.getResponseCode(),
+                        connection.getResponseMessage(),
+                        url,
+                        errorMessage(connection)
+                ));
+            return jsonFactory.createParser(connection.getInputStream());
+        } catch (IOException e) {
+            throw new Failed("Failed to get response from query service on URL " + url, e);
+        }
+    }
+
+    /**
+     * Reads the error response to the end, so the connection can be reused.
+     */
+    private static String errorMessage(HttpURLConnection connection) {
+        try (InputStream errorStream = connection.getErrorStream()) {
+            if (errorStream == null)
+                return "";
+            Scanner scanner = new Scanner(errorStream, "UTF-8").useDelimiter("\\A");
+            return scanner.hasNext() ? scanner.next() : "";
+        } catch (IOException e) {
+            return "";
+        }
+    }
+
+    private Map<String, String> parameters(QueryFilter queryFilter) {
+        Map<String, String> parameters = new LinkedHashMap<>();
+        queryFilter.from().ifPresent(from -> parameters.put("from", from.format(ISO_OFFSET_DATE_TIME)));
+        queryFilter.to().ifPresent(to -> parameters.put("to", to.format(ISO_OFFSET_DATE_TIME)));
+        if (!queryFilter.categories().isEmpty())
+            parameters.put(
+                    "categories",
+                    queryFilter.categories().entrySet().stream().map(e -> e.getKey() + "=" + e.getValue()).collect(joining(","))
+            );
+        queryFilter.perCategory().ifPresent(perCategory -> parameters.put("perCategory", perCategory));
+        return parameters;
+    }
+
+    private URL url(TimeSeriesDefinition seriesDefinition, String operation, Map<String, String> parameters) {
+        StringBuilder url = new StringBuilder(String.format(
+                "%s/%s/%s/%s%s",
+                baseUrl,
+                encode(seriesDefinition.getOwner()),
+                encode(seriesDefinition.getName()),
+                seriesDefinition.getDistance(),
+                operation
+        ));
+        char separator = '?';
+        for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+            url.append(separator).append(parameter.getKey()).append('=').append(encode(parameter.getValue()));
+            separator = '&';
+        }
+        return url(url.toString());
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8").replace("+", "%20");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static URL url(String s) {
+        try {
+            return new URL(s);
+        } catch (MalformedURLException e) {
+            throw new MalformedUrl(e);
+        }
+    }
+
+    private static class CachedTimeSeriesPoints implements TimeSeriesPoints {
+
+        private final Iterator<TimeSeriesPoint> points;
+
+        CachedTimeSeriesPoints(List<TimeSeriesPoint> points) {
+            this.points = points.iterator();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return points.hasNext();
+        }
+
+        @Override
+        public TimeSeriesPoint next() {
+            return points.next();
+        }
+
+        @Override
+        public void close() {
+            // Nothing to release
+        }
+
+    }
+
+}
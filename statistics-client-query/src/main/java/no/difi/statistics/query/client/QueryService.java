@@ -0,0 +1,55 @@
+package no.difi.statistics.query.client;
+
+import no.difi.statistics.query.client.model.MeasurementDistance;
+import no.difi.statistics.query.client.model.PercentileFilter;
+import no.difi.statistics.query.client.model.QueryFilter;
+import no.difi.statistics.query.client.model.TimeSeriesDefinition;
+import no.difi.statistics.query.client.model.TimeSeriesPoint;
+
+import java.util.List;
+import java.util.Optional;
+
+public interface QueryService {
+
+    List<TimeSeriesDefinition> availableTimeSeries();
+
+    TimeSeriesPoints query(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter);
+
+    Optional<TimeSeriesPoint> last(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter);
+
+    TimeSeriesPoints lastHistogram(TimeSeriesDefinition seriesDefinition, MeasurementDistance targetDistance, QueryFilter queryFilter);
+
+    Optional<TimeSeriesPoint> sum(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter);
+
+    TimeSeriesPoints sumHistogram(TimeSeriesDefinition seriesDefinition, MeasurementDistance targetDistance, QueryFilter queryFilter);
+
+    TimeSeriesPoints cardinalityHistogram(TimeSeriesDefinition seriesDefinition, MeasurementDistance targetDistance, String categoryKey, QueryFilter queryFilter);
+
+    TimeSeriesPoints percentile(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter, PercentileFilter percentileFilter);
+
+    class Failed extends RuntimeException {
+
+        Failed(String message) {
+            super(message);
+        }
+
+        Failed(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    class ConnectFailed extends Failed {
+
+        ConnectFailed(Throwable cause) {
+            super("Failed to connect", cause);
+        }
+
+    }
+
+    class MalformedUrl extends Failed {
+        MalformedUrl(Throwable cause) {
+            super("Malformed URL", cause);
+        }
+    }
+
+}
@@ -0,0 +1,40 @@
+package no.difi.statistics.query.client;
+
+import no.difi.statistics.query.client.model.TimeSeriesPoint;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import static java.util.Spliterator.NONNULL;
+import static java.util.Spliterator.ORDERED;
+
+/**
+ * Points of a query response, in the order returned by the query service. Points are parsed as they are iterated,
+ * so large responses are never held in memory. The response is released when the last point has been read; callers
+ * that stop early must {@link #close()} it.
+ */
+public interface TimeSeriesPoints extends Iterator<TimeSeriesPoint>, AutoCloseable {
+
+    @Override
+    void close();
+
+    default Stream<TimeSeriesPoint> stream() {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, ORDERED | NONNULL), false)
+                .onClose(this::close);
+    }
+
+    default List<TimeSeriesPoint> toList() {
+        try {
+            List<TimeSeriesPoint> points = new ArrayList<>();
+            forEachRemaining(points::add);
+            return points;
+        } finally {
+            close();
+        }
+    }
+
+}
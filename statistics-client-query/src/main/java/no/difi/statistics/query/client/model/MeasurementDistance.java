@@ -0,0 +1,9 @@
+package no.difi.statistics.query.client.model;
+
+public enum MeasurementDistance {
+    minutes,
+    hours,
+    days,
+    months,
+    years
+}
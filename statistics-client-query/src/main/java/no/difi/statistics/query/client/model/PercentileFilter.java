@@ -0,0 +1,27 @@
+package no.difi.statistics.query.client.model;
+
+public class PercentileFilter {
+
+    private final int percentile;
+    private final String measurementId;
+    private final RelationalOperator operator;
+
+    public PercentileFilter(int percentile, String measurementId, RelationalOperator operator) {
+        this.percentile = percentile;
+        this.measurementId = measurementId;
+        this.operator = operator;
+    }
+
+    public int getPercentile() {
+        return percentile;
+    }
+
+    public String getMeasurementId() {
+        return measurementId;
+    }
+
+    public RelationalOperator getOperator() {
+        return operator;
+    }
+
+}
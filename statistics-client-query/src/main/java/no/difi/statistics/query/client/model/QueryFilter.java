@@ -0,0 +1,82 @@
+package no.difi.statistics.query.client.model;
+
+import java.time.ZonedDateTime;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+
+import static java.util.Collections.unmodifiableMap;
+
+public class QueryFilter {
+
+    private ZonedDateTime from;
+    private ZonedDateTime to;
+    private Map<String, String> categories = new LinkedHashMap<>();
+    private String perCategory;
+
+    private QueryFilter() {
+        // Use builder
+    }
+
+    public Optional<ZonedDateTime> from() {
+        return Optional.ofNullable(from);
+    }
+
+    public Optional<ZonedDateTime> to() {
+        return Optional.ofNullable(to);
+    }
+
+    public Map<String, String> categories() {
+        return unmodifiableMap(categories);
+    }
+
+    public Optional<String> perCategory() {
+        return Optional.ofNullable(perCategory);
+    }
+
+    /**
+     * A range is closed when its end is in the past. Results for closed ranges do not change unless data is
+     * ingested after the fact.
+     */
+    public boolean closedBefore(ZonedDateTime time) {
+        return to != null && to.isBefore(time);
+    }
+
+    public static Builder queryFilter() {
+        return new Builder();
+    }
+
+    public static QueryFilter all() {
+        return new Builder().build();
+    }
+
+    public static class Builder {
+        private QueryFilter instance = new QueryFilter();
+
+        public Builder range(ZonedDateTime from, ZonedDateTime to) {
+            instance.from = from;
+            instance.to = to;
+            return this;
+        }
+
+        public Builder category(String key, String value) {
+            instance.categories.put(key, value);
+            return this;
+        }
+
+        public Builder perCategory(String categoryKey) {
+            instance.perCategory = categoryKey;
+            return this;
+        }
+
+        public QueryFilter build() {
+            try {
+                return instance;
+            } finally {
+                instance = null;
+            }
+        }
+
+    }
+
+}
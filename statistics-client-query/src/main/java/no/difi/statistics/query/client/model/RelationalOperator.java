@@ -0,0 +1,5 @@
+package no.difi.statistics.query.client.model;
+
+public enum RelationalOperator {
+    gt,lt,gte,lte
+}
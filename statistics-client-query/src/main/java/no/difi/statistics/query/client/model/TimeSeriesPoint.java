@@ -0,0 +1,112 @@
+package no.difi.statistics.query.client.model;
+
+import java.time.ZonedDateTime;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+import static java.lang.String.format;
+import static java.util.Collections.unmodifiableMap;
+import static java.util.stream.Collectors.joining;
+
+public class TimeSeriesPoint {
+
+    private ZonedDateTime timestamp;
+    private Map<String, Long> measurements = new HashMap<>();
+    private Map<String, String> categories;
+
+    private TimeSeriesPoint() {
+        // Use builder
+    }
+
+    public ZonedDateTime getTimestamp() {
+        return timestamp;
+    }
+
+    public Map<String, Long> getMeasurements() {
+        return unmodifiableMap(measurements);
+    }
+
+    public Optional<Long> getMeasurement(String name) {
+        return Optional.ofNullable(measurements.get(name));
+    }
+
+    public Optional<Map<String, String>> getCategories() {
+        return categories == null ? Optional.empty() : Optional.of(unmodifiableMap(categories));
+    }
+
+    public static Builder timeSeriesPoint() {
+        return new Builder();
+    }
+
+    public static class Builder {
+        private TimeSeriesPoint instance;
+        private Map<String, String> categories = new HashMap<>();
+
+        Builder() {
+            this.instance = new TimeSeriesPoint();
+        }
+
+        public Builder timestamp(ZonedDateTime timestamp) {
+            instance.timestamp = timestamp;
+            return this;
+        }
+
+        public Builder measurement(String measurementId, long measurement) {
+            instance.measurements.put(measurementId, measurement);
+            return this;
+        }
+
+        public Builder category(String key, String value) {
+            categories.put(key, value);
+            return this;
+        }
+
+        public TimeSeriesPoint build() {
+            if (instance.timestamp == null) throw new IllegalArgumentException("timestamp");
+            if (!categories.isEmpty()) {
+                instance.categories = categories;
+            }
+            try {
+                return instance;
+            } finally {
+                instance = null;
+            }
+        }
+
+    }
+
+    @Override
+    public String toString() {
+        return "TimeSeriesPoint{" +
+                "timestamp=" + timestamp +
+                ", measurements=" + measurements +
+                (categories != null ? format(", categories=%s", categoriesAsString()) : "") +
+        '}';
+    }
+
+    private String categoriesAsString() {
+        return categories.entrySet().stream().map(e -> e.getKey() + "=" + e.getValue()).sorted().collect(joining("&"));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        TimeSeriesPoint that = (TimeSeriesPoint) o;
+
+        if (!timestamp.isEqual(that.timestamp)) return false;
+        if (!measurements.equals(that.measurements)) return false;
+        return categories != null ? categories.equals(that.categories) : that.categories == null;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = timestamp.toInstant().hashCode();
+        result = 31 * result + measurements.hashCode();
+        result = 31 * result + (categories != null ? categories.hashCode() : 0);
+        return result;
+    }
+
+}
@@ -0,0 +1,197 @@
+package no.difi.statistics.query.client;
+
+import com.github.tomakehurst.wiremock.client.ResponseDefinitionBuilder;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import no.difi.statistics.query.client.model.PercentileFilter;
+import no.difi.statistics.query.client.model.TimeSeriesDefinition;
+import no.difi.statistics.query.client.model.TimeSeriesPoint;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.List;
+import java.util.Optional;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static no.difi.statistics.query.client.model.MeasurementDistance.days;
+import static no.difi.statistics.query.client.model.MeasurementDistance.hours;
+import static no.difi.statistics.query.client.model.MeasurementDistance.minutes;
+import static no.difi.statistics.query.client.model.QueryFilter.all;
+import static no.difi.statistics.query.client.model.QueryFilter.queryFilter;
+import static no.difi.statistics.query.client.model.RelationalOperator.gt;
+import static no.difi.statistics.query.client.model.TimeSeriesDefinition.timeSeriesDefinition;
+import static no.difi.statistics.query.client.model.TimeSeriesPoint.timeSeriesPoint;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class QueryClientTest {
+
+    private static final String owner = "999888777";
+    private final ZonedDateTime aTimestamp = ZonedDateTime.of(2016, 3, 3, 0, 0, 0, 0, ZoneOffset.UTC);
+    private final TimeSeriesDefinition aSeries = timeSeriesDefinition().owner(owner).name("test").distance(hours);
+
+    @Rule
+    public WireMockRule wireMockRule = new WireMockRule(wireMockConfig().bindAddress("localhost").dynamicPort());
+    @Rule
+    public ExpectedException expectedEx = ExpectedException.none();
+
+    private QueryClient queryClient;
+
+    @Before
+    public void before() throws MalformedURLException {
+        queryClient = new QueryClient(new URL("http://localhost:" + wireMockRule.port()), 2000, 2000);
+    }
+
+    @Test
+    public void shouldParsePointsFromQuery() {
+        stubFor(get(urlEqualTo("/999888777/test/hours")).willReturn(okJson(
+                "[{\"timestamp\":\"2016-03-03T00:00:00Z\",\"measurements\":{\"a\":1,\"b\":2}}," +
+                "{\"timestamp\":\"2016-03-03T01:00:00Z\",\"measurements\":{\"a\":3},\"categories\":{\"TE\":\"x\"},\"extra\":[1,{}]}]"
+        )));
+        List<TimeSeriesPoint> points = queryClient.query(aSeries, all()).toList();
+        assertEquals(asList(
+                timeSeriesPoint().timestamp(aTimestamp).measurement("a", 1).measurement("b", 2).build(),
+                timeSeriesPoint().timestamp(aTimestamp.plusHours(1)).measurement("a", 3).category("TE", "x").build()
+        ), points);
+    }
+
+    @Test
+    public void shouldParsePointsLazily() {
+        stubFor(get(urlEqualTo("/999888777/test/hours")).willReturn(okJson(
+                "[{\"timestamp\":\"2016-03-03T00:00:00Z\",\"measurements\":{\"a\":1}},{\"timestamp\":\"broken\"}]"
+        )));
+        try (TimeSeriesPoints points = queryClient.query(aSeries, all())) {
+            assertEquals(1L, (long) points.next().getMeasurement("a").orElse(0L));
+        }
+    }
+
+    @Test
+    public void shouldSendFilterAsParameters() {
+        stubFor(get(urlPathEqualTo("/999888777/test/hours/sum/days")).willReturn(okJson("[]")));
+        queryClient.sumHistogram(
+                aSeries,
+                days,
+                queryFilter().range(aTimestamp, aTimestamp.plusDays(1)).category("TE", "a b").category("TL", "c").build()
+        ).toList();
+        verify(getRequestedFor(urlEqualTo(
+                "/999888777/test/hours/sum/days?from=2016-03-03T00%3A00%3A00Z&to=2016-03-04T00%3A00%3A00Z&categories=TE%3Da%20b%2CTL%3Dc"
+        )));
+    }
+
+    @Test
+    public void shouldSendCategoryKeyForCardinality() {
+        stubFor(get(urlPathEqualTo("/999888777/test/hours/cardinality/days")).willReturn(okJson(
+                "[{\"timestamp\":\"2016-03-03T00:00:00Z\",\"measurements\":{\"TE\":2}}]"
+        )));
+        List<TimeSeriesPoint> points = queryClient.cardinalityHistogram(aSeries, days, "TE", all()).toList();
+        assertEquals(singletonList(timeSeriesPoint().timestamp(aTimestamp).measurement("TE", 2).build()), points);
+        verify(getRequestedFor(urlEqualTo("/999888777/test/hours/cardinality/days?categoryKey=TE")));
+    }
+
+    @Test
+    public void shouldSendPercentileParameters() {
+        stubFor(get(urlPathEqualTo("/999888777/test/minutes/percentile")).willReturn(okJson("[]")));
+        TimeSeriesPoints points = queryClient.percentile(
+                timeSeriesDefinition().owner(owner).name("test").distance(minutes),
+                all(),
+                new PercentileFilter(90, "a", gt)
+        );
+        assertFalse(points.hasNext());
+        verify(getRequestedFor(urlEqualTo("/999888777/test/minutes/percentile?percentile=90&measurementId=a&operator=gt")));
+    }
+
+    @Test
+    public void shouldReturnLastPoint() {
+        stubFor(get(urlEqualTo("/999888777/test/hours/last")).willReturn(okJson(
+                "{\"timestamp\":\"2016-03-03T00:00:00Z\",\"measurements\":{\"a\":1}}"
+        )));
+        assertEquals(
+                Optional.of(timeSeriesPoint().timestamp(aTimestamp).measurement("a", 1).build()),
+                queryClient.last(aSeries, all())
+        );
+    }
+
+    @Test
+    public void shouldReturnEmptyWhenNoLastPoint() {
+        stubFor(get(urlEqualTo("/999888777/test/hours/last")).willReturn(aResponse().withStatus(200)));
+        assertFalse(queryClient.last(aSeries, all()).isPresent());
+    }
+
+    @Test
+    public void shouldReturnAvailableTimeSeries() {
+        stubFor(get(urlEqualTo("/meta")).willReturn(okJson(
+                "[{\"name\":\"test\",\"distance\":\"hours\",\"owner\":\"999888777\"}]"
+        )));
+        assertEquals(singletonList(aSeries), queryClient.availableTimeSeries());
+    }
+
+    @Test
+    public void shouldFailWithMessageFromQueryService() {
+        stubFor(get(urlEqualTo("/999888777/test/hours")).willReturn(aResponse().withStatus(500).withBody("Query failed badly")));
+        expectedEx.expect(QueryService.Failed.class);
+        expectedEx.expectMessage("Query failed badly");
+        queryClient.query(aSeries, all());
+    }
+
+    @Test
+    public void shouldReuseResponsesForClosedRanges() throws MalformedURLException {
+        queryClient = new QueryClient(new URL("http://localhost:" + wireMockRule.port()), 2000, 2000, new LruQueryCache(1000));
+        stubFor(get(urlPathEqualTo("/999888777/test/hours")).willReturn(okJson(
+                "[{\"timestamp\":\"2016-03-03T00:00:00Z\",\"measurements\":{\"a\":1}}]"
+        )));
+        List<TimeSeriesPoint> first = queryClient.query(aSeries, queryFilter().range(aTimestamp, aTimestamp.plusDays(1)).build()).toList();
+        List<TimeSeriesPoint> second = queryClient.query(aSeries, queryFilter().range(aTimestamp, aTimestamp.plusDays(1)).build()).toList();
+        assertEquals(first, second);
+        verify(1, getRequestedFor(urlPathEqualTo("/999888777/test/hours")));
+    }
+
+    @Test
+    public void shouldNotCacheResponsesLargerThanTheCache() throws MalformedURLException {
+        queryClient = new QueryClient(new URL("http://localhost:" + wireMockRule.port()), 2000, 2000, new LruQueryCache(1));
+        stubFor(get(urlPathEqualTo("/999888777/test/hours")).willReturn(okJson(
+                "[{\"timestamp\":\"2016-03-03T00:00:00Z\",\"measurements\":{\"a\":1}}," +
+                        "{\"timestamp\":\"2016-03-03T01:00:00Z\",\"measurements\":{\"a\":2}}]"
+        )));
+        assertEquals(2, queryClient.query(aSeries, queryFilter().range(aTimestamp, aTimestamp.plusDays(1)).build()).toList().size());
+        assertEquals(2, queryClient.query(aSeries, queryFilter().range(aTimestamp, aTimestamp.plusDays(1)).build()).toList().size());
+        verify(2, getRequestedFor(urlPathEqualTo("/999888777/test/hours")));
+    }
+
+    @Test
+    public void shouldNotCacheOpenRanges() throws MalformedURLException {
+        queryClient = new QueryClient(new URL("http://localhost:" + wireMockRule.port()), 2000, 2000, new LruQueryCache(1000));
+        stubFor(get(urlPathEqualTo("/999888777/test/hours/sum")).willReturn(okJson(
+                "{\"timestamp\":\"2016-03-03T00:00:00Z\",\"measurements\":{\"a\":1}}"
+        )));
+        assertTrue(queryClient.sum(aSeries, queryFilter().range(aTimestamp, null).build()).isPresent());
+        assertTrue(queryClient.sum(aSeries, queryFilter().range(aTimestamp, null).build()).isPresent());
+        verify(2, getRequestedFor(urlPathEqualTo("/999888777/test/hours/sum")));
+    }
+
+    @Test
+    public void shouldEvictLeastRecentlyUsedResponses() {
+        LruQueryCache cache = new LruQueryCache(2);
+        TimeSeriesPoint point = timeSeriesPoint().timestamp(aTimestamp).measurement("a", 1).build();
+        cache.put("a", singletonList(point));
+        cache.put("b", singletonList(point));
+        cache.get("a");
+        cache.put("c", singletonList(point));
+        assertEquals(singletonList(point), cache.get("a"));
+        assertEquals(null, cache.get("b"));
+        assertEquals(singletonList(point), cache.get("c"));
+    }
+
+    private static ResponseDefinitionBuilder okJson(String body) {
+        return aResponse().withStatus(200).withHeader("Content-Type", "application/json").withBody(body);
+    }
+
+}
@@ -1,10 +1,21 @@
 package no.difi.statistics.elasticsearch;
 
+import no.difi.statistics.model.MeasurementDistance;
 import org.elasticsearch.search.aggregations.AggregatorFactories;
+import org.elasticsearch.search.aggregations.BucketOrder;
+import org.elasticsearch.search.aggregations.bucket.composite.CompositeAggregationBuilder;
+import org.elasticsearch.search.aggregations.bucket.composite.CompositeValuesSourceBuilder;
+import org.elasticsearch.search.aggregations.bucket.composite.DateHistogramValuesSourceBuilder;
+import org.elasticsearch.search.aggregations.bucket.composite.TermsValuesSourceBuilder;
+import org.elasticsearch.search.aggregations.bucket.histogram.DateHistogramInterval;
+import org.elasticsearch.search.aggregations.bucket.terms.IncludeExclude;
 import org.elasticsearch.search.aggregations.bucket.terms.TermsAggregationBuilder;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
+import static org.elasticsearch.search.aggregations.AggregationBuilders.composite;
 import static org.elasticsearch.search.aggregations.AggregationBuilders.sum;
 import static org.elasticsearch.search.aggregations.AggregationBuilders.terms;
 import static org.elasticsearch.search.aggregations.BucketOrder.key;
@@ -14,27 +25,83 @@ public class QueryBuilders {
     private static final String timestampField = "timestamp";
 
     public static TermsAggregationBuilder sumPerTimestampAggregation(String name, List<String> measurementIds) {
-        return summarizeMeasurements(name, measurementIds, null);
-    }
-
-    public static TermsAggregationBuilder summarizeMeasurements(String name, List<String> measurementIds, String categoryKey) {
         return terms(name)
                 .field(timestampField)
                 .size(10_000)
                 .order(key(true))
-                .subAggregations(subAggregation(categoryKey, measurementIds));
+                .subAggregations(sumMeasurements(measurementIds));
+    }
+
+    /**
+     * Composite aggregation summarizing measurements per timestamp, and per value of the category key if given, in
+     * timestamp order. The bucket keys are "timestamp" (epoch milliseconds) and "category". Unlike
+     * {@link #sumPerTimestampAggregation} it has no limit on the number of buckets, but returns them in pages of the
+     * given size.
+     *
+     * @param histogramDistance if set, timestamps are grouped with a date histogram of this distance instead of by
+     *                          term
+     * @param after             the key of the last bucket of the previous page, or null for the first page
+     */
+    public static CompositeAggregationBuilder summarizeMeasurementsPaged(
+            String name,
+            MeasurementDistance histogramDistance,
+            List<String> measurementIds,
+            String categoryKey,
+            int pageSize,
+            Map<String, Object> after
+    ) {
+        List<CompositeValuesSourceBuilder<?>> sources = new ArrayList<>();
+        sources.add(histogramDistance != null
+                ? dateHistogramSource(histogramDistance)
+                : new TermsValuesSourceBuilder(timestampField).field(timestampField));
+        if (categoryKey != null)
+            sources.add(new TermsValuesSourceBuilder("category").field(categoryField(categoryKey)));
+        CompositeAggregationBuilder builder = composite(name, sources).size(pageSize);
+        if (after != null)
+            builder.aggregateAfter(after);
+        measurementIds.forEach(measurementId -> builder.subAggregation(sum(measurementId).field(measurementId)));
+        return builder;
+    }
+
+    private static DateHistogramValuesSourceBuilder dateHistogramSource(MeasurementDistance distance) {
+        DateHistogramValuesSourceBuilder source = new DateHistogramValuesSourceBuilder(timestampField).field(timestampField);
+        switch (distance) {
+            case minutes: return source.fixedInterval(new DateHistogramInterval("1m"));
+            case hours: return source.fixedInterval(new DateHistogramInterval("1h"));
+            case days: return source.fixedInterval(new DateHistogramInterval("1d"));
+            case months: return source.calendarInterval(DateHistogramInterval.MONTH);
+            case years: return source.calendarInterval(DateHistogramInterval.YEAR);
+            default: throw new IllegalArgumentException(distance.toString());
+        }
+    }
+
+    /**
+     * Terms aggregation of the values of the category key with the largest sums of the measurement, heaviest first.
+     * The bucket keys are the category values. As with any terms aggregation ordered by a metric, the result is
+     * approximate when the values are spread over several shards.
+     */
+    public static TermsAggregationBuilder heaviestCategories(String name, String categoryKey, String measurementId, int size) {
+        return terms(name)
+                .field(categoryField(categoryKey))
+                .size(size)
+                .order(BucketOrder.compound(BucketOrder.aggregation("total", false), key(true)))
+                .subAggregation(sum("total").field(measurementId));
+    }
+
+    /**
+     * Terms aggregation of the values of the category key falling in the given one of a number of partitions of the
+     * values, at most the given number of them in order of value. The bucket keys are the category values.
+     */
+    public static TermsAggregationBuilder categoryPartition(String name, String categoryKey, int partition, int partitions, int size) {
+        return terms(name)
+                .field(categoryField(categoryKey))
+                .includeExclude(new IncludeExclude(partition, partitions))
+                .size(size)
+                .order(key(true));
     }
 
-    private static AggregatorFactories.Builder subAggregation(String categoryKey, List<String> measurementIds) {
-        if (categoryKey == null)
-            return sumMeasurements(measurementIds);
-        return AggregatorFactories.builder().addAggregator(
-                terms("perCategory:" + categoryKey)
-                        .field("category." + categoryKey + ".keyword")
-                        .size(10_000)
-                        .order(key(true))
-                        .subAggregations(sumMeasurements(measurementIds))
-        );
+    public static String categoryField(String categoryKey) {
+        return "category." + categoryKey + ".keyword";
     }
 
     private static AggregatorFactories.Builder sumMeasurements(List<String> measurementIds) {
@@ -15,6 +15,7 @@ import org.springframework.security.core.annotation.AuthenticationPrincipal;
 import org.springframework.security.oauth2.jwt.Jwt;
 import org.springframework.validation.annotation.Validated;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
 import org.springframework.web.server.ResponseStatusException;
 import org.springframework.web.servlet.view.RedirectView;
 import springfox.documentation.annotations.ApiIgnore;
@@ -102,12 +103,23 @@ public class IngestRestController {
             @PathVariable String seriesName,
             @ApiParam(value = DISTANCE_EXPLANATION, required = true)
             @PathVariable MeasurementDistance distance,
+            @ApiIgnore WebRequest request,
             HttpServletResponse response
     ) {
         TimeSeriesPoint lastPoint = ingestService.last(TimeSeriesDefinition.builder().name(seriesName).distance(distance).owner(owner));
+        if (request.checkNotModified(entityTag(lastPoint)))
+            return null;
         if (lastPoint == null)
             response.setStatus(HttpStatus.NO_CONTENT.value());
         return lastPoint;
     }
 
+    /**
+     * Points are identified by their timestamp within a series, so the timestamp of the last point is a sufficient
+     * validator.
+     */
+    private static String entityTag(TimeSeriesPoint lastPoint) {
+        return lastPoint == null ? "empty" : Long.toString(lastPoint.getTimestamp().toInstant().toEpochMilli());
+    }
+
 }
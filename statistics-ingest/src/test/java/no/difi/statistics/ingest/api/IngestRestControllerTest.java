@@ -162,6 +162,30 @@ public class IngestRestControllerTest {
                 .andExpect(MockMvcResultMatchers.content().string(""));
     }
 
+    @Test
+    public void whenRequestingLastPointThenEntityTagIsTimestampOfPoint() throws Exception {
+        when(service.last(any(TimeSeriesDefinition.class))).thenReturn(aPoint());
+        mockMvc.perform(request().distance("minutes").last())
+                .andExpect(status().is(HttpStatus.OK.value()))
+                .andExpect(header().string("ETag", equalTo("\"" + aPoint().getTimestamp().toInstant().toEpochMilli() + "\"")));
+    }
+
+    @Test
+    public void whenRequestingLastPointWithMatchingEntityTagThenExpectNotModified() throws Exception {
+        when(service.last(any(TimeSeriesDefinition.class))).thenReturn(aPoint());
+        String entityTag = "\"" + aPoint().getTimestamp().toInstant().toEpochMilli() + "\"";
+        mockMvc.perform(request().distance("minutes").last().header("If-None-Match", entityTag))
+                .andExpect(status().is(HttpStatus.NOT_MODIFIED.value()))
+                .andExpect(MockMvcResultMatchers.content().string(""));
+    }
+
+    @Test
+    public void whenRequestingLastPointWithStaleEntityTagThenExpectPoint() throws Exception {
+        when(service.last(any(TimeSeriesDefinition.class))).thenReturn(aPoint());
+        mockMvc.perform(request().distance("minutes").last().header("If-None-Match", "\"empty\""))
+                .andExpect(status().is(HttpStatus.OK.value()));
+    }
+
     @Test
     public void whenSendingValidHourRequestThenExpectNormalResponse() throws Exception {
         when(jwtDecoder.decode(anyString())).thenReturn(mockJwt(OWNER, SCOPE));
@@ -30,6 +30,10 @@ public class CommandFactory implements ApplicationContextAware {
         return applicationContext.getBean(SumHistogramQuery.Builder.class);
     }
 
+    public CardinalityHistogramQuery.Builder cardinalityHistogram() {
+        return applicationContext.getBean(CardinalityHistogramQuery.Builder.class);
+    }
+
     public SumQuery.Builder sum() {
         return applicationContext.getBean(SumQuery.Builder.class);
     }
@@ -38,12 +42,16 @@ public class CommandFactory implements ApplicationContextAware {
         return applicationContext.getBean(PercentileQuery.Builder.class);
     }
 
+    public MultiSearchQuery.Builder multiSearch() {
+        return applicationContext.getBean(MultiSearchQuery.Builder.class);
+    }
+
     public GetMeasurementIdentifiers.Builder measurementIdentifiers() {
         return applicationContext.getBean(GetMeasurementIdentifiers.Builder.class);
     }
 
-    public AvailableSeriesQuery.Builder availableTimeSeries() {
-        return applicationContext.getBean(AvailableSeriesQuery.Builder.class);
+    public GetSeriesVersion.Builder seriesVersion() {
+        return applicationContext.getBean(GetSeriesVersion.Builder.class);
     }
 
 }
@@ -4,67 +4,137 @@ import no.difi.statistics.model.MeasurementDistance;
 import no.difi.statistics.model.TimeSeriesDefinition;
 import no.difi.statistics.model.TimeSeriesPoint;
 import no.difi.statistics.model.PercentileFilter;
+import no.difi.statistics.query.elasticsearch.InFlightQueries.Operation;
+import no.difi.statistics.query.elasticsearch.commands.MultiSearchQuery;
+import no.difi.statistics.query.model.AvailableTimeSeries;
+import no.difi.statistics.query.model.BatchQuery;
+import no.difi.statistics.query.model.BatchResult;
+import no.difi.statistics.query.model.Deadline;
 import no.difi.statistics.query.model.QueryFilter;
 import no.difi.statistics.query.QueryService;
 
+import java.time.Instant;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionStage;
+import java.util.stream.Stream;
+
+import static java.util.stream.Collectors.toList;
 
 public class ElasticsearchQueryService implements QueryService {
 
     private CommandFactory commandFactory;
+    private SeriesCatalog seriesCatalog;
+    private InFlightQueries inFlightQueries;
 
-    public ElasticsearchQueryService(CommandFactory commandFactory) {
+    public ElasticsearchQueryService(CommandFactory commandFactory, SeriesCatalog seriesCatalog, InFlightQueries inFlightQueries) {
         this.commandFactory = commandFactory;
+        this.seriesCatalog = seriesCatalog;
+        this.inFlightQueries = inFlightQueries;
     }
 
     @Override
-    public List<TimeSeriesDefinition> availableTimeSeries() {
-        return commandFactory.availableTimeSeries().build().execute();
+    public AvailableTimeSeries availableTimeSeries() {
+        return seriesCatalog.available();
     }
 
     @Override
-    public List<TimeSeriesPoint> query(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter) {
+    public CompletionStage<Stream<TimeSeriesPoint>> query(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter) {
         return commandFactory.query()
                 .seriesDefinition(seriesDefinition).queryFilter(queryFilter)
-                .measurementIdentifiersCommand(commandFactory.measurementIdentifiers()).build().execute();
+                .measurementIdentifiersCommand(commandFactory.measurementIdentifiers()).build().streamAsync();
     }
 
     @Override
-    public List<TimeSeriesPoint> query(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter, PercentileFilter filter) {
+    public Stream<TimeSeriesPoint> query(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter, PercentileFilter filter) {
         return commandFactory.percentile()
-                .seriesDefinition(seriesDefinition).queryFilter(queryFilter).percentileFilter(filter).build().execute();
+                .seriesDefinition(seriesDefinition).queryFilter(queryFilter).percentileFilter(filter)
+                .measurementIdentifiersCommand(commandFactory.measurementIdentifiers()).build().stream();
     }
 
     @Override
-    public List<TimeSeriesPoint> lastHistogram(
+    public Stream<TimeSeriesPoint> lastHistogram(
             TimeSeriesDefinition seriesDefinition,
             MeasurementDistance targetDistance,
             QueryFilter queryFilter
     ){
         return commandFactory.lastHistogram()
                 .seriesDefinition(seriesDefinition).targetDistance(targetDistance).queryFilter(queryFilter)
-                .measurementIdentifiersCommand(commandFactory.measurementIdentifiers()).build().execute();
+                .measurementIdentifiersCommand(commandFactory.measurementIdentifiers()).build().execute().stream();
     }
 
     @Override
-    public TimeSeriesPoint sum(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter) {
-        return commandFactory.sum()
-                .seriesDefinition(seriesDefinition).queryFilter(queryFilter)
-                .measurementIdentifiersCommand(commandFactory.measurementIdentifiers()).build().execute();
+    public CompletionStage<TimeSeriesPoint> sum(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter) {
+        return inFlightQueries.perform(Operation.sum, seriesDefinition, null, queryFilter, filter -> commandFactory.sum()
+                .seriesDefinition(seriesDefinition).queryFilter(filter)
+                .measurementIdentifiersCommand(commandFactory.measurementIdentifiers()).build().executeAsync());
     }
 
     @Override
-    public List<TimeSeriesPoint> sumHistogram(TimeSeriesDefinition seriesDefinition, MeasurementDistance targetDistance, QueryFilter queryFilter) {
-        return commandFactory.sumHistogram()
-                .seriesDefinition(seriesDefinition).targetDistance(targetDistance).queryFilter(queryFilter)
-                .measurementIdentifiersCommand(commandFactory.measurementIdentifiers()).build().execute();
+    public CompletionStage<Stream<TimeSeriesPoint>> sumHistogram(TimeSeriesDefinition seriesDefinition, MeasurementDistance targetDistance, QueryFilter queryFilter) {
+        // Collected so that callers sharing the query can each stream the points
+        return inFlightQueries.perform(Operation.sumHistogram, seriesDefinition, targetDistance, queryFilter, filter -> commandFactory.sumHistogram()
+                .seriesDefinition(seriesDefinition).targetDistance(targetDistance).queryFilter(filter)
+                .measurementIdentifiersCommand(commandFactory.measurementIdentifiers()).build().streamAsync()
+                .thenApply(points -> points.collect(toList()))
+        ).thenApply(List::stream);
     }
 
     @Override
-    public TimeSeriesPoint last(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter) {
-        return commandFactory.last()
-                .seriesDefinition(seriesDefinition).queryFilter(queryFilter)
-                .measurementIdentifiersCommand(commandFactory.measurementIdentifiers()).build().execute();
+    public CompletionStage<Stream<TimeSeriesPoint>> cardinalityHistogram(
+            TimeSeriesDefinition seriesDefinition,
+            MeasurementDistance targetDistance,
+            String categoryKey,
+            QueryFilter queryFilter
+    ) {
+        return commandFactory.cardinalityHistogram()
+                .seriesDefinition(seriesDefinition).targetDistance(targetDistance).categoryKey(categoryKey).queryFilter(queryFilter)
+                .build().streamAsync();
+    }
+
+    @Override
+    public CompletionStage<String> version(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter) {
+        return commandFactory.seriesVersion().seriesDefinition(seriesDefinition).queryFilter(queryFilter).executeAsync();
+    }
+
+    @Override
+    public Map<String, BatchResult> batch(List<BatchQuery> queries, Deadline deadline) {
+        MultiSearchQuery.Builder multiSearch = commandFactory.multiSearch().deadline(deadline);
+        for (BatchQuery query : queries) {
+            QueryFilter queryFilter = query.getQueryFilter().withDeadline(deadline);
+            switch (query.getOperation()) {
+                case query:
+                    multiSearch.query(query.getId(), commandFactory.query()
+                            .seriesDefinition(query.getSeriesDefinition()).queryFilter(queryFilter)
+                            .measurementIdentifiersCommand(commandFactory.measurementIdentifiers()).build());
+                    break;
+                case sum:
+                    multiSearch.query(query.getId(), commandFactory.sum()
+                            .seriesDefinition(query.getSeriesDefinition()).queryFilter(queryFilter)
+                            .measurementIdentifiersCommand(commandFactory.measurementIdentifiers()).build());
+                    break;
+                case sumHistogram:
+                    multiSearch.query(query.getId(), commandFactory.sumHistogram()
+                            .seriesDefinition(query.getSeriesDefinition()).targetDistance(query.getTargetDistance())
+                            .queryFilter(queryFilter)
+                            .measurementIdentifiersCommand(commandFactory.measurementIdentifiers()).build());
+                    break;
+                default:
+                    throw new IllegalArgumentException(query.getOperation().toString());
+            }
+        }
+        return multiSearch.build().execute();
+    }
+
+    @Override
+    public CompletionStage<TimeSeriesPoint> last(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter) {
+        return inFlightQueries.perform(Operation.last, seriesDefinition, null, queryFilter, filter -> {
+            // Read before the indices, so that they were listed no earlier than this
+            Instant listedAt = seriesCatalog.listedAt();
+            return commandFactory.last()
+                    .seriesDefinition(seriesDefinition).queryFilter(filter).existingIndices(seriesCatalog.indices(seriesDefinition), listedAt)
+                    .measurementIdentifiersCommand(commandFactory.measurementIdentifiers()).build().executeAsync();
+        });
     }
 
 }
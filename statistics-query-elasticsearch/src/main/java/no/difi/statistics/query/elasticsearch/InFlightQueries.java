@@ -0,0 +1,171 @@
+package no.difi.statistics.query.elasticsearch;
+
+import no.difi.statistics.model.MeasurementDistance;
+import no.difi.statistics.model.TimeSeriesDefinition;
+import no.difi.statistics.query.model.Deadline;
+import no.difi.statistics.query.model.DeadlineExceededException;
+import no.difi.statistics.query.model.QueryFilter;
+
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Queries being performed, so that identical queries requested meanwhile share their execution and result instead of
+ * being performed again. A query is removed when it completes, so a query requested after that is performed anew and
+ * sees points ingested since.
+ * <p>
+ * Queries are identical if they have the same operation, series, target distance and query filter, where time ranges
+ * are compared by instant regardless of time zone. A shared execution runs with the latest deadline of the queries
+ * sharing it, or without one if any of them has none, and is cancelled only when the deadlines of all of them are.
+ * Searches already started when a query joins keep their timeout.
+ * <p>
+ * Queries allowing partial results must also have the same deadline, as their results depend on it.
+ */
+public class InFlightQueries {
+
+    public enum Operation {
+        last,
+        sum,
+        sumHistogram
+    }
+
+    private final Map<Key, Execution<?>> executions = new ConcurrentHashMap<>();
+
+    /**
+     * @param query performs the query with the given filter, if an identical query is not already being performed
+     * @return the result of the query. Each caller gets its own future, so that one caller cancelling or completing it
+     * does not affect the others.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> CompletableFuture<T> perform(
+            Operation operation,
+            TimeSeriesDefinition seriesDefinition,
+            MeasurementDistance targetDistance,
+            QueryFilter queryFilter,
+            Function<QueryFilter, CompletableFuture<T>> query
+    ) {
+        Key key = new Key(operation, seriesDefinition, targetDistance, queryFilter);
+        Deadline deadline = queryFilter.deadline();
+        Execution<T> execution = new Execution<>(deadline != null ? new Deadline(deadline.at(), deadline.allowsPartialResults()) : null);
+        Execution<T> existing = (Execution<T>) executions.putIfAbsent(key, execution);
+        if (existing != null) {
+            existing.extend(deadline);
+            return existing.join(deadline);
+        }
+        CompletableFuture<T> result = execution.join(deadline);
+        try {
+            query.apply(queryFilter.withDeadline(execution.deadline)).whenComplete((value, e) -> {
+                executions.remove(key, execution);
+                if (e != null)
+                    execution.result.completeExceptionally(e);
+                else
+                    execution.result.complete(value);
+            });
+        } catch (RuntimeException e) {
+            executions.remove(key, execution);
+            execution.result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    public int size() {
+        return executions.size();
+    }
+
+    private static class Execution<T> {
+
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+        private final Deadline deadline;
+        private final AtomicInteger callers = new AtomicInteger();
+
+        private Execution(Deadline deadline) {
+            this.deadline = deadline;
+        }
+
+        private void extend(Deadline callerDeadline) {
+            if (deadline == null)
+                return;
+            if (callerDeadline == null)
+                deadline.release();
+            else
+                deadline.extendTo(callerDeadline.at());
+        }
+
+        private CompletableFuture<T> join(Deadline callerDeadline) {
+            CompletableFuture<T> callerResult = result.thenApply(value -> {
+                if (deadline != null && deadline.isPartial() && callerDeadline != null)
+                    callerDeadline.markPartial();
+                return value;
+            });
+            // A caller without a deadline keeps the execution going, as it is never released
+            callers.incrementAndGet();
+            if (deadline == null || callerDeadline == null)
+                return callerResult;
+            callerDeadline.onCancel(() -> {
+                callerResult.completeExceptionally(new DeadlineExceededException("Query was cancelled"));
+                if (callers.decrementAndGet() == 0)
+                    deadline.cancel();
+            });
+            return callerResult;
+        }
+
+    }
+
+    private static class Key {
+
+        private final Operation operation;
+        private final TimeSeriesDefinition seriesDefinition;
+        private final MeasurementDistance targetDistance;
+        private final Map<String, String> categories;
+        private final String perCategory;
+        private final Instant from;
+        private final Instant to;
+        private final boolean partialResults;
+        private final Instant deadline;
+
+        private Key(Operation operation, TimeSeriesDefinition seriesDefinition, MeasurementDistance targetDistance, QueryFilter queryFilter) {
+            this.operation = operation;
+            this.seriesDefinition = seriesDefinition;
+            this.targetDistance = targetDistance;
+            this.categories = queryFilter.categories();
+            this.perCategory = queryFilter.perCategory();
+            this.from = queryFilter.timeRange() != null ? instant(queryFilter.timeRange().from()) : null;
+            this.to = queryFilter.timeRange() != null ? instant(queryFilter.timeRange().to()) : null;
+            this.partialResults = queryFilter.deadline() != null && queryFilter.deadline().allowsPartialResults();
+            this.deadline = partialResults ? queryFilter.deadline().at() : null;
+        }
+
+        private static Instant instant(ZonedDateTime timestamp) {
+            return timestamp != null ? timestamp.toInstant() : null;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return operation == key.operation &&
+                    seriesDefinition.equals(key.seriesDefinition) &&
+                    targetDistance == key.targetDistance &&
+                    categories.equals(key.categories) &&
+                    Objects.equals(perCategory, key.perCategory) &&
+                    Objects.equals(from, key.from) &&
+                    Objects.equals(to, key.to) &&
+                    partialResults == key.partialResults &&
+                    Objects.equals(deadline, key.deadline);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(operation, seriesDefinition, targetDistance, categories, perCategory, from, to, partialResults, deadline);
+        }
+
+    }
+
+}
@@ -0,0 +1,152 @@
+package no.difi.statistics.query.elasticsearch;
+
+import no.difi.statistics.model.TimeSeriesDefinition;
+import no.difi.statistics.query.elasticsearch.commands.AvailableSeriesQuery;
+import no.difi.statistics.query.model.AvailableTimeSeries;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static java.util.Collections.emptyList;
+import static java.util.Collections.unmodifiableList;
+import static java.util.Collections.unmodifiableSortedSet;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * In-memory catalog of the available time series and their indices. The catalog is refreshed in the background, and
+ * only index names not seen before are resolved to series definitions. With a refresh interval of zero the catalog is
+ * instead refreshed on every lookup.
+ * <p>
+ * Each change of the catalog gives it a new generation. Generations count up from a random start, so that those of
+ * different instances or runs of the service hardly ever coincide.
+ */
+public class SeriesCatalog implements AutoCloseable {
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final AvailableSeriesQuery availableSeriesQuery;
+    private final Duration refreshInterval;
+    private final ScheduledExecutorService scheduler;
+    // Only accessed from refresh(), which is synchronized
+    private final Map<String, Optional<TimeSeriesDefinition>> definitionPerIndex = new HashMap<>();
+    private volatile Snapshot snapshot;
+    private volatile Instant listedAt;
+    // Only accessed from refresh(), which is synchronized
+    private long generation = ThreadLocalRandom.current().nextLong();
+
+    public SeriesCatalog(AvailableSeriesQuery availableSeriesQuery, Duration refreshInterval) {
+        this.availableSeriesQuery = availableSeriesQuery;
+        this.refreshInterval = refreshInterval;
+        if (refreshInterval.isZero()) {
+            this.scheduler = null;
+        } else {
+            this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "series-catalog-refresh");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.scheduleWithFixedDelay(this::refreshQuietly, refreshInterval.toMillis(), refreshInterval.toMillis(), MILLISECONDS);
+        }
+    }
+
+    /**
+     * @return all available series, sorted
+     */
+    public List<TimeSeriesDefinition> availableTimeSeries() {
+        return current().definitions;
+    }
+
+    /**
+     * @return the generation of the catalog, which changes whenever the available series may have changed
+     */
+    public long generation() {
+        return current().generation;
+    }
+
+    /**
+     * @return the available series and the generation of the catalog, both from the same refresh
+     */
+    public AvailableTimeSeries available() {
+        Snapshot current = current();
+        return new AvailableTimeSeries(current.definitions, current.generation);
+    }
+
+    /**
+     * @return the names of all indices of the series, sorted
+     */
+    public SortedSet<String> indices(TimeSeriesDefinition seriesDefinition) {
+        return current().indicesPerSeries.getOrDefault(seriesDefinition, Collections.emptySortedSet());
+    }
+
+    /**
+     * @return when the indices of the catalog were last listed, or null if they have not been. Indices created since
+     * may be missing from the catalog. A catalog read after this is at least as recent.
+     */
+    public Instant listedAt() {
+        return listedAt;
+    }
+
+    private Snapshot current() {
+        Snapshot current = snapshot;
+        if (current == null || refreshInterval.isZero())
+            current = refresh();
+        return current;
+    }
+
+    private void refreshQuietly() {
+        try {
+            refresh();
+        } catch (RuntimeException e) {
+            logger.warn("Failed to refresh series catalog. Keeping current catalog.", e);
+        }
+    }
+
+    synchronized Snapshot refresh() {
+        Instant listing = Instant.now();
+        List<String> indexNames = availableSeriesQuery.indexNames();
+        boolean changed = definitionPerIndex.keySet().retainAll(new HashSet<>(indexNames));
+        for (String indexName : indexNames) {
+            if (!definitionPerIndex.containsKey(indexName)) {
+                definitionPerIndex.put(indexName, AvailableSeriesQuery.seriesDefinition(indexName));
+                changed = true;
+            }
+        }
+        if (changed || snapshot == null)
+            snapshot = new Snapshot(definitionPerIndex, ++generation);
+        listedAt = listing;
+        return snapshot;
+    }
+
+    @Override
+    public void close() {
+        if (scheduler != null)
+            scheduler.shutdownNow();
+    }
+
+    private static class Snapshot {
+
+        private final List<TimeSeriesDefinition> definitions;
+        private final Map<TimeSeriesDefinition, SortedSet<String>> indicesPerSeries;
+        private final long generation;
+
+        private Snapshot(Map<String, Optional<TimeSeriesDefinition>> definitionPerIndex, long generation) {
+            Map<TimeSeriesDefinition, SortedSet<String>> indicesPerSeries = new HashMap<>();
+            definitionPerIndex.forEach((indexName, definition) -> definition.ifPresent(d ->
+                    indicesPerSeries.computeIfAbsent(d, k -> new TreeSet<>()).add(indexName)
+            ));
+            indicesPerSeries.replaceAll((d, indices) -> unmodifiableSortedSet(indices));
+            List<TimeSeriesDefinition> definitions = new ArrayList<>(indicesPerSeries.keySet());
+            Collections.sort(definitions);
+            this.definitions = definitions.isEmpty() ? emptyList() : unmodifiableList(definitions);
+            this.indicesPerSeries = indicesPerSeries;
+            this.generation = generation;
+        }
+
+    }
+
+}
@@ -10,10 +10,10 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Optional;
 import java.util.Scanner;
 import java.util.regex.Matcher;
 
-import static java.util.stream.Collectors.toList;
 import static no.difi.statistics.model.MeasurementDistance.*;
 
 public class AvailableSeriesQuery {
@@ -24,7 +24,7 @@ public class AvailableSeriesQuery {
         // Use builder
     }
 
-    public List<TimeSeriesDefinition> execute() {
+    public List<String> indexNames() {
         List<String> indices = new ArrayList<>();
         Request request = new Request("GET", "/_cat/indices?h=index");
         try (InputStream response = elasticSearchClient.performRequest(request).getEntity().getContent();
@@ -33,20 +33,23 @@ public class AvailableSeriesQuery {
         } catch (IOException e) {
             throw new RuntimeException("Failed to list available time series", e);
         }
-        return indices.stream()
-                .map(IndexNameResolver.pattern()::matcher)
-                .filter(Matcher::find)
-                .map(matcher -> TimeSeriesDefinition.builder()
-                        .name(matcher.group(2))
-                        .distance(distanceFrom(matcher.group(3)))
-                        .owner(matcher.group(1))
-                )
-                .distinct()
-                .sorted()
-                .collect(toList());
+        return indices;
     }
 
-    private MeasurementDistance distanceFrom(String indexNamePatternGroup3) {
+    /**
+     * @return the definition of the series stored in the index, or empty if it is not a time series index
+     */
+    public static Optional<TimeSeriesDefinition> seriesDefinition(String indexName) {
+        Matcher matcher = IndexNameResolver.pattern().matcher(indexName);
+        if (!matcher.find())
+            return Optional.empty();
+        return Optional.of(TimeSeriesDefinition.builder()
+                .name(matcher.group(2))
+                .distance(distanceFrom(matcher.group(3)))
+                .owner(matcher.group(1)));
+    }
+
+    private static MeasurementDistance distanceFrom(String indexNamePatternGroup3) {
         switch (indexNamePatternGroup3) {
             case "minute": return minutes;
             case "hour": return hours;
@@ -0,0 +1,34 @@
+package no.difi.statistics.query.elasticsearch.commands;
+
+import no.difi.statistics.model.TimeSeriesPoint;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A query that is mainly one search, which lets it be sent together with other queries in one multi search.
+ */
+interface BatchableQuery {
+
+    /**
+     * Prepares the search without blocking the calling thread, so that the searches of several queries are prepared
+     * concurrently.
+     *
+     * @return the search, or null if the query must be performed on its own with {@link #points()}
+     */
+    CompletableFuture<SearchRequest> batchSearchRequest();
+
+    /**
+     * @return the points of the response to the {@link #batchSearchRequest() search}. Any further searches the query
+     * needs are performed on its own.
+     */
+    List<TimeSeriesPoint> points(SearchResponse response);
+
+    /**
+     * Performs the query on its own.
+     */
+    List<TimeSeriesPoint> points();
+
+}
@@ -0,0 +1,387 @@
+package no.difi.statistics.query.elasticsearch.commands;
+
+import no.difi.statistics.elasticsearch.Timestamp;
+import no.difi.statistics.model.MeasurementDistance;
+import no.difi.statistics.model.TimeRange;
+import no.difi.statistics.model.TimeSeriesDefinition;
+import no.difi.statistics.model.TimeSeriesPoint;
+import no.difi.statistics.query.model.QueryFilter;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.RangeQueryBuilder;
+import org.elasticsearch.search.aggregations.Aggregation;
+import org.elasticsearch.search.aggregations.AggregationBuilder;
+import org.elasticsearch.search.aggregations.Aggregations;
+import org.elasticsearch.search.aggregations.bucket.filter.Filter;
+import org.elasticsearch.search.aggregations.bucket.filter.FilterAggregationBuilder;
+import org.elasticsearch.search.aggregations.bucket.global.Global;
+import org.elasticsearch.search.aggregations.metrics.Sum;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.util.*;
+
+import static java.time.ZoneOffset.UTC;
+import static org.elasticsearch.index.query.QueryBuilders.boolQuery;
+import static org.elasticsearch.index.query.QueryBuilders.rangeQuery;
+import static org.elasticsearch.search.aggregations.AggregationBuilders.filter;
+import static org.elasticsearch.search.aggregations.AggregationBuilders.global;
+import static org.elasticsearch.search.aggregations.AggregationBuilders.sum;
+
+/**
+ * Cache of closed buckets of histogram queries, keyed by series, operation, category filter and measurements. A bucket
+ * is closed when it ends before the current period of its distance started, and when it is fully covered by the query's
+ * time range. Queries take the closed buckets they can from the cache and exclude them from the search, so Elasticsearch
+ * aggregates only the rest of the range. Late ingestion into cached buckets is detected by comparing the document count
+ * and measurement sums of the cached part with Elasticsearch, at most once per validation interval per entry, in the
+ * same request. An entry failing validation is dropped. The cache is bounded by the total number of cached points,
+ * evicting least recently used entries first.
+ */
+public class BucketCache {
+
+    private static final String timeFieldName = "timestamp";
+    private static final String validationAggregationName = "cacheValidation";
+    private static final String cachedAggregationName = "cached";
+
+    private final long maxPoints;
+    private final Duration validationInterval;
+    private final Clock clock;
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+
+    public BucketCache(long maxPoints, Duration validationInterval) {
+        this(maxPoints, validationInterval, Clock.systemUTC());
+    }
+
+    BucketCache(long maxPoints, Duration validationInterval, Clock clock) {
+        this.maxPoints = maxPoints;
+        this.validationInterval = validationInterval;
+        this.clock = clock;
+    }
+
+    /**
+     * @return a lookup for the query, or null if no part of the query's range can be cached
+     */
+    Lookup lookup(
+            TimeSeriesDefinition seriesDefinition,
+            String operation,
+            MeasurementDistance bucketDistance,
+            QueryFilter queryFilter,
+            List<String> measurementIds
+    ) {
+        ZonedDateTime now = ZonedDateTime.now(clock);
+        Interval cacheable = cacheableInterval(queryFilter.timeRange(), bucketDistance, now);
+        if (cacheable == null)
+            return null;
+        Key key = new Key(seriesDefinition, operation, bucketDistance, queryFilter.categories(), queryFilter.perCategory(), measurementIds);
+        Entry entry = get(key);
+        if (entry == null || entry.covered.from.isAfter(cacheable.from) || !entry.covered.to.isAfter(cacheable.from))
+            return new Lookup(key, bucketDistance, cacheable, null, null, false, measurementIds);
+        Interval cached = new Interval(cacheable.from, min(entry.covered.to, cacheable.to));
+        boolean validate = !entry.validatedAt.plus(validationInterval).isAfter(now);
+        return new Lookup(key, bucketDistance, cacheable, entry, cached, validate, measurementIds);
+    }
+
+    public synchronized long size() {
+        return size;
+    }
+
+    private synchronized Entry get(Key key) {
+        return entries.get(key);
+    }
+
+    private synchronized void invalidate(Key key) {
+        Entry removed = entries.remove(key);
+        if (removed != null)
+            size -= removed.size;
+    }
+
+    private synchronized void store(Key key, Entry expected, Entry updated) {
+        Entry current = entries.get(key);
+        if (current != expected)
+            return; // Changed by someone else since the lookup
+        if (updated.size > maxPoints) {
+            invalidate(key);
+            return;
+        }
+        entries.put(key, updated);
+        size += updated.size - (current != null ? current.size : 0);
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (size > maxPoints && eldest.hasNext()) {
+            size -= eldest.next().size;
+            eldest.remove();
+        }
+    }
+
+    private static Interval cacheableInterval(TimeRange timeRange, MeasurementDistance distance, ZonedDateTime now) {
+        if (timeRange == null || timeRange.from() == null)
+            return null;
+        ZonedDateTime from = truncate(timeRange.from(), distance);
+        if (from.isBefore(timeRange.from()))
+            from = HistogramQuery.nextBucket(from, distance);
+        ZonedDateTime to = truncate(now, distance);
+        if (timeRange.to() != null)
+            to = min(to, truncate(timeRange.to().plusNanos(1_000_000), distance)); // Range is inclusive in milliseconds
+        return from.isBefore(to) ? new Interval(from, to) : null;
+    }
+
+    private static ZonedDateTime truncate(ZonedDateTime timestamp, MeasurementDistance distance) {
+        return Timestamp.truncatedTimestamp(timestamp.withZoneSameInstant(UTC), distance);
+    }
+
+    private static ZonedDateTime min(ZonedDateTime a, ZonedDateTime b) {
+        return a.isBefore(b) ? a : b;
+    }
+
+    private static ZonedDateTime max(ZonedDateTime a, ZonedDateTime b) {
+        return a.isAfter(b) ? a : b;
+    }
+
+    /**
+     * A query's use of the cache: the aggregations to send, and merging of the response with the cached buckets.
+     */
+    class Lookup {
+
+        private final Key key;
+        private final MeasurementDistance distance;
+        private final Interval cacheable;
+        private final Entry entry;
+        private final Interval cached;
+        private final boolean validate;
+        private final List<String> measurementIds;
+
+        private Lookup(Key key, MeasurementDistance distance, Interval cacheable, Entry entry, Interval cached, boolean validate, List<String> measurementIds) {
+            this.key = key;
+            this.distance = distance;
+            this.cacheable = cacheable;
+            this.entry = entry;
+            this.cached = cached;
+            this.validate = validate;
+            this.measurementIds = measurementIds;
+        }
+
+        /**
+         * @return true if part of the range is served from the cache, which the search must then leave out with
+         * {@link #exclusion()}
+         */
+        boolean hasCached() {
+            return cached != null;
+        }
+
+        /**
+         * @return query for the cached part of the range, to be excluded from the search, or null if nothing is cached
+         */
+        QueryBuilder exclusion() {
+            return cached != null ? cached.query() : null;
+        }
+
+        /**
+         * @param query the query of the search, without the exclusion
+         * @return aggregation of the document count and measurement sums of the cached part of the range, or null if
+         * no validation is due. It is a global aggregation, as the search excludes the cached part.
+         */
+        AggregationBuilder validation(QueryBuilder query) {
+            if (cached == null || !validate)
+                return null;
+            FilterAggregationBuilder validation = filter(cachedAggregationName, boolQuery().filter(query).filter(cached.query()));
+            measurementIds.forEach(measurementId -> validation.subAggregation(sum(measurementId).field(measurementId)));
+            return global(validationAggregationName).subAggregation(validation);
+        }
+
+        /**
+         * @param aggregations the aggregations of the response carrying the {@link #validation}, or null
+         * @param aggregated the buckets aggregated outside the cached part of the range
+         * @return the points of the cached and aggregated buckets in order, or null if the cached buckets are no longer
+         * valid and the query must be repeated without the cache
+         */
+        List<TimeSeriesPoint> points(Aggregations aggregations, List<Bucket> aggregated) {
+            if (cached != null && validate) {
+                Global validation = aggregations != null ? aggregations.get(validationAggregationName) : null;
+                if (validation == null || !valid(validation.getAggregations().get(cachedAggregationName))) {
+                    invalidate(key);
+                    return null;
+                }
+            }
+            return merge(aggregated);
+        }
+
+        private List<TimeSeriesPoint> merge(List<Bucket> aggregated) {
+            TreeMap<ZonedDateTime, Bucket> buckets = new TreeMap<>();
+            if (cached != null)
+                buckets.putAll(entry.buckets.subMap(cached.from, cached.to));
+            TreeMap<ZonedDateTime, Bucket> closed = new TreeMap<>();
+            for (Bucket bucket : aggregated) {
+                ZonedDateTime start = truncate(bucket.timestamp, distance);
+                if (cached != null && cached.contains(start))
+                    continue; // Empty bucket filled in by a date histogram between the uncached parts
+                buckets.merge(start, bucket, Bucket::plus);
+                if (cacheable.contains(start))
+                    closed.merge(start, bucket, Bucket::plus);
+            }
+            Entry base = entry != null ? entry : get(key);
+            store(key, base, updated(base, closed));
+            return merged(buckets.values());
+        }
+
+        private boolean valid(Filter validation) {
+            long documents = 0;
+            Map<String, Long> sums = new HashMap<>();
+            for (Bucket bucket : entry.buckets.subMap(cached.from, cached.to).values()) {
+                documents += bucket.documents;
+                for (TimeSeriesPoint point : bucket.points)
+                    point.getMeasurements().forEach((id, value) -> sums.merge(id, value, Long::sum));
+            }
+            if (validation.getDocCount() != documents)
+                return false;
+            for (Aggregation aggregation : validation.getAggregations()) {
+                if ((long) ((Sum) aggregation).getValue() != sums.getOrDefault(aggregation.getName(), 0L))
+                    return false;
+            }
+            return true;
+        }
+
+        private Entry updated(Entry base, TreeMap<ZonedDateTime, Bucket> closed) {
+            ZonedDateTime now = ZonedDateTime.now(clock);
+            if (base == null || base.covered.from.isAfter(cacheable.to) || base.covered.to.isBefore(cacheable.from))
+                return new Entry(cacheable, closed, now);
+            TreeMap<ZonedDateTime, Bucket> buckets = new TreeMap<>(base.buckets);
+            buckets.putAll(closed);
+            return new Entry(
+                    new Interval(min(base.covered.from, cacheable.from), max(base.covered.to, cacheable.to)),
+                    buckets,
+                    validate ? now : base.validatedAt
+            );
+        }
+
+    }
+
+    /**
+     * Merges buckets into points, leaving out leading and trailing empty buckets like a date histogram does.
+     */
+    private static List<TimeSeriesPoint> merged(Collection<Bucket> buckets) {
+        List<Bucket> list = new ArrayList<>(buckets);
+        int first = 0;
+        int last = list.size();
+        while (first < last && list.get(first).documents == 0)
+            first++;
+        while (last > first && list.get(last - 1).documents == 0)
+            last--;
+        List<TimeSeriesPoint> points = new ArrayList<>();
+        for (Bucket bucket : list.subList(first, last))
+            points.addAll(bucket.points);
+        return points;
+    }
+
+    /**
+     * The points aggregated for a bucket key in a response, with the bucket's document count.
+     */
+    static class Bucket {
+
+        private final ZonedDateTime timestamp;
+        private final long documents;
+        private final List<TimeSeriesPoint> points;
+
+        Bucket(ZonedDateTime timestamp, long documents, List<TimeSeriesPoint> points) {
+            this.timestamp = timestamp;
+            this.documents = documents;
+            this.points = points;
+        }
+
+        List<TimeSeriesPoint> points() {
+            return points;
+        }
+
+        private Bucket plus(Bucket other) {
+            List<TimeSeriesPoint> points = new ArrayList<>(this.points);
+            points.addAll(other.points);
+            return new Bucket(timestamp, documents + other.documents, points);
+        }
+
+    }
+
+    private static class Entry {
+
+        private final Interval covered;
+        private final NavigableMap<ZonedDateTime, Bucket> buckets;
+        private final ZonedDateTime validatedAt;
+        private final long size;
+
+        private Entry(Interval covered, NavigableMap<ZonedDateTime, Bucket> buckets, ZonedDateTime validatedAt) {
+            this.covered = covered;
+            this.buckets = buckets;
+            this.validatedAt = validatedAt;
+            this.size = buckets.values().stream().mapToLong(b -> Math.max(1, b.points.size())).sum();
+        }
+
+    }
+
+    /**
+     * Time interval of whole buckets, inclusive from and exclusive to.
+     */
+    private static class Interval {
+
+        private final ZonedDateTime from;
+        private final ZonedDateTime to;
+
+        private Interval(ZonedDateTime from, ZonedDateTime to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        private boolean contains(ZonedDateTime timestamp) {
+            return !timestamp.isBefore(from) && timestamp.isBefore(to);
+        }
+
+        private RangeQueryBuilder query() {
+            return rangeQuery(timeFieldName).gte(Timestamp.format(from)).lt(Timestamp.format(to));
+        }
+
+    }
+
+    private static class Key {
+
+        private final TimeSeriesDefinition seriesDefinition;
+        private final String operation;
+        private final MeasurementDistance distance;
+        private final Map<String, String> categories;
+        private final String perCategory;
+        private final List<String> measurementIds;
+
+        private Key(
+                TimeSeriesDefinition seriesDefinition,
+                String operation,
+                MeasurementDistance distance,
+                Map<String, String> categories,
+                String perCategory,
+                List<String> measurementIds
+        ) {
+            this.seriesDefinition = seriesDefinition;
+            this.operation = operation;
+            this.distance = distance;
+            this.categories = new HashMap<>(categories);
+            this.perCategory = perCategory;
+            this.measurementIds = new ArrayList<>(measurementIds);
+            Collections.sort(this.measurementIds);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return seriesDefinition.equals(key.seriesDefinition) &&
+                    operation.equals(key.operation) &&
+                    distance == key.distance &&
+                    categories.equals(key.categories) &&
+                    Objects.equals(perCategory, key.perCategory) &&
+                    measurementIds.equals(key.measurementIds);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(seriesDefinition, operation, distance, categories, perCategory, measurementIds);
+        }
+
+    }
+
+}
@@ -0,0 +1,120 @@
+package no.difi.statistics.query.elasticsearch.commands;
+
+import no.difi.statistics.model.MeasurementDistance;
+import no.difi.statistics.model.TimeSeriesDefinition;
+import no.difi.statistics.model.TimeSeriesPoint;
+import no.difi.statistics.query.model.QueryFilter;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.search.aggregations.Aggregations;
+import org.elasticsearch.search.aggregations.bucket.MultiBucketsAggregation;
+import org.elasticsearch.search.aggregations.bucket.histogram.DateHistogramAggregationBuilder;
+import org.elasticsearch.search.aggregations.metrics.Cardinality;
+
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+
+import static java.util.stream.Collectors.toList;
+import static no.difi.statistics.elasticsearch.IndexNameResolver.resolveIndexName;
+import static no.difi.statistics.elasticsearch.QueryBuilders.categoryField;
+import static org.elasticsearch.search.aggregations.AggregationBuilders.cardinality;
+
+/**
+ * Counts the distinct values of a category key per target distance, with Elasticsearch's HyperLogLog++ based
+ * cardinality aggregation. Counts are exact up to about the precision threshold, and approximate above it, with memory
+ * use per bucket bounded by the threshold regardless of the number of values.
+ */
+public class CardinalityHistogramQuery extends HistogramQuery {
+
+    private TimeSeriesDefinition seriesDefinition;
+    private QueryFilter queryFilter;
+    private MeasurementDistance targetDistance;
+    private String categoryKey;
+    private long precisionThreshold = 3000;
+
+    @Override
+    public List<TimeSeriesPoint> execute() {
+        return await(streamAsync()).collect(toList());
+    }
+
+    /**
+     * Performs the query without blocking the calling thread.
+     *
+     * @return a point per bucket of the target distance in order, with the number of distinct values of the category
+     * key as a measurement named after the key
+     */
+    public CompletableFuture<Stream<TimeSeriesPoint>> streamAsync() {
+        List<String> indexNames = resolveIndexName().seriesDefinition(seriesDefinition).range(queryFilter.timeRange()).list();
+        return searchAsync(searchRequest(indexNames, queryFilter, null, 0, cardinalityPerDistanceAggregation()))
+                .thenApply(response -> points(response.getAggregations()));
+    }
+
+    private DateHistogramAggregationBuilder cardinalityPerDistanceAggregation() {
+        return dateHistogram(targetDistance).subAggregation(
+                cardinality(categoryKey).field(categoryField(categoryKey)).precisionThreshold(precisionThreshold)
+        );
+    }
+
+    private Stream<TimeSeriesPoint> points(Aggregations aggregations) {
+        if (aggregations == null)
+            return Stream.empty();
+        MultiBucketsAggregation aggregation = aggregations.get(targetDistance.name());
+        return aggregation.getBuckets().stream().map(bucket -> TimeSeriesPoint.builder()
+                .timestamp(ZonedDateTime.parse(bucket.getKeyAsString(), DateTimeFormatter.ISO_OFFSET_DATE_TIME))
+                .measurement(categoryKey, ((Cardinality) bucket.getAggregations().get(categoryKey)).getValue())
+                .categories(queryFilter.categories())
+                .build());
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+
+        private CardinalityHistogramQuery instance = new CardinalityHistogramQuery();
+
+        public Builder elasticsearchClient(RestHighLevelClient client) {
+            instance.elasticsearchClient = client;
+            return this;
+        }
+
+        public Builder seriesDefinition(TimeSeriesDefinition seriesDefinition) {
+            instance.seriesDefinition = seriesDefinition;
+            return this;
+        }
+
+        public Builder queryFilter(QueryFilter queryFilter) {
+            instance.queryFilter = queryFilter;
+            instance.deadline = queryFilter.deadline();
+            return this;
+        }
+
+        public Builder targetDistance(MeasurementDistance targetDistance) {
+            instance.targetDistance = targetDistance;
+            return this;
+        }
+
+        public Builder categoryKey(String categoryKey) {
+            instance.categoryKey = categoryKey;
+            return this;
+        }
+
+        /**
+         * @param precisionThreshold the number of distinct values below which counts are expected to be exact, at
+         *                           most 40 000
+         */
+        public Builder precisionThreshold(long precisionThreshold) {
+            instance.precisionThreshold = precisionThreshold;
+            return this;
+        }
+
+        public CardinalityHistogramQuery build() {
+            return instance;
+        }
+
+    }
+
+}
@@ -2,6 +2,8 @@ package no.difi.statistics.query.elasticsearch.commands;
 
 import no.difi.statistics.elasticsearch.IndexNameResolver;
 import org.elasticsearch.client.Request;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseListener;
 import org.elasticsearch.client.RestClient;
 
 import javax.json.Json;
@@ -12,6 +14,7 @@ import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 import static java.util.stream.Collectors.toSet;
 
@@ -22,26 +25,53 @@ public class GetMeasurementIdentifiers {
     private List<String> indexNames;
 
     private List<String> doExecute() {
-        String genericIndexName = IndexNameResolver.generic(indexNames.get(0));
-        Set<String> result = new HashSet<>();
-        Request request = new Request("GET", "/" + genericIndexName + "/_mappings?ignore_unavailable=true");
-        try (InputStream response = elasticsearchClient
-                .performRequest(request)
-                .getEntity().getContent()) {
-            JsonReader reader = Json.createReader(response);
-            reader.readObject().forEach(
-                    (key, value) -> result.addAll(
-                            value.asJsonObject().getJsonObject("mappings")
-                                    .getJsonObject("properties").keySet().stream()
-                                    .filter(p -> !p.startsWith("category."))
-                                    .filter(p -> !p.equals("category"))
-                                    .filter(p -> !p.equals(timeFieldName))
-                                    .collect(toSet())
-                    )
-            );
+        try (InputStream response = elasticsearchClient.performRequest(request()).getEntity().getContent()) {
+            return measurementIds(response);
         } catch (IOException e) {
             throw new RuntimeException("Failed to get available measurement ids", e);
         }
+    }
+
+    private CompletableFuture<List<String>> doExecuteAsync() {
+        CompletableFuture<List<String>> result = new CompletableFuture<>();
+        elasticsearchClient.performRequestAsync(request(), new ResponseListener() {
+
+            @Override
+            public void onSuccess(Response response) {
+                try (InputStream content = response.getEntity().getContent()) {
+                    result.complete(measurementIds(content));
+                } catch (IOException | RuntimeException e) {
+                    onFailure(e);
+                }
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                result.completeExceptionally(new RuntimeException("Failed to get available measurement ids", e));
+            }
+
+        });
+        return result;
+    }
+
+    private Request request() {
+        String genericIndexName = IndexNameResolver.generic(indexNames.get(0));
+        return new Request("GET", "/" + genericIndexName + "/_mappings?ignore_unavailable=true");
+    }
+
+    private static List<String> measurementIds(InputStream mappings) {
+        Set<String> result = new HashSet<>();
+        JsonReader reader = Json.createReader(mappings);
+        reader.readObject().forEach(
+                (key, value) -> result.addAll(
+                        value.asJsonObject().getJsonObject("mappings")
+                                .getJsonObject("properties").keySet().stream()
+                                .filter(p -> !p.startsWith("category."))
+                                .filter(p -> !p.equals("category"))
+                                .filter(p -> !p.equals(timeFieldName))
+                                .collect(toSet())
+                )
+        );
         return new ArrayList<>(result);
     }
 
@@ -67,5 +97,9 @@ public class GetMeasurementIdentifiers {
             return instance.doExecute();
         }
 
+        CompletableFuture<List<String>> executeAsync() {
+            return instance.doExecuteAsync();
+        }
+
     }
 }
@@ -0,0 +1,132 @@
+package no.difi.statistics.query.elasticsearch.commands;
+
+import no.difi.statistics.model.TimeSeriesDefinition;
+import no.difi.statistics.query.model.QueryFilter;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseListener;
+import org.elasticsearch.client.RestClient;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonValue;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+
+import static no.difi.statistics.elasticsearch.IndexNameResolver.resolveIndexName;
+import static no.difi.statistics.model.MeasurementDistance.days;
+import static no.difi.statistics.model.MeasurementDistance.minutes;
+import static no.difi.statistics.model.MeasurementDistance.months;
+
+/**
+ * Gets the ingest high-water mark of the indices holding a series' points in a time range: the maximum sequence number
+ * and document count of each primary shard, and the number of refreshes of each shard's copies. Any point ingested
+ * into the indices changes it, and it changes again when the point becomes visible to searches, so that a response
+ * searched before the refresh is not taken as current after it.
+ */
+public class GetSeriesVersion {
+
+    private RestClient elasticsearchClient;
+    private TimeSeriesDefinition seriesDefinition;
+    private QueryFilter queryFilter;
+
+    private CompletableFuture<String> doExecuteAsync() {
+        List<String> indexNames = new ArrayList<>(indexNames(seriesDefinition));
+        // Day and month series without points are summed from the minute series with the same name
+        if (seriesDefinition.getDistance() == days || seriesDefinition.getDistance() == months)
+            indexNames.addAll(indexNames(TimeSeriesDefinition.builder().name(seriesDefinition.getName()).distance(minutes).owner(seriesDefinition.getOwner())));
+        Request request = new Request("GET", "/" + String.join(",", indexNames) + "/_stats/docs,refresh");
+        request.addParameter("level", "shards");
+        request.addParameter("ignore_unavailable", "true");
+        CompletableFuture<String> result = new CompletableFuture<>();
+        elasticsearchClient.performRequestAsync(request, new ResponseListener() {
+
+            @Override
+            public void onSuccess(Response response) {
+                try (InputStream content = response.getEntity().getContent()) {
+                    result.complete(version(content));
+                } catch (IOException | RuntimeException e) {
+                    onFailure(e);
+                }
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                result.completeExceptionally(new RuntimeException("Failed to get version of series " + seriesDefinition, e));
+            }
+
+        });
+        return result;
+    }
+
+    private List<String> indexNames(TimeSeriesDefinition seriesDefinition) {
+        return resolveIndexName().seriesDefinition(seriesDefinition).range(queryFilter.timeRange()).list();
+    }
+
+    private static String version(InputStream stats) {
+        JsonObject indices = Json.createReader(stats).readObject().getJsonObject("indices");
+        if (indices == null)
+            return "";
+        SortedSet<String> shards = new TreeSet<>();
+        indices.forEach((indexName, index) -> index.asJsonObject().getJsonObject("shards").forEach((shard, copies) -> {
+            long refreshes = copies.asJsonArray().stream().map(JsonValue::asJsonObject).mapToLong(GetSeriesVersion::refreshes).sum();
+            copies.asJsonArray().stream()
+                    .map(JsonValue::asJsonObject)
+                    .filter(copy -> copy.getJsonObject("routing").getBoolean("primary"))
+                    .forEach(copy -> shards.add(
+                            indexName + "/" + shard
+                                    + ":" + copy.getJsonObject("seq_no").getJsonNumber("max_seq_no").longValue()
+                                    + ":" + copy.getJsonObject("docs").getJsonNumber("count").longValue()
+                                    + ":" + refreshes
+                    ));
+        }));
+        return String.join(",", shards);
+    }
+
+    /**
+     * @return the number of refreshes making changes visible to searches of the shard copy
+     */
+    private static long refreshes(JsonObject copy) {
+        JsonObject refresh = copy.getJsonObject("refresh");
+        if (refresh == null)
+            return 0;
+        return refresh.containsKey("external_total")
+                ? refresh.getJsonNumber("external_total").longValue()
+                : refresh.getJsonNumber("total").longValue();
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+
+        private GetSeriesVersion instance = new GetSeriesVersion();
+
+        public Builder elasticsearchClient(RestClient client) {
+            instance.elasticsearchClient = client;
+            return this;
+        }
+
+        public Builder seriesDefinition(TimeSeriesDefinition seriesDefinition) {
+            instance.seriesDefinition = seriesDefinition;
+            return this;
+        }
+
+        public Builder queryFilter(QueryFilter queryFilter) {
+            instance.queryFilter = queryFilter;
+            return this;
+        }
+
+        public CompletableFuture<String> executeAsync() {
+            return instance.doExecuteAsync();
+        }
+
+    }
+
+}
@@ -6,6 +6,7 @@ import org.elasticsearch.search.aggregations.bucket.histogram.DateHistogramAggre
 import org.elasticsearch.search.aggregations.bucket.histogram.DateHistogramInterval;
 import org.elasticsearch.search.aggregations.AggregationBuilders;
 
+import java.time.ZonedDateTime;
 import java.util.List;
 
 abstract class HistogramQuery extends Query {
@@ -21,6 +22,17 @@ abstract class HistogramQuery extends Query {
                 .dateHistogramInterval(dateHistogramInterval(targetDistance));
     }
 
+    static ZonedDateTime nextBucket(ZonedDateTime bucket, MeasurementDistance distance) {
+        switch (distance) {
+            case minutes: return bucket.plusMinutes(1);
+            case hours: return bucket.plusHours(1);
+            case days: return bucket.plusDays(1);
+            case months: return bucket.plusMonths(1);
+            case years: return bucket.plusYears(1);
+            default: throw new IllegalArgumentException(distance.toString());
+        }
+    }
+
     private static DateHistogramInterval dateHistogramInterval(MeasurementDistance distance) {
         switch (distance) {
             case minutes: return DateHistogramInterval.MINUTE;
@@ -105,6 +105,7 @@ public class LastHistogramQuery extends HistogramQuery {
 
         public Builder queryFilter(QueryFilter queryFilter) {
             instance.queryFilter = queryFilter;
+            instance.deadline = queryFilter.deadline();
             return this;
         }
 
@@ -1,65 +1,111 @@
 package no.difi.statistics.query.elasticsearch.commands;
 
 import no.difi.statistics.elasticsearch.Timestamp;
+import no.difi.statistics.model.TimeRange;
 import no.difi.statistics.model.TimeSeriesDefinition;
 import no.difi.statistics.model.TimeSeriesPoint;
 import no.difi.statistics.query.model.QueryFilter;
-import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchRequest;
 import org.elasticsearch.client.RestHighLevelClient;
-import org.elasticsearch.search.aggregations.bucket.terms.Terms;
+import org.elasticsearch.search.SearchHit;
 
-import java.util.List;
-import java.util.Map;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
 
+import static java.time.ZoneOffset.UTC;
+import static java.util.Collections.singletonList;
+import static java.util.concurrent.CompletableFuture.completedFuture;
 import static no.difi.statistics.elasticsearch.IndexNameResolver.resolveIndexName;
-import static no.difi.statistics.elasticsearch.QueryBuilders.sumPerTimestampAggregation;
-import static org.elasticsearch.search.aggregations.BucketOrder.key;
+import static org.elasticsearch.index.query.QueryBuilders.termQuery;
+import static org.elasticsearch.search.aggregations.AggregationBuilders.sum;
+import static org.elasticsearch.search.sort.SortOrder.DESC;
 
 public class LastQuery extends SinglePointQuery {
 
+    private static final String timeFieldName = "timestamp";
     private TimeSeriesDefinition seriesDefinition;
     private QueryFilter queryFilter;
     private GetMeasurementIdentifiers.Builder getMeasurementIdentifiersCommand;
-
+    private Collection<String> existingIndices;
+    private Instant existingIndicesListedAt;
+
+    /**
+     * Searches the indices of the series from newest to oldest, stopping at the first with a matching point. Only the
+     * newest matching document is fetched from an index, and the measurements are then summed over the documents
+     * with its timestamp.
+     */
     @Override
-    public TimeSeriesPoint execute() {
-        return last(
-                resolveIndexName().seriesDefinition(seriesDefinition).range(queryFilter.timeRange()).list(),
-                queryFilter
-        );
+    public CompletableFuture<TimeSeriesPoint> executeAsync() {
+        List<String> indexNames = indexNamesNewestFirst(ZonedDateTime.now(UTC));
+        return last(indexNames, indexNames.iterator());
     }
 
-    private TimeSeriesPoint last(List<String> indexNames, QueryFilter queryFilter) {
-        SearchResponse response = search(searchRequest(
-                indexNames,
-                queryFilter,
-                null,
-                0,
-                sumPerTimestampAggregation("last", measurementIds(indexNames)).order(key(false)).size(1)
-        ));
-        return pointFromLastAggregation(response, queryFilter.categories());
+    private CompletableFuture<TimeSeriesPoint> last(List<String> indexNames, Iterator<String> remaining) {
+        if (!remaining.hasNext())
+            return completedFuture(null);
+        String indexName = remaining.next();
+        return lastTimestamp(indexName).thenCompose(timestamp -> timestamp == null
+                ? last(indexNames, remaining)
+                : getMeasurementIdentifiersCommand.indexNames(indexNames).executeAsync()
+                        .thenCompose(measurementIds -> point(indexName, timestamp, measurementIds)));
+    }
+
+    /**
+     * @return the indices that may hold points in the query's range, newest first. Without known existing indices
+     * (or when the range spans too many to list), the resolved index names are used as is.
+     * <p>
+     * Indices of the periods from when the existing indices were listed until now may have been created since, and
+     * are resolved instead. Indices of older periods created since, by ingesting old points, are seen once the
+     * existing indices are listed again.
+     */
+    List<String> indexNamesNewestFirst(ZonedDateTime now) {
+        List<String> resolved = resolveIndexName().seriesDefinition(seriesDefinition).range(queryFilter.timeRange()).list();
+        if (existingIndices == null || existingIndicesListedAt == null)
+            return resolved;
+        List<String> sinceListed = resolveIndexName().seriesDefinition(seriesDefinition)
+                .range(new TimeRange(ZonedDateTime.ofInstant(existingIndicesListedAt, UTC), now)).list();
+        if (wildcard(sinceListed))
+            return resolved;
+        SortedSet<String> candidates = new TreeSet<>(Comparator.reverseOrder());
+        candidates.addAll(existingIndices);
+        candidates.addAll(sinceListed);
+        if (!wildcard(resolved))
+            candidates.retainAll(resolved);
+        return new ArrayList<>(candidates);
+    }
+
+    private static boolean wildcard(List<String> indexNames) {
+        return indexNames.stream().anyMatch(name -> name.endsWith("*"));
     }
 
-    private List<String> measurementIds(List<String> indexNames) {
-        return getMeasurementIdentifiersCommand.indexNames(indexNames).execute();
+    private CompletableFuture<ZonedDateTime> lastTimestamp(String indexName) {
+        SearchRequest request = searchRequest(singletonList(indexName), filterQuery(queryFilter), null, 1, DESC);
+        request.source().fetchSource(false).docValueField(timeFieldName, "epoch_millis");
+        return searchAsync(request).thenApply(response -> {
+            SearchHit[] hits = response.getHits().getHits();
+            if (hits.length == 0)
+                return null;
+            return ZonedDateTime.ofInstant(Instant.ofEpochMilli(Long.parseLong(hits[0].field(timeFieldName).getValue().toString())), UTC);
+        });
     }
 
-    private TimeSeriesPoint pointFromLastAggregation(SearchResponse response, Map<String, String> categories) {
-        if (response.getAggregations() == null)
-            return null;
-        if (response.getAggregations().get("last") == null)
-            throw new RuntimeException("No last aggregation in result");
-        if (response.getAggregations().<Terms>get("last").getBuckets().size() == 0)
-            return null;
-        if (response.getAggregations().<Terms>get("last").getBuckets().size() > 1)
-            throw new RuntimeException("Too many buckets in last aggregation: "
-                    + response.getAggregations().<Terms>get("last").getBuckets().size());
-        Terms.Bucket bucket = response.getAggregations().<Terms>get("last").getBuckets().get(0);
-        return TimeSeriesPoint.builder()
-                .timestamp(Timestamp.parse(bucket.getKeyAsString()))
-                .measurements(measurementsFromSumAggregations(bucket.getAggregations()))
-                .categories(categories)
-                .build();
+    private CompletableFuture<TimeSeriesPoint> point(String indexName, ZonedDateTime timestamp, List<String> measurementIds) {
+        SearchRequest request = searchRequest(
+                singletonList(indexName),
+                filterQuery(queryFilter).filter(termQuery(timeFieldName, Timestamp.format(timestamp))),
+                null,
+                0
+        );
+        measurementIds.forEach(measurementId -> request.source().aggregation(sum(measurementId).field(measurementId)));
+        return searchAsync(request).thenApply(response -> TimeSeriesPoint.builder()
+                .timestamp(timestamp)
+                .measurements(response.getAggregations() != null
+                        ? measurementsFromSumAggregations(response.getAggregations())
+                        : Collections.emptyMap())
+                .categories(queryFilter.categories())
+                .build());
     }
 
     public static Builder builder() {
@@ -82,6 +128,7 @@ public class LastQuery extends SinglePointQuery {
 
         public Builder queryFilter(QueryFilter queryFilter) {
             instance.queryFilter = queryFilter;
+            instance.deadline = queryFilter.deadline();
             return this;
         }
 
@@ -90,6 +137,16 @@ public class LastQuery extends SinglePointQuery {
             return this;
         }
 
+        /**
+         * @param existingIndices the names of the series' indices
+         * @param listedAt        when the indices were listed
+         */
+        public Builder existingIndices(Collection<String> existingIndices, Instant listedAt) {
+            instance.existingIndices = existingIndices;
+            instance.existingIndicesListedAt = listedAt;
+            return this;
+        }
+
         public LastQuery build() {
             return instance;
         }
@@ -0,0 +1,124 @@
+package no.difi.statistics.query.elasticsearch.commands;
+
+import no.difi.statistics.query.model.BatchResult;
+import no.difi.statistics.query.model.Deadline;
+import org.elasticsearch.action.search.MultiSearchRequest;
+import org.elasticsearch.action.search.MultiSearchResponse;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+/**
+ * Performs several queries, sending their searches together in one multi search. Queries which must be performed on
+ * their own, for example because their result is partly cached, are performed after the multi search.
+ * <p>
+ * The searches are prepared concurrently, as each query looks up the measurement ids of its series first. A query
+ * which fails gets an error as its result, without failing the others.
+ */
+public class MultiSearchQuery extends Query {
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final Map<String, BatchableQuery> queries = new LinkedHashMap<>();
+
+    /**
+     * @return the result of each query by its id, in the order the queries were added
+     */
+    public Map<String, BatchResult> execute() {
+        Map<String, BatchResult> result = new LinkedHashMap<>();
+        Map<String, CompletableFuture<SearchRequest>> preparations = new LinkedHashMap<>();
+        queries.forEach((id, query) -> {
+            result.put(id, null);
+            preparations.put(id, query.batchSearchRequest());
+        });
+        Map<String, SearchRequest> requests = new LinkedHashMap<>();
+        preparations.forEach((id, preparation) -> {
+            try {
+                SearchRequest request = await(preparation);
+                if (request != null)
+                    requests.put(id, request);
+            } catch (RuntimeException e) {
+                result.put(id, failed(id, e));
+            }
+        });
+        if (!requests.isEmpty()) {
+            MultiSearchRequest multiSearchRequest = new MultiSearchRequest();
+            requests.values().forEach(multiSearchRequest::add);
+            try {
+                MultiSearchResponse.Item[] items = search(multiSearchRequest).getResponses();
+                int i = 0;
+                for (String id : requests.keySet()) {
+                    MultiSearchResponse.Item item = items[i++];
+                    result.put(id, item.isFailure()
+                            ? failed(id, item.getFailure())
+                            : points(id, () -> BatchResult.points(queries.get(id).points(timedOut(item.getResponse())))));
+                }
+            } catch (RuntimeException e) {
+                requests.keySet().forEach(id -> result.put(id, failed(id, e)));
+            }
+        }
+        queries.forEach((id, query) -> {
+            if (result.get(id) == null)
+                result.put(id, points(id, () -> BatchResult.points(query.points())));
+        });
+        return result;
+    }
+
+    private BatchResult points(String id, Supplier<BatchResult> points) {
+        try {
+            return points.get();
+        } catch (RuntimeException e) {
+            return failed(id, e);
+        }
+    }
+
+    private BatchResult failed(String id, Exception e) {
+        logger.warn("Query " + id + " of batch failed.", e);
+        return BatchResult.error(e);
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+
+        private MultiSearchQuery instance = new MultiSearchQuery();
+
+        public Builder elasticsearchClient(RestHighLevelClient client) {
+            instance.elasticsearchClient = client;
+            return this;
+        }
+
+        public Builder deadline(Deadline deadline) {
+            instance.deadline = deadline;
+            return this;
+        }
+
+        public Builder query(String id, TimeSeriesQuery query) {
+            instance.queries.put(id, query);
+            return this;
+        }
+
+        public Builder query(String id, SumQuery query) {
+            instance.queries.put(id, query);
+            return this;
+        }
+
+        public Builder query(String id, SumHistogramQuery query) {
+            instance.queries.put(id, query);
+            return this;
+        }
+
+        public MultiSearchQuery build() {
+            return instance;
+        }
+
+    }
+
+}
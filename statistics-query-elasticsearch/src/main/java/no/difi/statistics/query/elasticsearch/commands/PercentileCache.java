@@ -0,0 +1,121 @@
+package no.difi.statistics.query.elasticsearch.commands;
+
+import no.difi.statistics.model.PercentileFilter;
+import no.difi.statistics.model.TimeSeriesDefinition;
+import no.difi.statistics.query.model.QueryFilter;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Cache of percentile values, keyed by series, query filter, measurement and percentile. Only values for time ranges
+ * ending before now are cached, as later points would change them. Values are kept for at most the given age, which
+ * bounds how long late ingestion into a cached range goes unnoticed. The cache is bounded by the number of values,
+ * evicting least recently used values first.
+ */
+public class PercentileCache {
+
+    private final int maxEntries;
+    private final Duration maxAge;
+    private final Clock clock;
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    public PercentileCache(int maxEntries, Duration maxAge) {
+        this(maxEntries, maxAge, Clock.systemUTC());
+    }
+
+    PercentileCache(int maxEntries, Duration maxAge, Clock clock) {
+        this.maxEntries = maxEntries;
+        this.maxAge = maxAge;
+        this.clock = clock;
+    }
+
+    /**
+     * @return the cached percentile value, or null if there is none
+     */
+    synchronized Double get(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter, PercentileFilter percentileFilter) {
+        Key key = new Key(seriesDefinition, queryFilter, percentileFilter);
+        Entry entry = entries.get(key);
+        if (entry == null)
+            return null;
+        if (!entry.storedAt.plus(maxAge).isAfter(clock.instant())) {
+            entries.remove(key);
+            return null;
+        }
+        return entry.value;
+    }
+
+    /**
+     * Caches the percentile value if the query's time range has ended.
+     */
+    synchronized void put(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter, PercentileFilter percentileFilter, double value) {
+        if (!closed(queryFilter))
+            return;
+        entries.put(new Key(seriesDefinition, queryFilter, percentileFilter), new Entry(value, clock.instant()));
+        Iterator<Map.Entry<Key, Entry>> eldest = entries.entrySet().iterator();
+        while (entries.size() > maxEntries) {
+            eldest.next();
+            eldest.remove();
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private boolean closed(QueryFilter queryFilter) {
+        return queryFilter.timeRange() != null
+                && queryFilter.timeRange().to() != null
+                && queryFilter.timeRange().to().toInstant().isBefore(clock.instant());
+    }
+
+    private static class Key {
+
+        private final TimeSeriesDefinition seriesDefinition;
+        private final QueryFilter queryFilter;
+        private final String measurementId;
+        private final int percentile;
+
+        private Key(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter, PercentileFilter percentileFilter) {
+            this.seriesDefinition = seriesDefinition;
+            this.queryFilter = queryFilter;
+            this.measurementId = percentileFilter.getMeasurementId();
+            this.percentile = percentileFilter.getPercentile();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return percentile == key.percentile &&
+                    seriesDefinition.equals(key.seriesDefinition) &&
+                    queryFilter.equals(key.queryFilter) &&
+                    measurementId.equals(key.measurementId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(seriesDefinition, queryFilter, measurementId, percentile);
+        }
+
+    }
+
+    private static class Entry {
+
+        private final double value;
+        private final Instant storedAt;
+
+        private Entry(double value, Instant storedAt) {
+            this.value = value;
+            this.storedAt = storedAt;
+        }
+
+    }
+
+}
@@ -5,21 +5,33 @@ import no.difi.statistics.model.TimeSeriesDefinition;
 import no.difi.statistics.model.TimeSeriesPoint;
 import no.difi.statistics.model.PercentileFilter;
 import no.difi.statistics.query.model.QueryFilter;
+import org.elasticsearch.action.search.ClearScrollRequest;
+import org.elasticsearch.action.search.SearchRequest;
 import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchScrollRequest;
+import org.elasticsearch.client.RequestOptions;
 import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.index.query.RangeQueryBuilder;
 import org.elasticsearch.search.SearchHit;
 import org.elasticsearch.search.aggregations.metrics.Percentiles;
+import org.elasticsearch.search.aggregations.metrics.PercentilesConfig;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.ArrayList;
+import java.io.IOException;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
-import static java.lang.String.format;
-import static java.util.stream.Collectors.joining;
-import static java.util.stream.Collectors.toMap;
+import static java.time.ZoneOffset.UTC;
+import static java.util.Spliterator.ORDERED;
+import static java.util.Spliterators.spliteratorUnknownSize;
+import static java.util.stream.Collectors.toList;
 import static no.difi.statistics.elasticsearch.IndexNameResolver.resolveIndexName;
 import static org.elasticsearch.index.query.QueryBuilders.rangeQuery;
 import static org.elasticsearch.search.aggregations.AggregationBuilders.percentiles;
@@ -29,51 +41,110 @@ public class PercentileQuery extends Query {
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
     private static final String timeFieldName = "timestamp";
-    private static final String indexType = "default";
+    private static final String categoryFields = "category.*.keyword";
+    private static final TimeValue scrollKeepAlive = TimeValue.timeValueMinutes(1);
     private TimeSeriesDefinition seriesDefinition;
     private QueryFilter queryFilter;
     private PercentileFilter percentileFilter;
+    private GetMeasurementIdentifiers.Builder getMeasurementIdentifiersCommand;
+    private int pageSize = 1000;
+    private PercentileCache percentileCache;
+    private long exactLimit = 10_000;
+    private double approximateCompression = 200;
 
     public List<TimeSeriesPoint> execute() {
-        return searchWithPercentileFilter(
-                resolveIndexName().seriesDefinition(seriesDefinition).range(queryFilter.timeRange()).list(),
-                queryFilter, percentileFilter
-        );
+        return stream().collect(toList());
     }
 
-    private List<TimeSeriesPoint> searchWithPercentileFilter(List<String> indexNames, QueryFilter queryFilter, PercentileFilter filter) {
-        double percentileValue = percentileValue(indexNames, filter.getMeasurementId(), filter.getPercentile(), queryFilter);
-        logger.info(filter.getPercentile() + ". percentile value: " + percentileValue);
-        SearchResponse response = search(searchRequest(
+    /**
+     * @return the points in order. The matching documents are scrolled through a page at a time as the stream is
+     * consumed. Closing the stream releases the scroll context.
+     */
+    public Stream<TimeSeriesPoint> stream() {
+        List<String> indexNames = resolveIndexName().seriesDefinition(seriesDefinition).range(queryFilter.timeRange()).list();
+        double percentileValue = percentileValue(indexNames);
+        logger.info(percentileFilter.getPercentile() + ". percentile value: " + percentileValue);
+        SearchRequest request = searchRequest(
                 indexNames,
                 queryFilter,
-                range(filter.getMeasurementId(), filter.getRelationalOperator(), percentileValue),
-                10_000
-        ));
-        List<TimeSeriesPoint> series = new ArrayList<>();
-        for (SearchHit hit : response.getHits()) {
-            series.add(point(hit).build());
-        }
-        return series;
+                range(percentileFilter.getMeasurementId(), percentileFilter.getRelationalOperator(), percentileValue),
+                pageSize
+        ).scroll(scrollKeepAlive);
+        request.source().fetchSource(false).docValueField(timeFieldName, "epoch_millis").docValueField(categoryFields);
+        getMeasurementIdentifiersCommand.indexNames(indexNames).execute().forEach(request.source()::docValueField);
+        Hits hits = new Hits(search(request));
+        return StreamSupport.stream(spliteratorUnknownSize(hits, ORDERED), false).map(PercentileQuery::point).onClose(hits::close);
     }
 
-    private static TimeSeriesPoint.Builder point(SearchHit hit) {
-        return TimeSeriesPoint.builder()
-                .timestamp(timestamp(hit))
-                .measurements(measurements(hit))
-                .categories(categories(hit));
+    private static TimeSeriesPoint point(SearchHit hit) {
+        TimeSeriesPoint.Builder point = TimeSeriesPoint.builder()
+                .timestamp(ZonedDateTime.ofInstant(Instant.ofEpochMilli(Long.parseLong(hit.field(timeFieldName).getValue().toString())), UTC));
+        hit.getFields().forEach((name, field) -> {
+            if (name.startsWith("category."))
+                point.category(name.substring("category.".length(), name.length() - ".keyword".length()), field.getValue().toString());
+            else if (!name.equals(timeFieldName))
+                point.measurement(name, ((Number) field.getValue()).longValue());
+        });
+        return point.build();
     }
 
-    private static Map<String, Long> measurements(SearchHit hit) {
-        return hit.getSourceAsMap().entrySet().stream()
-                .filter(entry -> !entry.getKey().equals(timeFieldName) && !entry.getKey().startsWith("category."))
-                .collect(toMap(Map.Entry::getKey, e -> Long.valueOf(e.getValue().toString())));
+    /**
+     * The hits of a scroll. The next page is fetched when the previous one has been consumed, and the scroll is
+     * cleared when the last page has been fetched or the hits are closed.
+     */
+    private class Hits implements Iterator<SearchHit> {
+
+        private SearchHit[] page;
+        private int index;
+        private String scrollId;
+
+        private Hits(SearchResponse response) {
+            this.page = response.getHits().getHits();
+            this.scrollId = response.getScrollId();
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (index == page.length && page.length == pageSize && scrollId != null) {
+                SearchResponse response = scroll(new SearchScrollRequest(scrollId).scroll(scrollKeepAlive));
+                page = response.getHits().getHits();
+                scrollId = response.getScrollId();
+                index = 0;
+            }
+            if (index < page.length)
+                return true;
+            close();
+            return false;
+        }
+
+        @Override
+        public SearchHit next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            return page[index++];
+        }
+
+        private void close() {
+            if (scrollId == null)
+                return;
+            ClearScrollRequest request = new ClearScrollRequest();
+            request.addScrollId(scrollId);
+            scrollId = null;
+            try {
+                elasticsearchClient.clearScroll(request, RequestOptions.DEFAULT);
+            } catch (IOException | RuntimeException e) {
+                logger.warn("Failed to clear scroll. It will expire after " + scrollKeepAlive + ".", e);
+            }
+        }
+
     }
 
-    private static Map<String, String> categories(SearchHit hit) {
-        return hit.getSourceAsMap().entrySet().stream()
-                .filter(entry -> entry.getKey().startsWith("category."))
-                .collect(toMap(entry -> entry.getKey().substring(9), entry -> entry.getValue().toString()));
+    private SearchResponse scroll(SearchScrollRequest request) {
+        try {
+            return elasticsearchClient.scroll(request, RequestOptions.DEFAULT);
+        } catch (IOException e) {
+            throw new RuntimeException("Scroll failed", e);
+        }
     }
 
     private RangeQueryBuilder range(String measurementId, RelationalOperator operator, double percentileValue) {
@@ -93,17 +164,53 @@ public class PercentileQuery extends Query {
         return builder;
     }
 
-    private double percentileValue(List<String> indexNames, String measurementId, int percentile, QueryFilter queryFilter) {
-        SearchResponse response = search(searchRequest(
+    /**
+     * @return the percentile value, from the cache if the query's range has ended and the value has been computed
+     * before. Ranges with at most {@link Builder#exactLimit(long)} documents are computed with a compression at least
+     * their number, which keeps every value as a centroid and so gives the exact percentile. Larger ranges are
+     * approximated with a lower compression, trading accuracy for memory and time.
+     * <p>
+     * The search with the approximate compression also counts the documents. It is exact already if they are no more
+     * than the compression, and is searched again with a higher compression only if they are more, but within the
+     * limit.
+     */
+    private double percentileValue(List<String> indexNames) {
+        if (percentileCache != null) {
+            Double cached = percentileCache.get(seriesDefinition, queryFilter, percentileFilter);
+            if (cached != null)
+                return cached;
+        }
+        SearchResponse response = percentileSearch(indexNames, approximateCompression);
+        double compression = compression(response.getHits().getTotalHits().value);
+        if (compression > approximateCompression)
+            response = percentileSearch(indexNames, compression);
+        double value = percentileValue(response);
+        if (percentileCache != null && cacheable())
+            percentileCache.put(seriesDefinition, queryFilter, percentileFilter, value);
+        return value;
+    }
+
+    double compression(long documents) {
+        return documents <= exactLimit ? Math.max(documents, approximateCompression) : approximateCompression;
+    }
+
+    private SearchResponse percentileSearch(List<String> indexNames, double compression) {
+        SearchRequest request = searchRequest(
                 indexNames,
                 queryFilter,
                 null,
                 0,
-                percentiles("p").field(measurementId).percentiles(percentile).compression(10000)
-        ));
+                percentiles("p").field(percentileFilter.getMeasurementId()).percentiles(percentileFilter.getPercentile())
+                        .percentilesConfig(new PercentilesConfig.TDigest(compression))
+        );
+        request.source().trackTotalHits(true);
+        return search(request);
+    }
+
+    private double percentileValue(SearchResponse response) {
         if (response.getAggregations() == null)
             return 0.0;
-        return ((Percentiles) response.getAggregations().get("p")).percentile(percentile);
+        return ((Percentiles) response.getAggregations().get("p")).percentile(percentileFilter.getPercentile());
     }
 
     public static Builder builder() {
@@ -126,6 +233,7 @@ public class PercentileQuery extends Query {
 
         public Builder queryFilter(QueryFilter queryFilter) {
             instance.queryFilter = queryFilter;
+            instance.deadline = queryFilter.deadline();
             return this;
         }
 
@@ -134,6 +242,40 @@ public class PercentileQuery extends Query {
             return this;
         }
 
+        public Builder measurementIdentifiersCommand(GetMeasurementIdentifiers.Builder command) {
+            instance.getMeasurementIdentifiersCommand = command;
+            return this;
+        }
+
+        /**
+         * @param pageSize the number of points to fetch per request
+         */
+        public Builder pageSize(int pageSize) {
+            instance.pageSize = pageSize;
+            return this;
+        }
+
+        public Builder percentileCache(PercentileCache percentileCache) {
+            instance.percentileCache = percentileCache;
+            return this;
+        }
+
+        /**
+         * @param exactLimit the maximum number of documents in the range for computing the exact percentile
+         */
+        public Builder exactLimit(long exactLimit) {
+            instance.exactLimit = exactLimit;
+            return this;
+        }
+
+        /**
+         * @param compression the t-digest compression for approximating the percentile of larger ranges
+         */
+        public Builder approximateCompression(double compression) {
+            instance.approximateCompression = compression;
+            return this;
+        }
+
         public PercentileQuery build() {
             return instance;
         }
@@ -2,12 +2,19 @@ package no.difi.statistics.query.elasticsearch.commands;
 
 import no.difi.statistics.elasticsearch.Timestamp;
 import no.difi.statistics.model.TimeRange;
+import no.difi.statistics.query.model.Deadline;
+import no.difi.statistics.query.model.DeadlineExceededException;
 import no.difi.statistics.query.model.QueryFilter;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.MultiSearchRequest;
+import org.elasticsearch.action.search.MultiSearchResponse;
 import org.elasticsearch.action.search.SearchRequest;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.client.Cancellable;
 import org.elasticsearch.client.RequestOptions;
 import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.index.query.*;
 import org.elasticsearch.search.SearchHit;
 import org.elasticsearch.search.aggregations.Aggregation;
@@ -15,12 +22,18 @@ import org.elasticsearch.search.aggregations.AggregationBuilder;
 import org.elasticsearch.search.aggregations.Aggregations;
 import org.elasticsearch.search.aggregations.metrics.Sum;
 import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.sort.SortOrder;
 
 import java.io.IOException;
 import java.time.ZonedDateTime;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import static java.util.stream.Collectors.toList;
 import static java.util.stream.Collectors.toMap;
 import static org.elasticsearch.index.query.QueryBuilders.*;
 import static org.elasticsearch.search.sort.SortOrder.ASC;
@@ -30,19 +43,152 @@ public abstract class Query {
     private static final String indexType = "default";
     private static final String timeFieldName = "timestamp";
     RestHighLevelClient elasticsearchClient;
+    Deadline deadline;
 
     SearchResponse search(SearchRequest request) {
+        withTimeout(request);
         try {
-            return elasticsearchClient.search(request, RequestOptions.DEFAULT);
+            return timedOut(elasticsearchClient.search(request, RequestOptions.DEFAULT));
         } catch (IOException e) {
             try {
-                return elasticsearchClient.search(request, RequestOptions.DEFAULT);
+                return timedOut(elasticsearchClient.search(request, RequestOptions.DEFAULT));
             } catch (IOException ee) {
                 throw new RuntimeException("Search failed (performed a retry after IOException)", ee);
             }
         }
     }
 
+    /**
+     * Each of the searches is given the time remaining of the deadline as its timeout. Whether a search timed out is
+     * left to the caller, with {@link #timedOut}.
+     */
+    MultiSearchResponse search(MultiSearchRequest request) {
+        request.requests().forEach(this::withTimeout);
+        try {
+            return elasticsearchClient.msearch(request, RequestOptions.DEFAULT);
+        } catch (IOException e) {
+            try {
+                return elasticsearchClient.msearch(request, RequestOptions.DEFAULT);
+            } catch (IOException ee) {
+                throw new RuntimeException("Multi search failed (performed a retry after IOException)", ee);
+            }
+        }
+    }
+
+    /**
+     * Performs the search without blocking the calling thread, retrying once if it fails with an IOException. The
+     * returned future is completed by the client's I/O threads, so dependent stages must not block. The search is
+     * cancelled if the deadline is.
+     */
+    CompletableFuture<SearchResponse> searchAsync(SearchRequest request) {
+        CompletableFuture<SearchResponse> response = new CompletableFuture<>();
+        try {
+            withTimeout(request);
+        } catch (DeadlineExceededException e) {
+            response.completeExceptionally(e);
+            return response;
+        }
+        cancelOnDeadline(elasticsearchClient.searchAsync(request, RequestOptions.DEFAULT, ActionListener.wrap(response::complete, e -> {
+            if (!(e instanceof IOException) || cancelled()) {
+                response.completeExceptionally(cancelled() ? new DeadlineExceededException("Search was cancelled") : e);
+                return;
+            }
+            cancelOnDeadline(elasticsearchClient.searchAsync(request, RequestOptions.DEFAULT, ActionListener.wrap(
+                    response::complete,
+                    ee -> response.completeExceptionally(cancelled()
+                            ? new DeadlineExceededException("Search was cancelled")
+                            : new RuntimeException("Search failed (performed a retry after IOException)", ee))
+            )));
+        })));
+        return response.thenApply(this::timedOut);
+    }
+
+    /**
+     * Gives the search the time remaining of the deadline as its timeout, after which shards return what they have
+     * found so far. A search after the deadline has been released has no timeout.
+     */
+    private void withTimeout(SearchRequest request) {
+        if (deadline == null)
+            return;
+        if (deadline.isCancelled())
+            throw new DeadlineExceededException("Query was cancelled before search");
+        if (deadline.isReleased())
+            return;
+        if (deadline.remaining().isZero())
+            throw new DeadlineExceededException("Deadline passed before search");
+        request.source().timeout(TimeValue.timeValueMillis(deadline.remaining().toMillis()));
+    }
+
+    /**
+     * @return the response, unless it timed out and the deadline does not allow partial results
+     */
+    SearchResponse timedOut(SearchResponse response) {
+        if (deadline == null || !response.isTimedOut())
+            return response;
+        if (!deadline.allowsPartialResults())
+            throw new DeadlineExceededException("Search timed out");
+        deadline.markPartial();
+        return response;
+    }
+
+    private void cancelOnDeadline(Cancellable search) {
+        if (deadline != null)
+            deadline.onCancel(search::cancel);
+    }
+
+    private boolean cancelled() {
+        return deadline != null && deadline.isCancelled();
+    }
+
+    /**
+     * @return whether results may be cached, which they may not if they can be partial
+     */
+    boolean cacheable() {
+        return deadline == null || !deadline.allowsPartialResults();
+    }
+
+    /**
+     * Performs the searches concurrently, with at most the given number in progress at a time. Each search is started
+     * when a previous one completes, so the calling thread is not blocked.
+     *
+     * @return the responses in the order of the requests
+     */
+    CompletableFuture<List<SearchResponse>> searchAsync(List<SearchRequest> requests, int maxConcurrentRequests) {
+        List<CompletableFuture<SearchResponse>> responses = new ArrayList<>();
+        requests.forEach(request -> responses.add(new CompletableFuture<>()));
+        AtomicInteger next = new AtomicInteger();
+        for (int i = 0; i < Math.min(maxConcurrentRequests, requests.size()); i++)
+            searchNext(requests, responses, next);
+        return CompletableFuture.allOf(responses.toArray(new CompletableFuture[0]))
+                .thenApply(v -> responses.stream().map(CompletableFuture::join).collect(toList()));
+    }
+
+    private void searchNext(List<SearchRequest> requests, List<CompletableFuture<SearchResponse>> responses, AtomicInteger next) {
+        int i = next.getAndIncrement();
+        if (i >= requests.size())
+            return;
+        searchAsync(requests.get(i)).whenComplete((response, e) -> {
+            if (e != null)
+                responses.get(i).completeExceptionally(e);
+            else
+                responses.get(i).complete(response);
+            searchNext(requests, responses, next);
+        });
+    }
+
+    /**
+     * Waits for the result of an asynchronous query, for callers which are not asynchronous themselves.
+     */
+    static <T> T await(CompletableFuture<T> result) {
+        try {
+            return result.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new RuntimeException("Search failed", e.getCause());
+        }
+    }
+
     Map<String, Long> measurementsFromSumAggregations(Aggregations aggregations) {
         return aggregations.asList().stream().filter(a -> a instanceof Sum).map(a -> (Sum)a).collect(toMap(Aggregation::getName, a -> (long)a.getValue()));
     }
@@ -52,24 +198,52 @@ public abstract class Query {
     }
 
     static SearchRequest searchRequest(List<String> indexNames, QueryFilter queryFilter, QueryBuilder postFilter, int resultSize, AggregationBuilder...aggregations) {
-        SearchSourceBuilder searchSource = searchSource(queryFilter)
+        return searchRequest(indexNames, filterQuery(queryFilter), postFilter, resultSize, aggregations);
+    }
+
+    static SearchRequest searchRequest(List<String> indexNames, QueryBuilder query, QueryBuilder postFilter, int resultSize, AggregationBuilder...aggregations) {
+        return searchRequest(indexNames, query, postFilter, resultSize, ASC, aggregations);
+    }
+
+    static SearchRequest searchRequest(
+            List<String> indexNames,
+            QueryBuilder query,
+            QueryBuilder postFilter,
+            int resultSize,
+            SortOrder order,
+            AggregationBuilder...aggregations
+    ) {
+        SearchSourceBuilder searchSource = SearchSourceBuilder.searchSource()
+                .query(query)
                 .postFilter(postFilter)
                 .size(resultSize)
-                .sort(timeFieldName, ASC);
-        for (AggregationBuilder aggregation : aggregations)
-            searchSource.aggregation(aggregation);
+                .sort(timeFieldName, order);
+        for (AggregationBuilder aggregation : aggregations) {
+            if (aggregation != null)
+                searchSource.aggregation(aggregation);
+        }
         return new SearchRequest(indexNames.toArray(new String[0]))
                 .indicesOptions(IndicesOptions.fromOptions(true, true, true, false))
                 .types(indexType)
                 .source(searchSource);
     }
 
-    private static SearchSourceBuilder searchSource(QueryFilter queryFilter) {
+    static BoolQueryBuilder filterQuery(QueryFilter queryFilter) {
         BoolQueryBuilder boolQuery = boolQuery();
         if (queryFilter.timeRange() != null)
             boolQuery.filter(timeRangeQuery(queryFilter.timeRange()));
         queryFilter.categories().forEach((k, v) -> boolQuery.filter(categoryQuery(k, v)));
-        return SearchSourceBuilder.searchSource().query(boolQuery);
+        return boolQuery;
+    }
+
+    /**
+     * @return the filter query of the query filter, leaving out documents matching the exclusion if given
+     */
+    static BoolQueryBuilder filterQuery(QueryFilter queryFilter, QueryBuilder exclusion) {
+        BoolQueryBuilder boolQuery = filterQuery(queryFilter);
+        if (exclusion != null)
+            boolQuery.mustNot(exclusion);
+        return boolQuery;
     }
 
     private static MatchQueryBuilder categoryQuery(String key, String value) {
@@ -2,8 +2,17 @@ package no.difi.statistics.query.elasticsearch.commands;
 
 import no.difi.statistics.model.TimeSeriesPoint;
 
+import java.util.concurrent.CompletableFuture;
+
 public abstract class SinglePointQuery extends Query {
 
-    public abstract TimeSeriesPoint execute();
+    public TimeSeriesPoint execute() {
+        return await(executeAsync());
+    }
+
+    /**
+     * Performs the query without blocking the calling thread.
+     */
+    public abstract CompletableFuture<TimeSeriesPoint> executeAsync();
 
 }
@@ -1,55 +1,206 @@
 package no.difi.statistics.query.elasticsearch.commands;
 
 import no.difi.statistics.model.MeasurementDistance;
+import no.difi.statistics.model.TimeRange;
 import no.difi.statistics.model.TimeSeriesDefinition;
 import no.difi.statistics.model.TimeSeriesPoint;
 import no.difi.statistics.query.model.QueryFilter;
+import org.elasticsearch.action.search.SearchRequest;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.client.RestHighLevelClient;
 import org.elasticsearch.search.aggregations.Aggregation;
+import org.elasticsearch.search.aggregations.Aggregations;
 import org.elasticsearch.search.aggregations.bucket.MultiBucketsAggregation;
 import org.elasticsearch.search.aggregations.bucket.histogram.DateHistogramAggregationBuilder;
 import org.elasticsearch.search.aggregations.metrics.Sum;
 
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
 
+import static java.time.ZoneOffset.UTC;
+import static java.time.temporal.ChronoUnit.YEARS;
 import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static java.util.concurrent.CompletableFuture.completedFuture;
 import static java.util.stream.Collectors.toList;
 import static no.difi.statistics.elasticsearch.IndexNameResolver.resolveIndexName;
+import static no.difi.statistics.elasticsearch.Timestamp.truncatedTimestamp;
 import static org.elasticsearch.search.aggregations.AggregationBuilders.sum;
 
-public class SumHistogramQuery extends HistogramQuery {
+public class SumHistogramQuery extends HistogramQuery implements BatchableQuery {
 
     private TimeSeriesDefinition seriesDefinition;
     private QueryFilter queryFilter;
     private MeasurementDistance targetDistance;
     private GetMeasurementIdentifiers.Builder getMeasurementIdentifiersCommand;
+    private BucketCache bucketCache;
+    private int maxParallelSlices = 1;
+    private List<String> batchMeasurementIds;
+    private BucketCache.Lookup batchLookup;
 
     @Override
     public List<TimeSeriesPoint> execute() {
-        return sumPerDistance(
-                resolveIndexName().seriesDefinition(seriesDefinition).range(queryFilter.timeRange()).list(),
-                targetDistance,
-                queryFilter
-        );
-    }
-
-    private List<TimeSeriesPoint> sumPerDistance(List<String> indexNames, MeasurementDistance targetDistance, QueryFilter queryFilter) {
-        SearchResponse response = search(searchRequest(
-                indexNames,
-                queryFilter,
-                null,
-                0,
-                sumPerDistanceAggregation(targetDistance, getMeasurementIdentifiersCommand.indexNames(indexNames).execute())
-        ));
-        if (response.getAggregations() != null)
-            return points(response.getAggregations().get(targetDistance.name()), queryFilter.categories());
-        else
-            return emptyList();
+        return stream().collect(toList());
+    }
+
+    public Stream<TimeSeriesPoint> stream() {
+        return await(streamAsync());
+    }
+
+    /**
+     * Performs the query without blocking the calling thread.
+     *
+     * @return the points in order. Unless cached or sliced buckets must be merged, points are converted from the
+     * aggregation buckets as the stream is consumed.
+     */
+    public CompletableFuture<Stream<TimeSeriesPoint>> streamAsync() {
+        return getMeasurementIdentifiersCommand.indexNames(indexNames(queryFilter)).executeAsync().thenCompose(measurementIds -> {
+            BucketCache.Lookup lookup = lookup(measurementIds);
+            if (lookup == null || !lookup.hasCached())
+                return search(measurementIds, lookup);
+            return searchAsync(searchRequest(
+                    indexNames(queryFilter),
+                    filterQuery(queryFilter, lookup.exclusion()),
+                    null,
+                    0,
+                    sumPerDistanceAggregation(targetDistance, measurementIds),
+                    lookup.validation(filterQuery(queryFilter))
+            )).thenCompose(response -> {
+                List<TimeSeriesPoint> points = lookup.points(response.getAggregations(), buckets(response.getAggregations()));
+                if (points != null)
+                    return completedFuture(withEmptyBuckets(points, measurementIds).stream());
+                return search(measurementIds, null);
+            });
+        });
+    }
+
+    /**
+     * @return the points of the searched range, stored in the cache if a lookup is given
+     */
+    private CompletableFuture<Stream<TimeSeriesPoint>> search(List<String> measurementIds, BucketCache.Lookup lookup) {
+        return search(measurementIds).thenApply(responses -> {
+            if (lookup == null && responses.size() == 1) {
+                Aggregations aggregations = responses.get(0).getAggregations();
+                if (aggregations == null)
+                    return Stream.empty();
+                MultiBucketsAggregation aggregation = aggregations.get(targetDistance.name());
+                return aggregation.getBuckets().stream().map(bucket -> point(bucket).categories(queryFilter.categories()).build());
+            }
+            List<BucketCache.Bucket> buckets = new ArrayList<>();
+            for (SearchResponse response : responses)
+                buckets.addAll(buckets(response.getAggregations()));
+            List<TimeSeriesPoint> points = lookup != null
+                    ? lookup.points(null, buckets)
+                    : buckets.stream().flatMap(bucket -> bucket.points().stream()).collect(toList());
+            return withEmptyBuckets(points, measurementIds).stream();
+        });
+    }
+
+    @Override
+    public CompletableFuture<SearchRequest> batchSearchRequest() {
+        return getMeasurementIdentifiersCommand.indexNames(indexNames(queryFilter)).executeAsync().thenApply(measurementIds -> {
+            batchMeasurementIds = measurementIds;
+            batchLookup = lookup(batchMeasurementIds);
+            if (batchLookup != null && batchLookup.hasCached())
+                return null;
+            return searchRequest(indexNames(queryFilter), queryFilter, null, 0, sumPerDistanceAggregation(targetDistance, batchMeasurementIds));
+        });
+    }
+
+    @Override
+    public List<TimeSeriesPoint> points(SearchResponse response) {
+        List<BucketCache.Bucket> buckets = buckets(response.getAggregations());
+        if (batchLookup == null)
+            return buckets.stream().flatMap(bucket -> bucket.points().stream()).collect(toList());
+        return withEmptyBuckets(batchLookup.points(null, buckets), batchMeasurementIds);
+    }
+
+    @Override
+    public List<TimeSeriesPoint> points() {
+        return execute();
+    }
+
+    private BucketCache.Lookup lookup(List<String> measurementIds) {
+        return bucketCache != null && cacheable()
+                ? bucketCache.lookup(seriesDefinition, "sum", targetDistance, queryFilter, measurementIds)
+                : null;
+    }
+
+    /**
+     * Searches with one request, or with one request per year when parallel searches are enabled and the range spans
+     * several years. Each year has its own index, so the slices are disjoint and their responses are in order.
+     */
+    private CompletableFuture<List<SearchResponse>> search(List<String> measurementIds) {
+        List<QueryFilter> slices = maxParallelSlices > 1 ? slices(queryFilter, ZonedDateTime.now()) : singletonList(queryFilter);
+        if (slices.size() == 1)
+            return searchAsync(searchRequest(indexNames(queryFilter), queryFilter, null, 0, sumPerDistanceAggregation(targetDistance, measurementIds)))
+                    .thenApply(Collections::singletonList);
+        List<SearchRequest> requests = new ArrayList<>();
+        for (QueryFilter slice : slices)
+            requests.add(searchRequest(indexNames(slice), slice, null, 0, sumPerDistanceAggregation(targetDistance, measurementIds)));
+        return searchAsync(requests, maxParallelSlices);
+    }
+
+    private List<String> indexNames(QueryFilter queryFilter) {
+        return resolveIndexName().seriesDefinition(seriesDefinition).range(queryFilter.timeRange()).list();
+    }
+
+    /**
+     * @return the filter split at the (UTC) year boundaries of its range, or just the filter if its range is open at
+     * the start or within one year, or if the series is not stored in yearly indices
+     */
+    List<QueryFilter> slices(QueryFilter queryFilter, ZonedDateTime now) {
+        TimeRange range = queryFilter.timeRange();
+        if (range == null || range.from() == null || seriesDefinition.getDistance() == MeasurementDistance.years)
+            return singletonList(queryFilter);
+        ZonedDateTime to = range.to() != null ? range.to() : now;
+        List<QueryFilter> slices = new ArrayList<>();
+        ZonedDateTime from = range.from().withZoneSameInstant(UTC);
+        ZonedDateTime nextYear = truncatedTimestamp(from, YEARS).plusYears(1);
+        while (nextYear.isBefore(to) || nextYear.isEqual(to)) {
+            slices.add(slice(queryFilter, from, nextYear.minusNanos(1_000_000))); // Range is inclusive in milliseconds
+            from = nextYear;
+            nextYear = nextYear.plusYears(1);
+        }
+        if (slices.isEmpty())
+            return singletonList(queryFilter);
+        slices.add(slice(queryFilter, from, range.to() != null ? range.to().withZoneSameInstant(UTC) : null));
+        return slices;
+    }
+
+    private static QueryFilter slice(QueryFilter queryFilter, ZonedDateTime from, ZonedDateTime to) {
+        return QueryFilter.queryFilter()
+                .range(from, to)
+                .categories(queryFilter.categories())
+                .perCategory(queryFilter.perCategory())
+                .build();
+    }
+
+    /**
+     * Adds the empty buckets a single date histogram would have returned between the buckets of cached or separately
+     * aggregated parts of the range.
+     */
+    private List<TimeSeriesPoint> withEmptyBuckets(List<TimeSeriesPoint> points, List<String> measurementIds) {
+        if (points.size() < 2)
+            return points;
+        Map<String, Long> noMeasurements = new HashMap<>();
+        measurementIds.forEach(measurementId -> noMeasurements.put(measurementId, 0L));
+        List<TimeSeriesPoint> result = new ArrayList<>(points.size());
+        result.add(points.get(0));
+        for (TimeSeriesPoint point : points.subList(1, points.size())) {
+            ZonedDateTime previous = result.get(result.size() - 1).getTimestamp();
+            for (ZonedDateTime empty = nextBucket(previous, targetDistance); empty.isBefore(point.getTimestamp()); empty = nextBucket(empty, targetDistance))
+                result.add(TimeSeriesPoint.builder().timestamp(empty).measurements(noMeasurements).categories(queryFilter.categories()).build());
+            result.add(point);
+        }
+        return result;
     }
 
     private DateHistogramAggregationBuilder sumPerDistanceAggregation(MeasurementDistance targetDistance, List<String> measurementIds) {
@@ -59,10 +210,16 @@ public class SumHistogramQuery extends HistogramQuery {
         return dateHistogram;
     }
 
-    private List<TimeSeriesPoint> points(MultiBucketsAggregation aggregation, Map<String, String> categories) {
+    private List<BucketCache.Bucket> buckets(Aggregations aggregations) {
+        if (aggregations == null)
+            return emptyList();
+        MultiBucketsAggregation aggregation = aggregations.get(targetDistance.name());
         return aggregation.getBuckets().stream()
-                .map(this::point)
-                .map(p -> p.categories(categories).build())
+                .map(bucket -> new BucketCache.Bucket(
+                        timestamp(bucket),
+                        bucket.getDocCount(),
+                        singletonList(point(bucket).categories(queryFilter.categories()).build())
+                ))
                 .collect(toList());
     }
 
@@ -102,6 +259,7 @@ public class SumHistogramQuery extends HistogramQuery {
 
         public Builder queryFilter(QueryFilter queryFilter) {
             instance.queryFilter = queryFilter;
+            instance.deadline = queryFilter.deadline();
             return this;
         }
 
@@ -115,6 +273,20 @@ public class SumHistogramQuery extends HistogramQuery {
             return this;
         }
 
+        public Builder bucketCache(BucketCache bucketCache) {
+            instance.bucketCache = bucketCache;
+            return this;
+        }
+
+        /**
+         * @param maxParallelSlices the number of yearly slices of the range to search concurrently. With 1 the whole
+         *                          range is searched with a single request.
+         */
+        public Builder maxParallelSlices(int maxParallelSlices) {
+            instance.maxParallelSlices = maxParallelSlices;
+            return this;
+        }
+
         public SumHistogramQuery build() {
             return instance;
         }
@@ -5,6 +5,7 @@ import no.difi.statistics.model.TimeRange;
 import no.difi.statistics.model.TimeSeriesDefinition;
 import no.difi.statistics.model.TimeSeriesPoint;
 import no.difi.statistics.query.model.QueryFilter;
+import org.elasticsearch.action.search.SearchRequest;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.client.RestHighLevelClient;
 import org.elasticsearch.search.SearchHit;
@@ -12,78 +13,193 @@ import org.elasticsearch.search.aggregations.AggregationBuilder;
 import org.elasticsearch.search.aggregations.AggregationBuilders;
 import org.elasticsearch.search.aggregations.Aggregations;
 import org.elasticsearch.search.aggregations.bucket.MultiBucketsAggregation;
+import org.elasticsearch.search.aggregations.bucket.histogram.DateHistogramAggregationBuilder;
+import org.elasticsearch.search.aggregations.bucket.histogram.DateHistogramInterval;
+import org.elasticsearch.search.aggregations.bucket.histogram.Histogram;
 import org.elasticsearch.search.aggregations.bucket.range.DateRangeAggregationBuilder;
 import org.elasticsearch.search.aggregations.bucket.range.Range;
 import org.elasticsearch.search.aggregations.bucket.terms.Terms;
+import org.elasticsearch.search.aggregations.metrics.Max;
 import org.elasticsearch.search.aggregations.metrics.TopHits;
 import org.elasticsearch.search.sort.SortOrder;
 
+import java.time.Instant;
 import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
+import static java.time.ZoneOffset.UTC;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static java.util.concurrent.CompletableFuture.completedFuture;
 import static java.util.stream.Collectors.toList;
 import static no.difi.statistics.elasticsearch.IndexNameResolver.resolveIndexName;
 import static no.difi.statistics.elasticsearch.QueryBuilders.sumPerTimestampAggregation;
+import static no.difi.statistics.model.MeasurementDistance.months;
 import static org.elasticsearch.search.aggregations.AggregationBuilders.*;
 import static org.elasticsearch.search.aggregations.BucketOrder.key;
 
-public class SumQuery extends SinglePointQuery {
+public class SumQuery extends SinglePointQuery implements BatchableQuery {
 
     private static final String timestampField = "timestamp";
     private TimeSeriesDefinition seriesDefinition;
     private QueryFilter queryFilter;
     private GetMeasurementIdentifiers.Builder getMeasurementIdentifiersCommand;
+    private BucketCache bucketCache;
+    private List<String> batchIndexNames;
+    private List<String> batchMeasurementIds;
 
     @Override
-    public TimeSeriesPoint execute() {
-        return sumAggregate(
-                resolveIndexName().seriesDefinition(seriesDefinition).range(queryFilter.timeRange()).list(),
-                queryFilter
-        );
+    public CompletableFuture<TimeSeriesPoint> executeAsync() {
+        List<String> indexNames = indexNames();
+        return getMeasurementIdentifiersCommand.indexNames(indexNames).executeAsync().thenCompose(measurementIds -> {
+            BucketCache.Lookup lookup = lookup(measurementIds);
+            if (lookup == null)
+                return rangeSum(indexNames, measurementIds);
+            return monthlyTotals(indexNames, lookup, measurementIds).thenCompose(monthlyTotals -> monthlyTotals != null
+                    ? completedFuture(total(monthlyTotals))
+                    : rangeSum(indexNames, measurementIds));
+        });
     }
 
-    private TimeSeriesPoint sumAggregate(List<String> indexNames, QueryFilter queryFilter) {
-        if (queryFilter.timeRange() == null)
-            return sumAggregateUnbounded(indexNames, queryFilter);
-        SearchResponse response = search(searchRequest(
-                indexNames,
-                queryFilter,
-                null,
-                0,
-                sumAggregation("a", queryFilter.timeRange(), measurementIds(indexNames))
+    private CompletableFuture<TimeSeriesPoint> rangeSum(List<String> indexNames, List<String> measurementIds) {
+        return searchAsync(sumRequest(indexNames, measurementIds)).thenApply(this::point);
+    }
+
+    @Override
+    public CompletableFuture<SearchRequest> batchSearchRequest() {
+        batchIndexNames = indexNames();
+        return getMeasurementIdentifiersCommand.indexNames(batchIndexNames).executeAsync().thenApply(measurementIds -> {
+            batchMeasurementIds = measurementIds;
+            if (lookup(batchMeasurementIds) != null)
+                return null;
+            return sumRequest(batchIndexNames, batchMeasurementIds);
+        });
+    }
+
+    @Override
+    public List<TimeSeriesPoint> points(SearchResponse response) {
+        return asList(point(response));
+    }
+
+    @Override
+    public List<TimeSeriesPoint> points() {
+        return asList(execute());
+    }
 
-        ));
+    private static List<TimeSeriesPoint> asList(TimeSeriesPoint point) {
+        return point != null ? singletonList(point) : emptyList();
+    }
+
+    private List<String> indexNames() {
+        return resolveIndexName().seriesDefinition(seriesDefinition).range(queryFilter.timeRange()).list();
+    }
+
+    private BucketCache.Lookup lookup(List<String> measurementIds) {
+        if (bucketCache == null || queryFilter.timeRange() == null || !cacheable())
+            return null;
+        return bucketCache.lookup(seriesDefinition, "total", months, queryFilter, measurementIds);
+    }
+
+    /**
+     * @return search for the sum over the range, or over all points with the timestamp of the last when there is no
+     * range
+     */
+    private SearchRequest sumRequest(List<String> indexNames, List<String> measurementIds) {
+        if (queryFilter.timeRange() == null) {
+            List<AggregationBuilder> aggregations = measurementIds.stream().map(mid -> AggregationBuilders.sum(mid).field(mid)).collect(toList());
+            aggregations.add(sumPerTimestampAggregation("last", measurementIds).order(key(false)).size(1));
+            return searchRequest(indexNames, queryFilter, null, 0, aggregations.toArray(new AggregationBuilder[0]));
+        }
+        return searchRequest(indexNames, queryFilter, null, 0, sumAggregation("a", queryFilter.timeRange(), measurementIds));
+    }
+
+    private TimeSeriesPoint point(SearchResponse response) {
         if (response.getAggregations() == null)
             return null;
-        return sumPointFromRangeBucket(response.getAggregations().get("a")).categories(queryFilter.categories()).build();
+        TimeSeriesPoint.Builder point = queryFilter.timeRange() == null
+                ? sumPoint(response.getAggregations())
+                : sumPointFromRangeBucket(response.getAggregations().get("a"));
+        return point != null ? point.categories(queryFilter.categories()).build() : null;
     }
 
     private static DateRangeAggregationBuilder sumAggregation(String name, TimeRange timeRange, List<String> measurementIds) {
-        DateRangeAggregationBuilder builder = dateRange(name).field(timestampField);
-        if (timeRange.from() == null)
-            builder.addUnboundedTo(Timestamp.format(timeRange.to()));
-        else if (timeRange.to() == null)
-            builder.addUnboundedFrom(Timestamp.format(timeRange.from()));
-        else
-            builder.addRange(Timestamp.format(timeRange.from()), Timestamp.format(timeRange.to()));
+        DateRangeAggregationBuilder builder = dateRangeAggregation(name, timeRange);
         for (String measurementId : measurementIds)
             builder.subAggregation(sum(measurementId).field(measurementId));
         builder.subAggregation(topHits("last").size(1).sort(timestampField, SortOrder.DESC)); // For timestamp on sum point
         return builder;
     }
 
-    private TimeSeriesPoint sumAggregateUnbounded(List<String> indexNames, QueryFilter queryFilter) {
-        List<String> measurementIds = measurementIds(indexNames);
-        List<AggregationBuilder> aggregations = measurementIds.stream().map(mid -> AggregationBuilders.sum(mid).field(mid)).collect(toList());
-        aggregations.add(sumPerTimestampAggregation("last", measurementIds).order(key(false)).size(1));
-        SearchResponse response = search(searchRequest(
+    /**
+     * @return the totals per month of the range, each with the timestamp of its last point, taking the closed months
+     * from the cache and searching only the rest of the range. Returns null if the cached months are no longer valid.
+     */
+    private CompletableFuture<List<TimeSeriesPoint>> monthlyTotals(List<String> indexNames, BucketCache.Lookup lookup, List<String> measurementIds) {
+        DateRangeAggregationBuilder range = dateRangeAggregation("a", queryFilter.timeRange());
+        DateHistogramAggregationBuilder perMonth = dateHistogram(months.name())
+                .field(timestampField)
+                .calendarInterval(DateHistogramInterval.MONTH)
+                .subAggregation(max("last").field(timestampField));
+        measurementIds.forEach(measurementId -> perMonth.subAggregation(sum(measurementId).field(measurementId)));
+        return searchAsync(searchRequest(
                 indexNames,
-                queryFilter,
+                filterQuery(queryFilter, lookup.exclusion()),
                 null,
                 0,
-                aggregations.toArray(new AggregationBuilder[0])
-        ));
-        return sumPoint(response.getAggregations()).categories(queryFilter.categories()).build();
+                range.subAggregation(perMonth),
+                lookup.validation(filterQuery(queryFilter))
+        )).thenApply(response -> lookup.points(response.getAggregations(), buckets(response)));
+    }
+
+    private List<BucketCache.Bucket> buckets(SearchResponse response) {
+        List<BucketCache.Bucket> buckets = new ArrayList<>();
+        if (response.getAggregations() != null) {
+            Range.Bucket rangeBucket = response.getAggregations().<Range>get("a").getBuckets().get(0);
+            for (Histogram.Bucket bucket : rangeBucket.getAggregations().<Histogram>get(months.name()).getBuckets()) {
+                if (bucket.getDocCount() == 0)
+                    continue;
+                long last = (long) bucket.getAggregations().<Max>get("last").getValue();
+                buckets.add(new BucketCache.Bucket(
+                        (ZonedDateTime) bucket.getKey(),
+                        bucket.getDocCount(),
+                        singletonList(TimeSeriesPoint.builder()
+                                .timestamp(ZonedDateTime.ofInstant(Instant.ofEpochMilli(last), UTC))
+                                .measurements(measurementsFromSumAggregations(bucket.getAggregations()))
+                                .build())
+                ));
+            }
+        }
+        return buckets;
+    }
+
+    /**
+     * @return the sum of the monthly totals, with the timestamp of the last, or null if there are none
+     */
+    TimeSeriesPoint total(List<TimeSeriesPoint> monthlyTotals) {
+        if (monthlyTotals.isEmpty())
+            return null;
+        Map<String, Long> measurements = new HashMap<>();
+        monthlyTotals.forEach(point -> point.getMeasurements().forEach((id, value) -> measurements.merge(id, value, Long::sum)));
+        return TimeSeriesPoint.builder()
+                .timestamp(monthlyTotals.get(monthlyTotals.size() - 1).getTimestamp())
+                .measurements(measurements)
+                .categories(queryFilter.categories())
+                .build();
+    }
+
+    private static DateRangeAggregationBuilder dateRangeAggregation(String name, TimeRange timeRange) {
+        DateRangeAggregationBuilder builder = dateRange(name).field(timestampField);
+        if (timeRange.from() == null)
+            builder.addUnboundedTo(Timestamp.format(timeRange.to()));
+        else if (timeRange.to() == null)
+            builder.addUnboundedFrom(Timestamp.format(timeRange.from()));
+        else
+            builder.addRange(Timestamp.format(timeRange.from()), Timestamp.format(timeRange.to()));
+        return builder;
     }
 
     private TimeSeriesPoint.Builder sumPointFromRangeBucket(Range range) {
@@ -102,10 +218,6 @@ public class SumQuery extends SinglePointQuery {
         return TimeSeriesPoint.builder().timestamp(timestamp).measurements(measurementsFromSumAggregations(aggregations));
     }
 
-    private List<String> measurementIds(List<String> indexNames) {
-        return getMeasurementIdentifiersCommand.indexNames(indexNames).execute();
-    }
-
     private static ZonedDateTime timestamp(MultiBucketsAggregation.Bucket bucket) {
         return Timestamp.parse(bucket.getKeyAsString());
     }
@@ -134,6 +246,7 @@ public class SumQuery extends SinglePointQuery {
 
         public Builder queryFilter(QueryFilter queryFilter) {
             instance.queryFilter = queryFilter;
+            instance.deadline = queryFilter.deadline();
             return this;
         }
 
@@ -142,6 +255,11 @@ public class SumQuery extends SinglePointQuery {
             return this;
         }
 
+        public Builder bucketCache(BucketCache bucketCache) {
+            instance.bucketCache = bucketCache;
+            return this;
+        }
+
         public SumQuery build() {
             return instance;
         }
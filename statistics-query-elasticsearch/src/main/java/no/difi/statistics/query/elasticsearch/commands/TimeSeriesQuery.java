@@ -1,101 +1,429 @@
 package no.difi.statistics.query.elasticsearch.commands;
 
-import no.difi.statistics.elasticsearch.Timestamp;
 import no.difi.statistics.model.TimeSeriesDefinition;
 import no.difi.statistics.model.TimeSeriesPoint;
 import no.difi.statistics.query.model.QueryFilter;
+import org.elasticsearch.action.search.SearchRequest;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.client.RestHighLevelClient;
-import org.elasticsearch.search.aggregations.bucket.MultiBucketsAggregation;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.search.aggregations.AggregationBuilder;
+import org.elasticsearch.search.aggregations.bucket.composite.CompositeAggregation;
+import org.elasticsearch.search.aggregations.bucket.terms.Terms;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.time.Instant;
 import java.time.ZonedDateTime;
-import java.util.Collection;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
+import static java.time.ZoneOffset.UTC;
 import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static java.util.concurrent.CompletableFuture.completedFuture;
+import static java.util.Spliterator.ORDERED;
+import static java.util.Spliterators.spliteratorUnknownSize;
 import static java.util.stream.Collectors.toList;
 import static no.difi.statistics.elasticsearch.IndexNameResolver.resolveIndexName;
-import static no.difi.statistics.elasticsearch.QueryBuilders.summarizeMeasurements;
+import static no.difi.statistics.elasticsearch.QueryBuilders.categoryField;
+import static no.difi.statistics.elasticsearch.QueryBuilders.categoryPartition;
+import static no.difi.statistics.elasticsearch.QueryBuilders.heaviestCategories;
+import static no.difi.statistics.elasticsearch.QueryBuilders.summarizeMeasurementsPaged;
 import static no.difi.statistics.model.MeasurementDistance.*;
+import static org.elasticsearch.index.query.QueryBuilders.boolQuery;
+import static org.elasticsearch.index.query.QueryBuilders.termsQuery;
 
-public class TimeSeriesQuery extends Query {
+public class TimeSeriesQuery extends Query implements BatchableQuery {
+
+    private static final String aggregationName = "points";
+    private static final String heaviestAggregationName = "heaviestCategories";
+    private static final String partitionAggregationName = "partition";
+    private static final int maxPartitionValues = 10_000;
 
     private final Logger logger = LoggerFactory.getLogger(getClass());
     private TimeSeriesDefinition seriesDefinition;
     private QueryFilter queryFilter;
     private SumHistogramQuery.Builder getSumHistogramCommand;
     private GetMeasurementIdentifiers.Builder getMeasurementIdentifiersCommand;
+    private BucketCache bucketCache;
+    private int pageSize = 1000;
+    private int categoryPartitions = 1;
+    private TimestampAggregation timestampAggregation = TimestampAggregation.terms;
+    private List<String> batchIndexNames;
+    private List<String> batchMeasurementIds;
+    private QueryBuilder batchQuery;
+    private BucketCache.Lookup batchLookup;
+
+    /**
+     * How points are grouped by timestamp. Since the points of a series are stored at whole multiples of the series'
+     * distance, both give the same result.
+     */
+    public enum TimestampAggregation {
+        /** One bucket per distinct timestamp value */
+        terms,
+        /** A date histogram with the series' distance as interval */
+        dateHistogram
+    }
 
     public List<TimeSeriesPoint> execute() {
-        List<TimeSeriesPoint> result = search(
-                resolveIndexName().seriesDefinition(seriesDefinition).range(queryFilter.timeRange()).list(),
-                queryFilter
-        );
-        if (result.isEmpty() && seriesDefinition.getDistance().equals(days)) {
+        return stream().collect(toList());
+    }
+
+    public Stream<TimeSeriesPoint> stream() {
+        return await(streamAsync());
+    }
+
+    /**
+     * Performs the query without blocking the calling thread. Only the first page is searched for before the result
+     * is completed.
+     * <p>
+     * With a category key, the values of the key may be split in partitions, searched concurrently and merged, so
+     * that many values are aggregated in several smaller searches instead of one large. If only the heaviest values
+     * are asked for, these are searched for first and the query is restricted to them.
+     *
+     * @return the points in order. Unless cached buckets must be merged, points are converted from the aggregation
+     * buckets as the stream is consumed, searching for each following page when the previous one is being consumed.
+     */
+    public CompletableFuture<Stream<TimeSeriesPoint>> streamAsync() {
+        return search(indexNames(), queryFilter).thenCompose(result -> result != null ? completedFuture(result) : fallback());
+    }
+
+    /**
+     * @return for day and month series without points, the sums of the minute series with the same name
+     */
+    private CompletableFuture<Stream<TimeSeriesPoint>> fallback() {
+        if (seriesDefinition.getDistance().equals(days)) {
             logger.info("Empty result for day series search. Attempting to aggregate minute series...");
             seriesDefinition = TimeSeriesDefinition.builder().name(seriesDefinition.getName()).distance(minutes).owner(seriesDefinition.getOwner());
-            result = getSumHistogramCommand
+            return getSumHistogramCommand
                     .seriesDefinition(seriesDefinition).targetDistance(days).queryFilter(queryFilter)
-                    .measurementIdentifiersCommand(getMeasurementIdentifiersCommand).build().execute();
-        } else if (result.isEmpty() && seriesDefinition.getDistance().equals(months)) {
+                    .measurementIdentifiersCommand(getMeasurementIdentifiersCommand).build().streamAsync();
+        } else if (seriesDefinition.getDistance().equals(months)) {
             logger.info("Empty result for month series search. Attempting to aggregate minute series...");
             seriesDefinition = TimeSeriesDefinition.builder().name(seriesDefinition.getName()).distance(minutes).owner(seriesDefinition.getOwner());
-            result = getSumHistogramCommand
+            return getSumHistogramCommand
                     .seriesDefinition(seriesDefinition).targetDistance(months).queryFilter(queryFilter)
-                    .measurementIdentifiersCommand(getMeasurementIdentifiersCommand).build().execute();
+                    .measurementIdentifiersCommand(getMeasurementIdentifiersCommand).build().streamAsync();
         }
-        return result;
+        return completedFuture(Stream.empty());
+    }
+
+    @Override
+    public CompletableFuture<SearchRequest> batchSearchRequest() {
+        batchIndexNames = indexNames();
+        return getMeasurementIdentifiersCommand.indexNames(batchIndexNames).executeAsync().thenCompose(measurementIds -> {
+            batchMeasurementIds = measurementIds;
+            batchLookup = lookup(batchMeasurementIds);
+            if (batchLookup != null && batchLookup.hasCached())
+                return completedFuture(null);
+            return query(batchIndexNames, filterQuery(queryFilter)).thenApply(query -> {
+                batchQuery = query;
+                return searchRequest(batchIndexNames, batchQuery, null, 0, aggregation(batchMeasurementIds, null));
+            });
+        });
+    }
+
+    @Override
+    public List<TimeSeriesPoint> points(SearchResponse response) {
+        Pages pages = new Pages(batchIndexNames, batchQuery != null ? batchQuery : filterQuery(queryFilter), batchMeasurementIds, response);
+        List<TimeSeriesPoint> points = batchLookup != null
+                ? batchLookup.points(null, buckets(pages))
+                : StreamSupport.stream(spliteratorUnknownSize(pages, ORDERED), false)
+                        .flatMap(page -> page.getBuckets().stream())
+                        .map(this::point)
+                        .collect(toList());
+        return points.isEmpty() ? await(fallback()).collect(toList()) : points;
+    }
+
+    @Override
+    public List<TimeSeriesPoint> points() {
+        return execute();
+    }
+
+    private List<String> indexNames() {
+        return resolveIndexName().seriesDefinition(seriesDefinition).range(queryFilter.timeRange()).list();
+    }
+
+    private BucketCache.Lookup lookup(List<String> measurementIds) {
+        return bucketCache != null && cacheable() && queryFilter.top() == null
+                ? bucketCache.lookup(seriesDefinition, "query", seriesDefinition.getDistance(), queryFilter, measurementIds)
+                : null;
+    }
+
+    /**
+     * @return the points, or null if there are none
+     */
+    private CompletableFuture<Stream<TimeSeriesPoint>> search(List<String> indexNames, QueryFilter queryFilter) {
+        return getMeasurementIdentifiersCommand.indexNames(indexNames).executeAsync().thenCompose(measurementIds -> {
+            BucketCache.Lookup lookup = lookup(measurementIds);
+            if (lookup == null)
+                return search(indexNames, queryFilter, measurementIds);
+            return partitions(indexNames, filterQuery(queryFilter, lookup.exclusion())).thenCompose(partitions -> {
+                List<SearchRequest> requests = new ArrayList<>();
+                for (int i = 0; i < partitions.size(); i++) {
+                    requests.add(searchRequest(
+                            indexNames, partitions.get(i), null, 0, aggregation(measurementIds, null),
+                            i == 0 ? lookup.validation(filterQuery(queryFilter)) : null
+                    ));
+                }
+                return searchAsync(requests, requests.size())
+                        .thenCompose(firsts -> buckets(indexNames, partitions, measurementIds, firsts)
+                                .thenCompose(buckets -> {
+                                    List<TimeSeriesPoint> points = lookup.points(firsts.get(0).getAggregations(), buckets);
+                                    if (points == null)
+                                        return search(indexNames, queryFilter, measurementIds);
+                                    return completedFuture(points.isEmpty() ? null : points.stream());
+                                }));
+            });
+        });
+    }
+
+    /**
+     * @return the points, converted and paged through as the stream is consumed, or null if there are none
+     */
+    private CompletableFuture<Stream<TimeSeriesPoint>> search(List<String> indexNames, QueryFilter queryFilter, List<String> measurementIds) {
+        return query(indexNames, filterQuery(queryFilter)).thenCompose(query -> partitions(indexNames, query)).thenCompose(partitions -> {
+            List<SearchRequest> requests = partitions.stream()
+                    .map(partition -> searchRequest(indexNames, partition, null, 0, aggregation(measurementIds, null)))
+                    .collect(toList());
+            return searchAsync(requests, requests.size()).thenApply(firsts -> {
+                List<Iterator<CompositeAggregation.Bucket>> buckets = new ArrayList<>();
+                for (int i = 0; i < partitions.size(); i++)
+                    buckets.add(flatten(new Pages(indexNames, partitions.get(i), measurementIds, firsts.get(i))));
+                Iterator<CompositeAggregation.Bucket> merged = buckets.size() == 1 ? buckets.get(0) : new MergedBuckets(buckets);
+                if (!merged.hasNext())
+                    return null;
+                return StreamSupport.stream(spliteratorUnknownSize(merged, ORDERED), false).map(this::point);
+            });
+        });
     }
 
-    private List<TimeSeriesPoint> search(List<String> indexNames, QueryFilter queryFilter) {
-        SearchResponse response = search(searchRequest(
-                indexNames,
-                queryFilter,
-                null,
-                0,
-                summarizeMeasurements("categoryAggregation", getMeasurementIdentifiersCommand.indexNames(indexNames).execute(), queryFilter.perCategory())
-        ));
-        if (response.getAggregations() != null)
-            return points(response.getAggregations().get("categoryAggregation"), queryFilter);
-        else
-            return emptyList();
+    /**
+     * @return the query, restricted to the heaviest values of the category key if only those are asked for
+     */
+    private CompletableFuture<QueryBuilder> query(List<String> indexNames, BoolQueryBuilder query) {
+        if (queryFilter.top() == null)
+            return completedFuture(query);
+        return searchAsync(searchRequest(
+                indexNames, query, null, 0,
+                heaviestCategories(heaviestAggregationName, queryFilter.perCategory(), queryFilter.topBy(), queryFilter.top())
+        )).thenApply(response -> {
+            Terms heaviest = response.getAggregations() != null ? response.getAggregations().get(heaviestAggregationName) : null;
+            List<String> values = heaviest != null
+                    ? heaviest.getBuckets().stream().map(Terms.Bucket::getKeyAsString).collect(toList())
+                    : emptyList();
+            return query.filter(termsQuery(categoryField(queryFilter.perCategory()), values));
+        });
     }
 
-    private List<TimeSeriesPoint> points(MultiBucketsAggregation aggregation, QueryFilter queryFilter) {
-        return points(aggregation.getBuckets().stream(), queryFilter.perCategory())
-                .map(p -> p.categories(queryFilter.categories()).build())
-                .collect(toList());
+    /**
+     * The values of each partition are found with a terms aggregation of the partition in a single search, so that
+     * the partitions are then searched for with plain terms queries.
+     *
+     * @return the query split by partitions of the values of the category key, or just the query if there is no
+     * category key, partitioning is disabled, only the heaviest values are asked for, or a partition has too many
+     * values to list
+     */
+    private CompletableFuture<List<QueryBuilder>> partitions(List<String> indexNames, QueryBuilder query) {
+        if (queryFilter.perCategory() == null || queryFilter.top() != null || categoryPartitions <= 1)
+            return completedFuture(singletonList(query));
+        AggregationBuilder[] aggregations = new AggregationBuilder[categoryPartitions];
+        for (int i = 0; i < categoryPartitions; i++)
+            aggregations[i] = categoryPartition(partitionAggregationName + i, queryFilter.perCategory(), i, categoryPartitions, maxPartitionValues);
+        return searchAsync(searchRequest(indexNames, query, null, 0, aggregations)).thenApply(response -> {
+            if (response.getAggregations() == null)
+                return singletonList(query);
+            List<QueryBuilder> partitions = new ArrayList<>();
+            for (int i = 0; i < categoryPartitions; i++) {
+                Terms partition = response.getAggregations().get(partitionAggregationName + i);
+                if (partition.getBuckets().size() >= maxPartitionValues)
+                    return singletonList(query);
+                List<String> values = partition.getBuckets().stream().map(Terms.Bucket::getKeyAsString).collect(toList());
+                if (!values.isEmpty())
+                    partitions.add(boolQuery().filter(query).filter(termsQuery(categoryField(queryFilter.perCategory()), values)));
+            }
+            return partitions.isEmpty() ? singletonList(query) : partitions;
+        });
     }
 
-    private Stream<TimeSeriesPoint.Builder> points(Stream<? extends MultiBucketsAggregation.Bucket> bucketStream, String categoryKey) {
-        if (categoryKey != null)
-            return bucketStream
-                    .map(bucket -> pointPerCategoryValue(categoryAggregation(bucket), Timestamp.parse(bucket.getKeyAsString()), categoryKey))
-                    .flatMap(Collection::stream);
-        else
-            return bucketStream
-                    .map(bucket -> point(bucket, Timestamp.parse(bucket.getKeyAsString())));
+    /**
+     * @return the buckets of all pages of all partitions, in order
+     */
+    private CompletableFuture<List<BucketCache.Bucket>> buckets(
+            List<String> indexNames,
+            List<QueryBuilder> partitions,
+            List<String> measurementIds,
+            List<SearchResponse> firsts
+    ) {
+        List<CompletableFuture<List<CompositeAggregation.Bucket>>> partitionBuckets = new ArrayList<>();
+        for (int i = 0; i < partitions.size(); i++)
+            partitionBuckets.add(buckets(indexNames, partitions.get(i), measurementIds, page(firsts.get(i)), new ArrayList<>()));
+        return CompletableFuture.allOf(partitionBuckets.toArray(new CompletableFuture[0])).thenApply(v -> {
+            List<Iterator<CompositeAggregation.Bucket>> iterators = partitionBuckets.stream()
+                    .map(buckets -> buckets.join().iterator())
+                    .collect(toList());
+            List<BucketCache.Bucket> buckets = new ArrayList<>();
+            new MergedBuckets(iterators).forEachRemaining(bucket -> buckets.add(bucket(bucket)));
+            return buckets;
+        });
     }
 
-    private List<TimeSeriesPoint.Builder> pointPerCategoryValue(
-            MultiBucketsAggregation aggregation,
-            ZonedDateTime timestamp,
-            String categoryKey
+    /**
+     * @return the buckets of the given page and the pages following it, searching for each page when the previous
+     * one has completed
+     */
+    private CompletableFuture<List<CompositeAggregation.Bucket>> buckets(
+            List<String> indexNames,
+            QueryBuilder query,
+            List<String> measurementIds,
+            CompositeAggregation page,
+            List<CompositeAggregation.Bucket> buckets
     ) {
-        return aggregation.getBuckets().stream()
-                .map(bucket -> point(bucket, timestamp).category(categoryKey, bucket.getKeyAsString()))
-                .collect(toList());
+        if (page == null || page.getBuckets().isEmpty())
+            return completedFuture(buckets);
+        buckets.addAll(page.getBuckets());
+        if (page.getBuckets().size() < pageSize)
+            return completedFuture(buckets);
+        return searchAsync(searchRequest(indexNames, query, null, 0, aggregation(measurementIds, page.afterKey())))
+                .thenCompose(response -> buckets(indexNames, query, measurementIds, page(response), buckets));
+    }
+
+    private List<BucketCache.Bucket> buckets(Pages pages) {
+        List<BucketCache.Bucket> buckets = new ArrayList<>();
+        pages.forEachRemaining(page -> page.getBuckets().forEach(bucket -> buckets.add(bucket(bucket))));
+        return buckets;
+    }
+
+    private static Iterator<CompositeAggregation.Bucket> flatten(Iterator<CompositeAggregation> pages) {
+        return StreamSupport.stream(spliteratorUnknownSize(pages, ORDERED), false)
+                .flatMap(page -> page.getBuckets().stream())
+                .iterator();
+    }
+
+    private BucketCache.Bucket bucket(CompositeAggregation.Bucket bucket) {
+        return new BucketCache.Bucket(timestamp(bucket), bucket.getDocCount(), singletonList(point(bucket)));
+    }
+
+    private static CompositeAggregation page(SearchResponse response) {
+        return response.getAggregations() != null ? response.getAggregations().get(aggregationName) : null;
+    }
+
+    private AggregationBuilder aggregation(List<String> measurementIds, Map<String, Object> after) {
+        return summarizeMeasurementsPaged(
+                aggregationName,
+                timestampAggregation == TimestampAggregation.dateHistogram ? seriesDefinition.getDistance() : null,
+                measurementIds,
+                queryFilter.perCategory(),
+                pageSize,
+                after
+        );
+    }
+
+    private TimeSeriesPoint point(CompositeAggregation.Bucket bucket) {
+        TimeSeriesPoint.Builder point = TimeSeriesPoint.builder()
+                .timestamp(timestamp(bucket))
+                .measurements(measurementsFromSumAggregations(bucket.getAggregations()));
+        if (queryFilter.perCategory() != null)
+            point.category(queryFilter.perCategory(), bucket.getKey().get("category").toString());
+        return point.categories(queryFilter.categories()).build();
     }
 
-    private TimeSeriesPoint.Builder point(MultiBucketsAggregation.Bucket bucket, ZonedDateTime timestamp) {
-        return TimeSeriesPoint.builder().timestamp(timestamp).measurements(measurementsFromSumAggregations(bucket.getAggregations()));
+    private static ZonedDateTime timestamp(CompositeAggregation.Bucket bucket) {
+        return ZonedDateTime.ofInstant(Instant.ofEpochMilli(((Number) bucket.getKey().get("timestamp")).longValue()), UTC);
     }
 
-    private MultiBucketsAggregation categoryAggregation(MultiBucketsAggregation.Bucket bucket) {
-        return (MultiBucketsAggregation)bucket.getAggregations().iterator().next();
+    /**
+     * The pages of the composite aggregation, starting with the given response. Each following page is searched for
+     * when the previous one is handed out, so that it is ready or under way when that has been consumed.
+     */
+    private class Pages implements Iterator<CompositeAggregation> {
+
+        private final List<String> indexNames;
+        private final QueryBuilder query;
+        private final List<String> measurementIds;
+        private CompositeAggregation page;
+        private CompletableFuture<SearchResponse> following;
+
+        private Pages(List<String> indexNames, QueryBuilder query, List<String> measurementIds, SearchResponse first) {
+            this.indexNames = indexNames;
+            this.query = query;
+            this.measurementIds = measurementIds;
+            this.page = page(first);
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (page == null && following != null) {
+                page = page(await(following));
+                following = null;
+            }
+            return page != null && !page.getBuckets().isEmpty();
+        }
+
+        @Override
+        public CompositeAggregation next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            CompositeAggregation current = page;
+            page = null;
+            if (current.getBuckets().size() == pageSize)
+                following = searchAsync(searchRequest(indexNames, query, null, 0, aggregation(measurementIds, current.afterKey())));
+            return current;
+        }
+
+    }
+
+    /**
+     * The buckets of several partitions merged in the order of their keys, timestamp first and category second, as
+     * the buckets of each partition are.
+     */
+    private static class MergedBuckets implements Iterator<CompositeAggregation.Bucket> {
+
+        private static final Comparator<CompositeAggregation.Bucket> order = Comparator
+                .<CompositeAggregation.Bucket>comparingLong(bucket -> ((Number) bucket.getKey().get("timestamp")).longValue())
+                .thenComparing(bucket -> bucket.getKey().get("category").toString());
+
+        private final PriorityQueue<Head> heads = new PriorityQueue<>((a, b) -> order.compare(a.bucket, b.bucket));
+
+        private MergedBuckets(List<Iterator<CompositeAggregation.Bucket>> partitions) {
+            partitions.forEach(this::advance);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !heads.isEmpty();
+        }
+
+        @Override
+        public CompositeAggregation.Bucket next() {
+            Head head = heads.poll();
+            if (head == null)
+                throw new NoSuchElementException();
+            advance(head.rest);
+            return head.bucket;
+        }
+
+        private void advance(Iterator<CompositeAggregation.Bucket> partition) {
+            if (partition.hasNext())
+                heads.add(new Head(partition.next(), partition));
+        }
+
+        private static class Head {
+
+            private final CompositeAggregation.Bucket bucket;
+            private final Iterator<CompositeAggregation.Bucket> rest;
+
+            private Head(CompositeAggregation.Bucket bucket, Iterator<CompositeAggregation.Bucket> rest) {
+                this.bucket = bucket;
+                this.rest = rest;
+            }
+
+        }
+
     }
 
     public static Builder builder() {
@@ -118,6 +446,7 @@ public class TimeSeriesQuery extends Query {
 
         public Builder queryFilter(QueryFilter queryFilter) {
             instance.queryFilter = queryFilter;
+            instance.deadline = queryFilter.deadline();
             return this;
         }
 
@@ -131,6 +460,33 @@ public class TimeSeriesQuery extends Query {
             return this;
         }
 
+        public Builder bucketCache(BucketCache bucketCache) {
+            instance.bucketCache = bucketCache;
+            return this;
+        }
+
+        /**
+         * @param pageSize the number of points to aggregate per request
+         */
+        public Builder pageSize(int pageSize) {
+            instance.pageSize = pageSize;
+            return this;
+        }
+
+        /**
+         * @param categoryPartitions the number of partitions of the values of the category key to search concurrently.
+         *                           With 1 all values are searched together.
+         */
+        public Builder categoryPartitions(int categoryPartitions) {
+            instance.categoryPartitions = categoryPartitions;
+            return this;
+        }
+
+        public Builder timestampAggregation(TimestampAggregation timestampAggregation) {
+            instance.timestampAggregation = timestampAggregation;
+            return this;
+        }
+
         public TimeSeriesQuery build() {
             return instance;
         }
@@ -21,6 +21,7 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
 
 @Configuration
 public class ElasticsearchConfig implements BackendConfig {
@@ -35,7 +36,48 @@ public class ElasticsearchConfig implements BackendConfig {
     @Override
     @Bean
     public QueryService queryService() {
-        return new ElasticsearchQueryService(commandFactory());
+        return new ElasticsearchQueryService(commandFactory(), seriesCatalog(), inFlightQueries());
+    }
+
+    @Bean
+    public InFlightQueries inFlightQueries() {
+        return new InFlightQueries();
+    }
+
+    @Bean(destroyMethod = "close")
+    public SeriesCatalog seriesCatalog() {
+        return new SeriesCatalog(
+                listAvailableTimeSeriesCommandBuilder().build(),
+                Duration.ofSeconds(environment.getProperty("no.difi.statistics.catalog.refresh-interval-seconds", Integer.class, 60))
+        );
+    }
+
+    /**
+     * @return cache of closed histogram buckets, or null if disabled by setting its maximum size to zero
+     */
+    @Bean
+    public BucketCache bucketCache() {
+        long maxPoints = environment.getProperty("no.difi.statistics.bucket-cache.max-points", Long.class, 1_000_000L);
+        if (maxPoints <= 0)
+            return null;
+        return new BucketCache(
+                maxPoints,
+                Duration.ofSeconds(environment.getProperty("no.difi.statistics.bucket-cache.validation-interval-seconds", Integer.class, 60))
+        );
+    }
+
+    /**
+     * @return cache of percentile values of ended ranges, or null if disabled by setting its maximum size to zero
+     */
+    @Bean
+    public PercentileCache percentileCache() {
+        int maxEntries = environment.getProperty("no.difi.statistics.percentile-cache.max-entries", Integer.class, 10_000);
+        if (maxEntries <= 0)
+            return null;
+        return new PercentileCache(
+                maxEntries,
+                Duration.ofSeconds(environment.getProperty("no.difi.statistics.percentile-cache.max-age-seconds", Integer.class, 600))
+        );
     }
 
     @Bean
@@ -46,13 +88,23 @@ public class ElasticsearchConfig implements BackendConfig {
     @Bean
     @Scope("prototype")
     public TimeSeriesQuery.Builder queryCommandBuilder() {
-        return TimeSeriesQuery.builder().elasticsearchClient(elasticsearchHighLevelClient()).sumHistogramCommand(sumHistogramCommandBuilder());
+        return TimeSeriesQuery.builder()
+                .elasticsearchClient(elasticsearchHighLevelClient())
+                .sumHistogramCommand(sumHistogramCommandBuilder())
+                .bucketCache(bucketCache())
+                .pageSize(environment.getProperty("no.difi.statistics.query.page-size", Integer.class, 1000))
+                .categoryPartitions(environment.getProperty("no.difi.statistics.query.category-partitions", Integer.class, 1))
+                .timestampAggregation(environment.getProperty(
+                        "no.difi.statistics.query.timestamp-aggregation",
+                        TimeSeriesQuery.TimestampAggregation.class,
+                        TimeSeriesQuery.TimestampAggregation.terms
+                ));
     }
 
     @Bean
     @Scope("prototype")
     public AvailableSeriesQuery.Builder listAvailableTimeSeriesCommandBuilder() {
-        return AvailableSeriesQuery.builder().elasticsearchClient(elasticsearchLowLevelClient().build());
+        return AvailableSeriesQuery.builder().elasticsearchClient(elasticsearchHighLevelClient().getLowLevelClient());
     }
 
     @Bean
@@ -70,25 +122,53 @@ public class ElasticsearchConfig implements BackendConfig {
     @Bean
     @Scope("prototype")
     public SumHistogramQuery.Builder sumHistogramCommandBuilder() {
-        return SumHistogramQuery.builder().elasticsearchClient(elasticsearchHighLevelClient());
+        return SumHistogramQuery.builder()
+                .elasticsearchClient(elasticsearchHighLevelClient())
+                .bucketCache(bucketCache())
+                .maxParallelSlices(environment.getProperty("no.difi.statistics.query.max-parallel-slices", Integer.class, 1));
+    }
+
+    @Bean
+    @Scope("prototype")
+    public CardinalityHistogramQuery.Builder cardinalityHistogramCommandBuilder() {
+        return CardinalityHistogramQuery.builder()
+                .elasticsearchClient(elasticsearchHighLevelClient())
+                .precisionThreshold(environment.getProperty("no.difi.statistics.query.cardinality.precision-threshold", Long.class, 3000L));
     }
 
     @Bean
     @Scope("prototype")
     public SumQuery.Builder sumCommandBuilder() {
-        return SumQuery.builder().elasticsearchClient(elasticsearchHighLevelClient());
+        return SumQuery.builder().elasticsearchClient(elasticsearchHighLevelClient()).bucketCache(bucketCache());
     }
 
     @Bean
     @Scope("prototype")
     public PercentileQuery.Builder percentileCommandBuilder() {
-        return PercentileQuery.builder().elasticsearchClient(elasticsearchHighLevelClient());
+        return PercentileQuery.builder()
+                .elasticsearchClient(elasticsearchHighLevelClient())
+                .pageSize(environment.getProperty("no.difi.statistics.query.page-size", Integer.class, 1000))
+                .percentileCache(percentileCache())
+                .exactLimit(environment.getProperty("no.difi.statistics.percentile.exact-limit", Long.class, 10_000L))
+                .approximateCompression(environment.getProperty("no.difi.statistics.percentile.compression", Double.class, 200.0));
+    }
+
+    @Bean
+    @Scope("prototype")
+    public MultiSearchQuery.Builder multiSearchCommandBuilder() {
+        return MultiSearchQuery.builder().elasticsearchClient(elasticsearchHighLevelClient());
     }
 
     @Bean
     @Scope("prototype")
     public GetMeasurementIdentifiers.Builder measurementIdentifiersCommandBuilder() {
-        return GetMeasurementIdentifiers.builder().elasticsearchClient(elasticsearchLowLevelClient().build());
+        return GetMeasurementIdentifiers.builder().elasticsearchClient(elasticsearchHighLevelClient().getLowLevelClient());
+    }
+
+    @Bean
+    @Scope("prototype")
+    public GetSeriesVersion.Builder seriesVersionCommandBuilder() {
+        return GetSeriesVersion.builder().elasticsearchClient(elasticsearchHighLevelClient().getLowLevelClient());
     }
 
     @Bean
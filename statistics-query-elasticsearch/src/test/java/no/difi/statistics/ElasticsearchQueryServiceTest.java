@@ -40,6 +40,7 @@ import java.util.function.Predicate;
 
 import static java.lang.String.format;
 import static java.time.temporal.ChronoUnit.DAYS;
+import static java.util.Arrays.asList;
 import static no.difi.statistics.elasticsearch.Timestamp.truncatedTimestamp;
 import static no.difi.statistics.model.MeasurementDistance.*;
 import static no.difi.statistics.query.elasticsearch.helpers.AvailableSeriesQuery.calculatedAvailableSeries;
@@ -61,7 +62,13 @@ import static org.springframework.boot.test.context.SpringBootTest.WebEnvironmen
 @SpringBootTest(webEnvironment = RANDOM_PORT)
 @ContextConfiguration(classes = {AppConfig.class, ElasticsearchConfig.class}, initializers = ElasticsearchQueryServiceTest.Initializer.class)
 @RunWith(SpringRunner.class)
-@TestPropertySource(properties = {"file.base.difi-statistikk=src/test/resources/apikey"})
+@TestPropertySource(properties = {
+        "file.base.difi-statistikk=src/test/resources/apikey",
+        "no.difi.statistics.catalog.refresh-interval-seconds=0",
+        "no.difi.statistics.bucket-cache.max-points=0",
+        "no.difi.statistics.percentile-cache.max-entries=0",
+        "no.difi.statistics.query.category-partitions=2"
+})
 public class ElasticsearchQueryServiceTest {
 
     @ClassRule
@@ -679,6 +686,41 @@ public class ElasticsearchQueryServiceTest {
                 .thenThatSeriesIsReturned();
     }
 
+    @Test
+    public void givenSeriesWhenRequestingTopCategoriesThenOnlyHeaviestAreReturned() {
+        given(
+                aSeries(withAttributes().distance(hours)).category("a", "b").category("a", "c").category("a", "d").category("e", "f")
+        )
+                .when(requestingSeries().distance(hours).perCategory("a").top(2, "m1"))
+                .thenThatSeriesIsReturned();
+    }
+
+    @Test
+    public void givenSeriesWithCategoriesWhenRequestingCardinalityThenDistinctValuesPerTargetDistanceAreCounted() throws IOException {
+        helper.indexPoints(hours, asList(
+                TimeSeriesPoint.builder().timestamp(now).measurement(measurementId, 1).category("TE", "a").build(),
+                TimeSeriesPoint.builder().timestamp(now.plusHours(1)).measurement(measurementId, 1).category("TE", "b").build(),
+                TimeSeriesPoint.builder().timestamp(now.plusHours(2)).measurement(measurementId, 1).category("TE", "a").build(),
+                TimeSeriesPoint.builder().timestamp(now.plusDays(1)).measurement(measurementId, 1).category("TE", "c").build()
+        ));
+        ResponseEntity<String> response = restTemplate.exchange(
+                "/{owner}/{seriesName}/{distance}/cardinality/{targetDistance}?categoryKey={categoryKey}",
+                HttpMethod.GET,
+                null,
+                String.class,
+                owner,
+                series,
+                hours,
+                days,
+                "TE"
+        );
+        assertEquals(response.getBody(), 200, response.getStatusCodeValue());
+        List<TimeSeriesPoint> points = objectMapper.readerFor(new TypeReference<List<TimeSeriesPoint>>(){}).readValue(response.getBody());
+        assertEquals(2, size(points));
+        assertEquals(2, measurementValue("TE", 0, points));
+        assertEquals(1, measurementValue("TE", 1, points));
+    }
+
     private void forEachMeasurementDistance(Consumer<MeasurementDistance> action) {
         Arrays.stream(MeasurementDistance.values()).forEach(action);
     }
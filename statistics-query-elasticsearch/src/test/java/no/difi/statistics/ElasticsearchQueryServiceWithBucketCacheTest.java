@@ -0,0 +1,169 @@
+package no.difi.statistics;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import no.difi.statistics.elasticsearch.Client;
+import no.difi.statistics.model.TimeSeriesPoint;
+import no.difi.statistics.test.utils.ElasticsearchHelper;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.context.TestPropertySource;
+
+import java.io.IOException;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.util.Collections.singletonList;
+import static no.difi.statistics.model.MeasurementDistance.days;
+import static no.difi.statistics.model.MeasurementDistance.months;
+import static no.difi.statistics.test.utils.DataOperations.sum;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Runs the queries with the bucket cache enabled, validating cached buckets on every query, so that a second query
+ * is served from the cache.
+ */
+@TestPropertySource(properties = {
+        "no.difi.statistics.bucket-cache.max-points=1000000",
+        "no.difi.statistics.bucket-cache.validation-interval-seconds=0"
+})
+public class ElasticsearchQueryServiceWithBucketCacheTest extends ElasticsearchQueryServiceTest {
+
+    private final static String measurementId = "count";
+
+    @Autowired
+    private Client client;
+    @Autowired
+    private TestRestTemplate restTemplate;
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Test
+    public void givenDaySeriesWhenRequestingRangedSumTwiceThenCachedMonthsGiveTheSameSum() throws IOException {
+        ZonedDateTime from = ZonedDateTime.of(2016, 1, 10, 0, 0, 0, 0, ZoneOffset.UTC);
+        ZonedDateTime to = ZonedDateTime.of(2016, 5, 20, 0, 0, 0, 0, ZoneOffset.UTC);
+        List<TimeSeriesPoint> points = daySeries(from, to);
+        ElasticsearchHelper helper = new ElasticsearchHelper(client);
+        helper.indexPoints(days, points);
+
+        TimeSeriesPoint first = requestSum(from, to);
+        TimeSeriesPoint second = requestSum(from, to);
+        assertEquals(sum(measurementId, points), first.getMeasurement(measurementId).orElse(-1L).longValue());
+        assertEquals(first.getMeasurement(measurementId), second.getMeasurement(measurementId));
+        assertEquals(to.toInstant(), first.getTimestamp().toInstant());
+        assertEquals(first.getTimestamp().toInstant(), second.getTimestamp().toInstant());
+
+        // Ingested late into a cached month
+        TimeSeriesPoint late = TimeSeriesPoint.builder()
+                .timestamp(ZonedDateTime.of(2016, 3, 15, 12, 0, 0, 0, ZoneOffset.UTC))
+                .measurement(measurementId, 1000)
+                .build();
+        helper.indexPoints(days, singletonList(late));
+        TimeSeriesPoint third = requestSum(from, to);
+        assertEquals(sum(measurementId, points) + 1000, third.getMeasurement(measurementId).orElse(-1L).longValue());
+        assertEquals(to.toInstant(), third.getTimestamp().toInstant());
+    }
+
+    @Test
+    public void givenDaySeriesWhenRequestingRangedSeriesTwiceThenCachedDaysGiveTheSamePoints() throws IOException {
+        ZonedDateTime from = ZonedDateTime.of(2016, 1, 10, 0, 0, 0, 0, ZoneOffset.UTC);
+        ZonedDateTime to = ZonedDateTime.of(2016, 2, 20, 0, 0, 0, 0, ZoneOffset.UTC);
+        List<TimeSeriesPoint> points = daySeries(from, to);
+        ElasticsearchHelper helper = new ElasticsearchHelper(client);
+        helper.indexPoints(days, points);
+
+        List<TimeSeriesPoint> first = requestPoints("", from, to);
+        List<TimeSeriesPoint> second = requestPoints("", from, to);
+        assertEquals(points.size(), first.size());
+        assertSamePoints(first, second);
+        assertEquals(sum(measurementId, points), sum(measurementId, second));
+
+        // Updated late in a cached day
+        ZonedDateTime updated = ZonedDateTime.of(2016, 2, 1, 0, 0, 0, 0, ZoneOffset.UTC);
+        helper.indexPoints(days, singletonList(TimeSeriesPoint.builder().timestamp(updated).measurement(measurementId, 1000).build()));
+        List<TimeSeriesPoint> third = requestPoints("", from, to);
+        assertEquals(points.size(), third.size());
+        assertEquals(sum(measurementId, points) - updated.getDayOfYear() + 1000, sum(measurementId, third));
+    }
+
+    @Test
+    public void givenDaySeriesWhenRequestingSumHistogramTwiceThenCachedMonthsGiveTheSamePoints() throws IOException {
+        ZonedDateTime from = ZonedDateTime.of(2016, 1, 1, 0, 0, 0, 0, ZoneOffset.UTC);
+        ZonedDateTime to = ZonedDateTime.of(2016, 5, 31, 0, 0, 0, 0, ZoneOffset.UTC);
+        List<TimeSeriesPoint> points = daySeries(from, to);
+        ElasticsearchHelper helper = new ElasticsearchHelper(client);
+        helper.indexPoints(days, points);
+
+        List<TimeSeriesPoint> first = requestPoints("/sum/" + months, from, to);
+        List<TimeSeriesPoint> second = requestPoints("/sum/" + months, from, to);
+        assertEquals(5, first.size());
+        assertSamePoints(first, second);
+        assertEquals(sum(measurementId, points.subList(0, 31)), first.get(0).getMeasurement(measurementId).orElse(-1L).longValue());
+        assertEquals(sum(measurementId, points), sum(measurementId, second));
+
+        // Updated late in a cached month
+        ZonedDateTime updated = ZonedDateTime.of(2016, 3, 15, 0, 0, 0, 0, ZoneOffset.UTC);
+        helper.indexPoints(days, singletonList(TimeSeriesPoint.builder().timestamp(updated).measurement(measurementId, 1000).build()));
+        List<TimeSeriesPoint> third = requestPoints("/sum/" + months, from, to);
+        assertEquals(5, third.size());
+        assertEquals(
+                second.get(2).getMeasurement(measurementId).orElse(-1L) - updated.getDayOfYear() + 1000,
+                third.get(2).getMeasurement(measurementId).orElse(-1L).longValue()
+        );
+        assertEquals(sum(measurementId, points) - updated.getDayOfYear() + 1000, sum(measurementId, third));
+    }
+
+    private static List<TimeSeriesPoint> daySeries(ZonedDateTime from, ZonedDateTime to) {
+        List<TimeSeriesPoint> points = new ArrayList<>();
+        for (ZonedDateTime timestamp = from; !timestamp.isAfter(to); timestamp = timestamp.plusDays(1))
+            points.add(TimeSeriesPoint.builder().timestamp(timestamp).measurement(measurementId, timestamp.getDayOfYear()).build());
+        return points;
+    }
+
+    private static void assertSamePoints(List<TimeSeriesPoint> expected, List<TimeSeriesPoint> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getTimestamp().toInstant(), actual.get(i).getTimestamp().toInstant());
+            assertEquals(expected.get(i).getMeasurement(measurementId), actual.get(i).getMeasurement(measurementId));
+        }
+    }
+
+    private List<TimeSeriesPoint> requestPoints(String targetDistance, ZonedDateTime from, ZonedDateTime to) throws IOException {
+        ResponseEntity<String> response = restTemplate.exchange(
+                "/{owner}/{seriesName}/{distance}" + targetDistance + "?from={from}&to={to}",
+                HttpMethod.GET,
+                null,
+                String.class,
+                "test_owner",
+                "test",
+                days,
+                DateTimeFormatter.ISO_OFFSET_DATE_TIME.format(from),
+                DateTimeFormatter.ISO_OFFSET_DATE_TIME.format(to)
+        );
+        assertEquals(response.getBody(), 200, response.getStatusCodeValue());
+        return objectMapper.readerFor(new TypeReference<List<TimeSeriesPoint>>(){}).readValue(response.getBody());
+    }
+
+    private TimeSeriesPoint requestSum(ZonedDateTime from, ZonedDateTime to) throws IOException {
+        ResponseEntity<String> response = restTemplate.exchange(
+                "/{owner}/{seriesName}/{distance}/sum?from={from}&to={to}",
+                HttpMethod.GET,
+                null,
+                String.class,
+                "test_owner",
+                "test",
+                days,
+                DateTimeFormatter.ISO_OFFSET_DATE_TIME.format(from),
+                DateTimeFormatter.ISO_OFFSET_DATE_TIME.format(to)
+        );
+        assertEquals(response.getBody(), 200, response.getStatusCodeValue());
+        return objectMapper.readerFor(TimeSeriesPoint.class).readValue(response.getBody());
+    }
+
+}
@@ -0,0 +1,94 @@
+package no.difi.statistics;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import no.difi.statistics.elasticsearch.Client;
+import no.difi.statistics.model.TimeSeriesDefinition;
+import no.difi.statistics.model.TimeSeriesPoint;
+import no.difi.statistics.query.elasticsearch.CommandFactory;
+import no.difi.statistics.query.elasticsearch.commands.TimeSeriesQuery.TimestampAggregation;
+import no.difi.statistics.test.utils.ElasticsearchHelper;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.context.TestPropertySource;
+
+import java.io.IOException;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+
+import static no.difi.statistics.model.MeasurementDistance.hours;
+import static no.difi.statistics.query.model.QueryFilter.queryFilter;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Runs the queries with points grouped by timestamp with a date histogram instead of terms.
+ */
+@TestPropertySource(properties = "no.difi.statistics.query.timestamp-aggregation=dateHistogram")
+public class ElasticsearchQueryServiceWithDateHistogramTest extends ElasticsearchQueryServiceTest {
+
+    private final static String measurementId = "count";
+
+    @Autowired
+    private Client client;
+    @Autowired
+    private TestRestTemplate restTemplate;
+    @Autowired
+    private ObjectMapper objectMapper;
+    @Autowired
+    private CommandFactory commandFactory;
+
+    @Test
+    public void givenHourSeriesWithGapsWhenRequestingSeriesThenDateHistogramGivesTheSamePointsAsTerms() throws IOException {
+        ZonedDateTime from = ZonedDateTime.of(2016, 3, 1, 0, 0, 0, 0, ZoneOffset.UTC);
+        ZonedDateTime to = from.plusHours(1500);
+        List<TimeSeriesPoint> points = new ArrayList<>();
+        for (ZonedDateTime timestamp = from; !timestamp.isAfter(to); timestamp = timestamp.plusHours(1)) {
+            if (timestamp.getHour() == 3)
+                continue; // Empty buckets must not appear as points
+            points.add(TimeSeriesPoint.builder().timestamp(timestamp).measurement(measurementId, timestamp.getHour())
+                    .category("TE", timestamp.getDayOfMonth() % 2 == 0 ? "a" : "b").build());
+        }
+        new ElasticsearchHelper(client).indexPoints(hours, points);
+
+        for (String perCategory : new String[]{null, "TE"}) {
+            List<TimeSeriesPoint> dateHistogram = requestPoints(from, to, perCategory);
+            List<TimeSeriesPoint> terms = commandFactory.query()
+                    .seriesDefinition(TimeSeriesDefinition.builder().name("test").hours().owner("test_owner"))
+                    .queryFilter(queryFilter().range(from, to).perCategory(perCategory).build())
+                    .measurementIdentifiersCommand(commandFactory.measurementIdentifiers())
+                    .timestampAggregation(TimestampAggregation.terms)
+                    .build()
+                    .execute();
+            assertEquals(points.size(), terms.size());
+            assertEquals(terms.size(), dateHistogram.size());
+            for (int i = 0; i < terms.size(); i++) {
+                assertEquals(terms.get(i).getTimestamp().toInstant(), dateHistogram.get(i).getTimestamp().toInstant());
+                assertEquals(terms.get(i).getMeasurements(), dateHistogram.get(i).getMeasurements());
+                assertEquals(terms.get(i).getCategories(), dateHistogram.get(i).getCategories());
+            }
+        }
+    }
+
+    private List<TimeSeriesPoint> requestPoints(ZonedDateTime from, ZonedDateTime to, String perCategory) throws IOException {
+        ResponseEntity<String> response = restTemplate.exchange(
+                "/{owner}/{seriesName}/{distance}?from={from}&to={to}" + (perCategory != null ? "&perCategory=" + perCategory : ""),
+                HttpMethod.GET,
+                null,
+                String.class,
+                "test_owner",
+                "test",
+                hours,
+                DateTimeFormatter.ISO_OFFSET_DATE_TIME.format(from),
+                DateTimeFormatter.ISO_OFFSET_DATE_TIME.format(to)
+        );
+        assertEquals(response.getBody(), 200, response.getStatusCodeValue());
+        return objectMapper.readerFor(new TypeReference<List<TimeSeriesPoint>>(){}).readValue(response.getBody());
+    }
+
+}
@@ -0,0 +1,91 @@
+package no.difi.statistics;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import no.difi.statistics.elasticsearch.Client;
+import no.difi.statistics.model.TimeSeriesDefinition;
+import no.difi.statistics.model.TimeSeriesPoint;
+import no.difi.statistics.query.elasticsearch.CommandFactory;
+import no.difi.statistics.test.utils.ElasticsearchHelper;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.context.TestPropertySource;
+
+import java.io.IOException;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+
+import static no.difi.statistics.model.MeasurementDistance.days;
+import static no.difi.statistics.model.MeasurementDistance.months;
+import static no.difi.statistics.query.model.QueryFilter.queryFilter;
+import static no.difi.statistics.test.utils.DataOperations.sum;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Runs the queries with sum histograms searched in up to four yearly slices concurrently.
+ */
+@TestPropertySource(properties = "no.difi.statistics.query.max-parallel-slices=4")
+public class ElasticsearchQueryServiceWithParallelSlicesTest extends ElasticsearchQueryServiceTest {
+
+    private final static String measurementId = "count";
+
+    @Autowired
+    private Client client;
+    @Autowired
+    private TestRestTemplate restTemplate;
+    @Autowired
+    private ObjectMapper objectMapper;
+    @Autowired
+    private CommandFactory commandFactory;
+
+    @Test
+    public void givenDaySeriesOverSeveralYearsWhenRequestingMonthPointsThenSlicesGiveTheSameAsSingleRequest() throws IOException {
+        ZonedDateTime from = ZonedDateTime.of(2013, 11, 10, 0, 0, 0, 0, ZoneOffset.UTC);
+        ZonedDateTime to = ZonedDateTime.of(2017, 2, 20, 0, 0, 0, 0, ZoneOffset.UTC);
+        List<TimeSeriesPoint> points = new ArrayList<>();
+        for (ZonedDateTime timestamp = from; !timestamp.isAfter(to); timestamp = timestamp.plusDays(1))
+            points.add(TimeSeriesPoint.builder().timestamp(timestamp).measurement(measurementId, timestamp.getDayOfYear()).build());
+        new ElasticsearchHelper(client).indexPoints(days, points);
+
+        List<TimeSeriesPoint> sliced = requestMonths(from, to);
+        List<TimeSeriesPoint> single = commandFactory.sumHistogram()
+                .seriesDefinition(TimeSeriesDefinition.builder().name("test").days().owner("test_owner"))
+                .targetDistance(months)
+                .queryFilter(queryFilter().range(from, to).build())
+                .measurementIdentifiersCommand(commandFactory.measurementIdentifiers())
+                .maxParallelSlices(1)
+                .build()
+                .execute();
+        assertEquals(40, sliced.size());
+        assertEquals(single.size(), sliced.size());
+        for (int i = 0; i < single.size(); i++) {
+            assertEquals(single.get(i).getTimestamp().toInstant(), sliced.get(i).getTimestamp().toInstant());
+            assertEquals(single.get(i).getMeasurement(measurementId), sliced.get(i).getMeasurement(measurementId));
+        }
+        assertEquals(sum(measurementId, points), sum(measurementId, sliced));
+    }
+
+    private List<TimeSeriesPoint> requestMonths(ZonedDateTime from, ZonedDateTime to) throws IOException {
+        ResponseEntity<String> response = restTemplate.exchange(
+                "/{owner}/{seriesName}/{distance}/sum/{targetDistance}?from={from}&to={to}",
+                HttpMethod.GET,
+                null,
+                String.class,
+                "test_owner",
+                "test",
+                days,
+                months,
+                DateTimeFormatter.ISO_OFFSET_DATE_TIME.format(from),
+                DateTimeFormatter.ISO_OFFSET_DATE_TIME.format(to)
+        );
+        assertEquals(response.getBody(), 200, response.getStatusCodeValue());
+        return objectMapper.readerFor(new TypeReference<List<TimeSeriesPoint>>(){}).readValue(response.getBody());
+    }
+
+}
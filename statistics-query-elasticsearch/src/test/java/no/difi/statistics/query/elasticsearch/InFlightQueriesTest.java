@@ -0,0 +1,139 @@
+package no.difi.statistics.query.elasticsearch;
+
+import no.difi.statistics.model.TimeSeriesDefinition;
+import no.difi.statistics.query.elasticsearch.InFlightQueries.Operation;
+import no.difi.statistics.query.model.Deadline;
+import no.difi.statistics.query.model.QueryFilter;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static java.util.Arrays.asList;
+import static no.difi.statistics.query.model.QueryFilter.queryFilter;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class InFlightQueriesTest {
+
+    private final InFlightQueries inFlightQueries = new InFlightQueries();
+
+    @Test
+    public void shouldShareExecutionOfIdenticalConcurrentQueries() {
+        AtomicInteger executions = new AtomicInteger();
+        CompletableFuture<String> execution = new CompletableFuture<>();
+        QueryFilter utc = queryFilter().range(ZonedDateTime.parse("2016-01-01T00:00:00Z"), null).build();
+        QueryFilter oslo = queryFilter().range(ZonedDateTime.parse("2016-01-01T01:00:00+01:00"), null).build();
+        CompletableFuture<String> first = inFlightQueries.perform(Operation.last, aSeries(), null, utc, filter -> {
+            executions.incrementAndGet();
+            return execution;
+        });
+        CompletableFuture<String> second = inFlightQueries.perform(Operation.last, aSeries(), null, oslo, filter -> {
+            executions.incrementAndGet();
+            return new CompletableFuture<>();
+        });
+        execution.complete("result");
+        assertEquals(1, executions.get());
+        assertEquals("result", first.join());
+        assertEquals("result", second.join());
+        assertEquals(0, inFlightQueries.size());
+    }
+
+    @Test
+    public void shouldPerformDifferentQueriesSeparately() {
+        AtomicInteger executions = new AtomicInteger();
+        inFlightQueries.perform(Operation.last, aSeries(), null, queryFilter().build(), filter -> {
+            executions.incrementAndGet();
+            return new CompletableFuture<>();
+        });
+        inFlightQueries.perform(Operation.sum, aSeries(), null, queryFilter().build(), filter -> {
+            executions.incrementAndGet();
+            return new CompletableFuture<>();
+        });
+        inFlightQueries.perform(Operation.last, aSeries(), null, queryFilter().perCategory("TE").build(), filter -> {
+            executions.incrementAndGet();
+            return new CompletableFuture<>();
+        });
+        assertEquals(3, executions.get());
+    }
+
+    @Test
+    public void shouldPerformQueryAgainAfterCompletion() {
+        AtomicInteger executions = new AtomicInteger();
+        for (int i = 0; i < 2; i++) {
+            inFlightQueries.perform(Operation.sum, aSeries(), null, queryFilter().build(), filter -> {
+                executions.incrementAndGet();
+                return CompletableFuture.completedFuture("result");
+            });
+        }
+        assertEquals(2, executions.get());
+    }
+
+    @Test
+    public void shouldNotCancelSharedQueryWhenOneCallerCancels() {
+        CompletableFuture<String> execution = new CompletableFuture<>();
+        CompletableFuture<String> first = inFlightQueries.perform(Operation.sum, aSeries(), null, queryFilter().build(), filter -> execution);
+        CompletableFuture<String> second = inFlightQueries.perform(Operation.sum, aSeries(), null, queryFilter().build(), filter -> execution);
+        first.cancel(false);
+        execution.complete("result");
+        assertFalse(second.isCancelled());
+        assertEquals("result", second.join());
+    }
+
+    @Test
+    public void shouldCancelSharedDeadlineOnlyWhenAllCallersAreCancelled() {
+        AtomicReference<Deadline> shared = new AtomicReference<>();
+        Deadline first = Deadline.after(Duration.ofMinutes(1), false);
+        Deadline second = Deadline.after(Duration.ofMinutes(1), false);
+        CompletableFuture<String> firstResult = inFlightQueries.perform(Operation.sum, aSeries(), null, queryFilter().deadline(first).build(), filter -> {
+            shared.set(filter.deadline());
+            return new CompletableFuture<>();
+        });
+        inFlightQueries.perform(Operation.sum, aSeries(), null, queryFilter().deadline(second).build(), filter -> new CompletableFuture<>());
+        first.cancel();
+        assertTrue(firstResult.isCompletedExceptionally());
+        assertFalse(shared.get().isCancelled());
+        second.cancel();
+        assertTrue(shared.get().isCancelled());
+    }
+
+    @Test
+    public void shouldRunSharedQueryWithLatestDeadlineOfItsCallers() {
+        AtomicReference<Deadline> shared = new AtomicReference<>();
+        Deadline first = Deadline.after(Duration.ofSeconds(1), false);
+        Deadline second = Deadline.after(Duration.ofMinutes(1), false);
+        inFlightQueries.perform(Operation.sum, aSeries(), null, queryFilter().deadline(first).build(), filter -> {
+            shared.set(filter.deadline());
+            return new CompletableFuture<>();
+        });
+        assertEquals(first.at(), shared.get().at());
+        inFlightQueries.perform(Operation.sum, aSeries(), null, queryFilter().deadline(second).build(), filter -> new CompletableFuture<>());
+        assertEquals(second.at(), shared.get().at());
+        inFlightQueries.perform(Operation.sum, aSeries(), null, queryFilter().build(), filter -> new CompletableFuture<>());
+        assertTrue(shared.get().isReleased());
+    }
+
+    @Test
+    public void shouldPerformQueriesAllowingPartialResultsSeparatelyForDifferentDeadlines() {
+        AtomicInteger executions = new AtomicInteger();
+        Deadline first = new Deadline(Instant.parse("2030-01-01T00:00:00Z"), true);
+        Deadline second = new Deadline(Instant.parse("2030-01-01T00:00:01Z"), true);
+        for (Deadline deadline : asList(first, second, first)) {
+            inFlightQueries.perform(Operation.sum, aSeries(), null, queryFilter().deadline(deadline).build(), filter -> {
+                executions.incrementAndGet();
+                return new CompletableFuture<>();
+            });
+        }
+        assertEquals(2, executions.get());
+    }
+
+    private static TimeSeriesDefinition aSeries() {
+        return TimeSeriesDefinition.builder().name("series").hours().owner("owner");
+    }
+
+}
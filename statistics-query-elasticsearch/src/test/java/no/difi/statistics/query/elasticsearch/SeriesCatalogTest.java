@@ -0,0 +1,93 @@
+package no.difi.statistics.query.elasticsearch;
+
+import no.difi.statistics.model.TimeSeriesDefinition;
+import no.difi.statistics.query.elasticsearch.commands.AvailableSeriesQuery;
+import no.difi.statistics.query.model.AvailableTimeSeries;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.*;
+
+public class SeriesCatalogTest {
+
+    private final AvailableSeriesQuery availableSeriesQuery = mock(AvailableSeriesQuery.class);
+
+    @Test
+    public void shouldListEachSeriesOnceAcrossYearlyIndices() {
+        when(availableSeriesQuery.indexNames()).thenReturn(asList("owner@series@hour2016", "owner@series@hour2017", ".kibana"));
+        SeriesCatalog catalog = new SeriesCatalog(availableSeriesQuery, Duration.ZERO);
+        assertEquals(singletonList(aSeries()), catalog.availableTimeSeries());
+        assertEquals(2, catalog.indices(aSeries()).size());
+    }
+
+    @Test
+    public void shouldServeFromMemoryBetweenRefreshes() {
+        when(availableSeriesQuery.indexNames()).thenReturn(singletonList("owner@series@hour2016"));
+        SeriesCatalog catalog = new SeriesCatalog(availableSeriesQuery, Duration.ofHours(1));
+        catalog.availableTimeSeries();
+        catalog.availableTimeSeries();
+        verify(availableSeriesQuery, times(1)).indexNames();
+        catalog.close();
+    }
+
+    @Test
+    public void shouldDropSeriesWhenIndicesAreDeleted() {
+        when(availableSeriesQuery.indexNames())
+                .thenReturn(singletonList("owner@series@hour2016"))
+                .thenReturn(singletonList("owner@other@hour2016"));
+        SeriesCatalog catalog = new SeriesCatalog(availableSeriesQuery, Duration.ZERO);
+        assertEquals(singletonList(aSeries()), catalog.availableTimeSeries());
+        assertEquals(
+                singletonList(TimeSeriesDefinition.builder().name("other").hours().owner("owner")),
+                catalog.availableTimeSeries()
+        );
+    }
+
+    @Test
+    public void shouldTellWhenIndicesWereListed() {
+        when(availableSeriesQuery.indexNames()).thenReturn(singletonList("owner@series@hour2016"));
+        SeriesCatalog catalog = new SeriesCatalog(availableSeriesQuery, Duration.ZERO);
+        assertNull(catalog.listedAt());
+        Instant before = Instant.now();
+        catalog.indices(aSeries());
+        assertFalse(catalog.listedAt().isBefore(before));
+        assertFalse(catalog.listedAt().isAfter(Instant.now()));
+    }
+
+    @Test
+    public void shouldChangeGenerationOnlyWhenSeriesChange() {
+        when(availableSeriesQuery.indexNames())
+                .thenReturn(singletonList("owner@series@hour2016"))
+                .thenReturn(singletonList("owner@series@hour2016"))
+                .thenReturn(asList("owner@series@hour2016", "owner@series@hour2017"));
+        SeriesCatalog catalog = new SeriesCatalog(availableSeriesQuery, Duration.ZERO);
+        long generation = catalog.generation();
+        assertEquals(generation, catalog.generation());
+        assertNotEquals(generation, catalog.generation());
+    }
+
+    @Test
+    public void shouldGiveSeriesAndGenerationFromOneRefresh() {
+        when(availableSeriesQuery.indexNames())
+                .thenReturn(singletonList("owner@series@hour2016"))
+                .thenReturn(singletonList("owner@other@hour2016"));
+        SeriesCatalog catalog = new SeriesCatalog(availableSeriesQuery, Duration.ZERO);
+        AvailableTimeSeries available = catalog.available();
+        assertEquals(singletonList(aSeries()), available.getDefinitions());
+        assertNotEquals(available.getGeneration(), catalog.generation());
+        verify(availableSeriesQuery, times(2)).indexNames();
+    }
+
+    private static TimeSeriesDefinition aSeries() {
+        return TimeSeriesDefinition.builder().name("series").hours().owner("owner");
+    }
+
+}
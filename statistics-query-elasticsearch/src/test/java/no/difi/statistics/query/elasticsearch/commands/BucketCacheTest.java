@@ -0,0 +1,126 @@
+package no.difi.statistics.query.elasticsearch.commands;
+
+import no.difi.statistics.model.TimeSeriesDefinition;
+import no.difi.statistics.model.TimeSeriesPoint;
+import no.difi.statistics.query.model.QueryFilter;
+import org.elasticsearch.search.aggregations.Aggregations;
+import org.elasticsearch.search.aggregations.bucket.filter.Filter;
+import org.elasticsearch.search.aggregations.bucket.global.Global;
+import org.elasticsearch.search.aggregations.metrics.Sum;
+import org.junit.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static no.difi.statistics.model.MeasurementDistance.days;
+import static no.difi.statistics.query.model.QueryFilter.queryFilter;
+import static org.elasticsearch.index.query.QueryBuilders.matchAllQuery;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class BucketCacheTest {
+
+    private final ZonedDateTime now = ZonedDateTime.of(2016, 3, 10, 12, 0, 0, 0, ZoneOffset.UTC);
+    private final ZonedDateTime start = ZonedDateTime.of(2016, 3, 1, 0, 0, 0, 0, ZoneOffset.UTC);
+    private final TimeSeriesDefinition series = TimeSeriesDefinition.builder().name("series").hours().owner("owner");
+    private final QueryFilter queryFilter = queryFilter().range(start, now).build();
+    private final List<String> measurementIds = singletonList("m");
+
+    @Test
+    public void shouldNotCacheRangeWithinCurrentBucket() {
+        BucketCache cache = cache(1000, Duration.ofHours(1));
+        assertNull(cache.lookup(series, "sum", days, queryFilter().range(now.minusHours(1), now).build(), measurementIds));
+        assertNull(cache.lookup(series, "sum", days, queryFilter().range(null, now).build(), measurementIds));
+    }
+
+    @Test
+    public void shouldExcludeCachedBucketsFromSearch() {
+        BucketCache cache = cache(1000, Duration.ofHours(1));
+        BucketCache.Lookup first = cache.lookup(series, "sum", days, queryFilter, measurementIds);
+        assertFalse(first.hasCached());
+        assertNull(first.exclusion());
+        assertEquals(10, first.points(null, buckets(start, 10)).size());
+        assertEquals(9, cache.size());
+
+        BucketCache.Lookup second = cache.lookup(series, "sum", days, queryFilter, measurementIds);
+        assertTrue(second.hasCached());
+        assertNotNull(second.exclusion());
+        assertNull(second.validation(matchAllQuery()));
+        List<TimeSeriesPoint> points = second.points(null, buckets(start.plusDays(9), 1));
+        assertEquals(10, points.size());
+        assertEquals(start, points.get(0).getTimestamp());
+        assertEquals(start.plusDays(9), points.get(9).getTimestamp());
+    }
+
+    @Test
+    public void shouldDropEntryWhenCachedBucketsChanged() {
+        BucketCache cache = cache(1000, Duration.ZERO);
+        cache.lookup(series, "sum", days, queryFilter, measurementIds).points(null, buckets(start, 9));
+        BucketCache.Lookup lookup = cache.lookup(series, "sum", days, queryFilter, measurementIds);
+        assertNotNull(lookup.validation(matchAllQuery()));
+        assertNull(lookup.points(validated(10, 9), emptyList()));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void shouldKeepEntryWhenCachedBucketsAreUnchanged() {
+        BucketCache cache = cache(1000, Duration.ZERO);
+        cache.lookup(series, "sum", days, queryFilter, measurementIds).points(null, buckets(start, 9));
+        BucketCache.Lookup lookup = cache.lookup(series, "sum", days, queryFilter, measurementIds);
+        assertEquals(9, lookup.points(validated(9, 9), emptyList()).size());
+        assertEquals(9, cache.size());
+    }
+
+    @Test
+    public void shouldEvictLeastRecentlyUsedEntries() {
+        BucketCache cache = cache(10, Duration.ofHours(1));
+        TimeSeriesDefinition other = TimeSeriesDefinition.builder().name("other").hours().owner("owner");
+        cache.lookup(series, "sum", days, queryFilter, measurementIds).points(null, buckets(start, 9));
+        cache.lookup(other, "sum", days, queryFilter, measurementIds).points(null, buckets(start, 9));
+        assertEquals(9, cache.size());
+        assertFalse(cache.lookup(series, "sum", days, queryFilter, measurementIds).hasCached());
+        assertTrue(cache.lookup(other, "sum", days, queryFilter, measurementIds).hasCached());
+    }
+
+    private BucketCache cache(long maxPoints, Duration validationInterval) {
+        return new BucketCache(maxPoints, validationInterval, Clock.fixed(now.toInstant(), ZoneOffset.UTC));
+    }
+
+    /**
+     * One bucket per day with one document and measurement value 1.
+     */
+    private static List<BucketCache.Bucket> buckets(ZonedDateTime from, int count) {
+        List<BucketCache.Bucket> buckets = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            ZonedDateTime timestamp = from.plusDays(i);
+            buckets.add(new BucketCache.Bucket(
+                    timestamp,
+                    1,
+                    singletonList(TimeSeriesPoint.builder().timestamp(timestamp).measurement("m", 1).build())
+            ));
+        }
+        return buckets;
+    }
+
+    private static Aggregations validated(long documents, double sum) {
+        Sum measurement = mock(Sum.class);
+        when(measurement.getName()).thenReturn("m");
+        when(measurement.getValue()).thenReturn(sum);
+        Filter cached = mock(Filter.class);
+        when(cached.getName()).thenReturn("cached");
+        when(cached.getDocCount()).thenReturn(documents);
+        when(cached.getAggregations()).thenReturn(new Aggregations(singletonList(measurement)));
+        Global validation = mock(Global.class);
+        when(validation.getName()).thenReturn("cacheValidation");
+        when(validation.getAggregations()).thenReturn(new Aggregations(singletonList(cached)));
+        return new Aggregations(singletonList(validation));
+    }
+
+}
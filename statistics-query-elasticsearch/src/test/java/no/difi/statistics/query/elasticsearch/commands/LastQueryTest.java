@@ -0,0 +1,59 @@
+package no.difi.statistics.query.elasticsearch.commands;
+
+import no.difi.statistics.model.TimeSeriesDefinition;
+import no.difi.statistics.query.model.QueryFilter;
+import org.junit.Test;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static no.difi.statistics.query.model.QueryFilter.queryFilter;
+import static org.junit.Assert.assertEquals;
+
+public class LastQueryTest {
+
+    private final ZonedDateTime now = ZonedDateTime.of(2017, 1, 1, 0, 0, 20, 0, ZoneOffset.UTC);
+
+    @Test
+    public void shouldResolveIndicesOfYearsSinceIndicesWereListed() {
+        LastQuery query = query(queryFilter().build(), Instant.parse("2016-12-31T23:59:30Z"));
+        assertEquals(
+                asList("owner@series@hour2017", "owner@series@hour2016", "owner@series@hour2015"),
+                query.indexNamesNewestFirst(now)
+        );
+    }
+
+    @Test
+    public void shouldOnlySearchExistingIndicesOfYearsBeforeIndicesWereListed() {
+        LastQuery query = query(queryFilter().build(), Instant.parse("2016-06-01T00:00:00Z"));
+        assertEquals(
+                asList("owner@series@hour2016", "owner@series@hour2015"),
+                query.indexNamesNewestFirst(ZonedDateTime.of(2016, 6, 1, 0, 0, 30, 0, ZoneOffset.UTC))
+        );
+    }
+
+    @Test
+    public void shouldKeepOnlyIndicesInRange() {
+        QueryFilter queryFilter = queryFilter()
+                .range(ZonedDateTime.of(2015, 3, 1, 0, 0, 0, 0, ZoneOffset.UTC), ZonedDateTime.of(2015, 4, 1, 0, 0, 0, 0, ZoneOffset.UTC))
+                .build();
+        assertEquals(singletonList("owner@series@hour2015"), query(queryFilter, Instant.parse("2016-12-31T23:59:30Z")).indexNamesNewestFirst(now));
+    }
+
+    @Test
+    public void shouldResolveIndicesWhenNeverListed() {
+        assertEquals(singletonList("owner@series@hour*"), query(queryFilter().build(), null).indexNamesNewestFirst(now));
+    }
+
+    private static LastQuery query(QueryFilter queryFilter, Instant listedAt) {
+        return LastQuery.builder()
+                .seriesDefinition(TimeSeriesDefinition.builder().name("series").hours().owner("owner"))
+                .queryFilter(queryFilter)
+                .existingIndices(asList("owner@series@hour2015", "owner@series@hour2016"), listedAt)
+                .build();
+    }
+
+}
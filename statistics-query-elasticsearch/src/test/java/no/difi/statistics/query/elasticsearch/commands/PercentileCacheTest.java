@@ -0,0 +1,71 @@
+package no.difi.statistics.query.elasticsearch.commands;
+
+import no.difi.statistics.model.PercentileFilter;
+import no.difi.statistics.model.TimeSeriesDefinition;
+import no.difi.statistics.query.model.QueryFilter;
+import org.junit.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+
+import static no.difi.statistics.model.RelationalOperator.gt;
+import static no.difi.statistics.query.model.QueryFilter.queryFilter;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class PercentileCacheTest {
+
+    private final ZonedDateTime now = ZonedDateTime.of(2016, 3, 10, 12, 0, 0, 0, ZoneOffset.UTC);
+    private final TimeSeriesDefinition series = TimeSeriesDefinition.builder().name("series").minutes().owner("owner");
+    private final PercentileFilter percentileFilter = new PercentileFilter(90, "m", gt);
+    private final QueryFilter closedRange = queryFilter().range(now.minusDays(2), now.minusDays(1)).build();
+
+    @Test
+    public void shouldCacheValueOfEndedRange() {
+        PercentileCache cache = cache(10, now);
+        cache.put(series, closedRange, percentileFilter, 42.0);
+        assertEquals(42.0, cache.get(series, closedRange, percentileFilter), 0.0);
+        assertNull(cache.get(series, closedRange, new PercentileFilter(50, "m", gt)));
+    }
+
+    @Test
+    public void shouldNotCacheValueOfOpenRange() {
+        PercentileCache cache = cache(10, now);
+        cache.put(series, queryFilter().range(now.minusDays(1), null).build(), percentileFilter, 42.0);
+        cache.put(series, queryFilter().range(now.minusDays(1), now.plusHours(1)).build(), percentileFilter, 42.0);
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void shouldExpireValuesAfterMaxAge() {
+        Clock clock = mock(Clock.class);
+        when(clock.instant()).thenReturn(now.toInstant(), now.toInstant(), now.plusMinutes(10).toInstant());
+        PercentileCache cache = new PercentileCache(10, Duration.ofMinutes(10), clock);
+        cache.put(series, closedRange, percentileFilter, 42.0);
+        assertNull(cache.get(series, closedRange, percentileFilter));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void shouldEvictLeastRecentlyUsedValues() {
+        PercentileCache cache = cache(2, now);
+        QueryFilter otherRange = queryFilter().range(now.minusDays(3), now.minusDays(2)).build();
+        QueryFilter thirdRange = queryFilter().range(now.minusDays(4), now.minusDays(3)).build();
+        cache.put(series, closedRange, percentileFilter, 1.0);
+        cache.put(series, otherRange, percentileFilter, 2.0);
+        cache.get(series, closedRange, percentileFilter);
+        cache.put(series, thirdRange, percentileFilter, 3.0);
+        assertEquals(1.0, cache.get(series, closedRange, percentileFilter), 0.0);
+        assertNull(cache.get(series, otherRange, percentileFilter));
+        assertEquals(3.0, cache.get(series, thirdRange, percentileFilter), 0.0);
+    }
+
+    private static PercentileCache cache(int maxEntries, ZonedDateTime now) {
+        return new PercentileCache(maxEntries, Duration.ofMinutes(10), Clock.fixed(now.toInstant(), ZoneOffset.UTC));
+    }
+
+}
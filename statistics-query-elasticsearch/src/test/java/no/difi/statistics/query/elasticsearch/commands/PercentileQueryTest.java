@@ -0,0 +1,27 @@
+package no.difi.statistics.query.elasticsearch.commands;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class PercentileQueryTest {
+
+    private final PercentileQuery query = PercentileQuery.builder().exactLimit(10_000).approximateCompression(200).build();
+
+    @Test
+    public void shouldKeepEveryValueWhenDocumentsAreWithinExactLimit() {
+        assertEquals(10_000, query.compression(10_000), 0);
+        assertEquals(5_000, query.compression(5_000), 0);
+    }
+
+    @Test
+    public void shouldUseAtLeastApproximateCompressionForFewDocuments() {
+        assertEquals(200, query.compression(10), 0);
+    }
+
+    @Test
+    public void shouldApproximateWhenDocumentsExceedExactLimit() {
+        assertEquals(200, query.compression(10_001), 0);
+    }
+
+}
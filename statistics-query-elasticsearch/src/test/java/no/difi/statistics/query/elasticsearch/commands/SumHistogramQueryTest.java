@@ -0,0 +1,74 @@
+package no.difi.statistics.query.elasticsearch.commands;
+
+import no.difi.statistics.model.TimeRange;
+import no.difi.statistics.model.TimeSeriesDefinition;
+import no.difi.statistics.query.model.QueryFilter;
+import org.junit.Test;
+
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static java.util.stream.Collectors.toList;
+import static no.difi.statistics.model.MeasurementDistance.days;
+import static no.difi.statistics.query.model.QueryFilter.queryFilter;
+import static org.junit.Assert.assertEquals;
+
+public class SumHistogramQueryTest {
+
+    private final ZonedDateTime now = ZonedDateTime.of(2018, 6, 1, 0, 0, 0, 0, ZoneOffset.UTC);
+    private final ZonedDateTime from = ZonedDateTime.of(2016, 3, 1, 0, 0, 0, 0, ZoneOffset.UTC);
+
+    @Test
+    public void shouldSliceRangeAtYearBoundaries() {
+        QueryFilter queryFilter = queryFilter().range(from, ZonedDateTime.of(2017, 5, 1, 0, 0, 0, 0, ZoneOffset.UTC)).categories("TE=a").build();
+        List<QueryFilter> slices = query(hours()).slices(queryFilter, now);
+        assertEquals(
+                asList(
+                        new TimeRange(from, ZonedDateTime.of(2016, 12, 31, 23, 59, 59, 999_000_000, ZoneOffset.UTC)),
+                        new TimeRange(ZonedDateTime.of(2017, 1, 1, 0, 0, 0, 0, ZoneOffset.UTC), queryFilter.timeRange().to())
+                ),
+                slices.stream().map(QueryFilter::timeRange).collect(toList())
+        );
+        assertEquals(queryFilter.categories(), slices.get(1).categories());
+    }
+
+    @Test
+    public void shouldSliceRangeOpenAtEndUntilNow() {
+        List<QueryFilter> slices = query(hours()).slices(queryFilter().range(from, null).build(), now);
+        assertEquals(3, slices.size());
+        assertEquals(null, slices.get(2).timeRange().to());
+    }
+
+    @Test
+    public void shouldNotSliceRangeWithinOneYear() {
+        QueryFilter queryFilter = queryFilter().range(from, from.plusMonths(2)).build();
+        assertEquals(singletonList(queryFilter), query(hours()).slices(queryFilter, now));
+    }
+
+    @Test
+    public void shouldNotSliceRangeOpenAtStart() {
+        QueryFilter queryFilter = queryFilter().range(null, now).build();
+        assertEquals(singletonList(queryFilter), query(hours()).slices(queryFilter, now));
+    }
+
+    @Test
+    public void shouldNotSliceYearSeries() {
+        QueryFilter queryFilter = queryFilter().range(from, now).build();
+        assertEquals(
+                singletonList(queryFilter),
+                query(TimeSeriesDefinition.builder().name("series").years().owner("owner")).slices(queryFilter, now)
+        );
+    }
+
+    private static TimeSeriesDefinition hours() {
+        return TimeSeriesDefinition.builder().name("series").hours().owner("owner");
+    }
+
+    private static SumHistogramQuery query(TimeSeriesDefinition seriesDefinition) {
+        return SumHistogramQuery.builder().seriesDefinition(seriesDefinition).targetDistance(days).maxParallelSlices(4).build();
+    }
+
+}
@@ -0,0 +1,91 @@
+package no.difi.statistics.query.elasticsearch.commands;
+
+import no.difi.statistics.model.TimeSeriesDefinition;
+import no.difi.statistics.model.TimeSeriesPoint;
+import no.difi.statistics.query.model.QueryFilter;
+import org.junit.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static no.difi.statistics.model.MeasurementDistance.months;
+import static no.difi.statistics.query.model.QueryFilter.queryFilter;
+import static org.junit.Assert.*;
+
+public class SumQueryTest {
+
+    private final ZonedDateTime now = ZonedDateTime.of(2016, 3, 10, 12, 0, 0, 0, ZoneOffset.UTC);
+    private final TimeSeriesDefinition series = TimeSeriesDefinition.builder().name("series").days().owner("owner");
+    private final List<String> measurementIds = singletonList("m");
+
+    @Test
+    public void shouldMergeCachedMonthsWithLiveEdgeMonths() {
+        QueryFilter queryFilter = queryFilter().range(ZonedDateTime.of(2015, 11, 15, 0, 0, 0, 0, ZoneOffset.UTC), now).build();
+        BucketCache cache = cache();
+        SumQuery query = SumQuery.builder().queryFilter(queryFilter).bucketCache(cache).build();
+
+        BucketCache.Lookup first = cache.lookup(series, "total", months, queryFilter, measurementIds);
+        assertFalse(first.hasCached());
+        TimeSeriesPoint total = query.total(first.points(null, asList(
+                month(2015, 11, 30, 1),
+                month(2015, 12, 31, 2),
+                month(2016, 1, 31, 4),
+                month(2016, 2, 29, 8),
+                month(2016, 3, 9, 16)
+        )));
+        assertEquals(31L, total.getMeasurement("m").orElse(-1L).longValue());
+        assertEquals(ZonedDateTime.of(2016, 3, 9, 0, 0, 0, 0, ZoneOffset.UTC), total.getTimestamp());
+
+        // Only the partial first month and the current month are searched for, and the current one has grown
+        BucketCache.Lookup second = cache.lookup(series, "total", months, queryFilter, measurementIds);
+        assertTrue(second.hasCached());
+        total = query.total(second.points(null, asList(month(2015, 11, 30, 1), month(2016, 3, 10, 32))));
+        assertEquals(47L, total.getMeasurement("m").orElse(-1L).longValue());
+        assertEquals(ZonedDateTime.of(2016, 3, 10, 0, 0, 0, 0, ZoneOffset.UTC), total.getTimestamp());
+    }
+
+    @Test
+    public void shouldTakeTimestampFromLastCachedMonthWhenNothingIsSearchedFor() {
+        QueryFilter queryFilter = queryFilter()
+                .range(ZonedDateTime.of(2015, 12, 1, 0, 0, 0, 0, ZoneOffset.UTC), ZonedDateTime.of(2016, 2, 29, 23, 59, 59, 999_000_000, ZoneOffset.UTC))
+                .build();
+        BucketCache cache = cache();
+        SumQuery query = SumQuery.builder().queryFilter(queryFilter).bucketCache(cache).build();
+        cache.lookup(series, "total", months, queryFilter, measurementIds)
+                .points(null, asList(month(2015, 12, 31, 2), month(2016, 1, 31, 4), month(2016, 2, 28, 8)));
+
+        TimeSeriesPoint total = query.total(cache.lookup(series, "total", months, queryFilter, measurementIds).points(null, emptyList()));
+        assertEquals(14L, total.getMeasurement("m").orElse(-1L).longValue());
+        assertEquals(ZonedDateTime.of(2016, 2, 28, 0, 0, 0, 0, ZoneOffset.UTC), total.getTimestamp());
+    }
+
+    @Test
+    public void shouldGiveNoTotalWithoutMonthlyTotals() {
+        assertNull(SumQuery.builder().queryFilter(queryFilter().build()).build().total(emptyList()));
+    }
+
+    private BucketCache cache() {
+        return new BucketCache(1000, Duration.ofHours(1), Clock.fixed(now.toInstant(), ZoneOffset.UTC));
+    }
+
+    /**
+     * The total of a month as aggregated by the query, with the timestamp of its last point.
+     */
+    private static BucketCache.Bucket month(int year, int month, int lastDay, long value) {
+        return new BucketCache.Bucket(
+                ZonedDateTime.of(year, month, 1, 0, 0, 0, 0, ZoneOffset.UTC),
+                lastDay,
+                singletonList(TimeSeriesPoint.builder()
+                        .timestamp(ZonedDateTime.of(year, month, lastDay, 0, 0, 0, 0, ZoneOffset.UTC))
+                        .measurement("m", value)
+                        .build())
+        );
+    }
+
+}
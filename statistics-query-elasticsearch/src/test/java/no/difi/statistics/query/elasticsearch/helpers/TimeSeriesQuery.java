@@ -12,6 +12,9 @@ import java.util.function.Function;
 import static java.util.Collections.sort;
 import static java.util.stream.Collectors.groupingBy;
 import static java.util.stream.Collectors.joining;
+import static java.util.stream.Collectors.summingLong;
+import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toSet;
 import static no.difi.statistics.test.utils.TimeSeriesSumCollector.summarize;
 
 public class TimeSeriesQuery extends Query<List<TimeSeriesPoint>> {
@@ -23,6 +26,8 @@ public class TimeSeriesQuery extends Query<List<TimeSeriesPoint>> {
     private MeasurementDistance distance;
     private Map<String, String> categories = new HashMap<>();
     private String perCategory;
+    private Integer top;
+    private String topBy;
 
     public static TimeSeriesQuery requestingSeries() {
         return new TimeSeriesQuery(false);
@@ -52,11 +57,26 @@ public class TimeSeriesQuery extends Query<List<TimeSeriesPoint>> {
                             .filter(point -> perCategory() == null || point.hasCategory(perCategory()))
                             .collect(groupingBy(groupingClassifier(), summarize(categories(), perCategory()))).values()
             );
+            if (top() != null)
+                result.retainAll(heaviest(result));
             sort(result);
             return result;
         };
     }
 
+    private List<TimeSeriesPoint> heaviest(List<TimeSeriesPoint> points) {
+        Map<String, Long> totals = points.stream().collect(groupingBy(
+                point -> point.getCategories().get().get(perCategory()),
+                summingLong(point -> point.getMeasurement(topBy()).orElse(0L))
+        ));
+        Set<String> heaviest = totals.entrySet().stream()
+                .sorted(Map.Entry.<String, Long>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()))
+                .limit(top())
+                .map(Map.Entry::getKey)
+                .collect(toSet());
+        return points.stream().filter(point -> heaviest.contains(point.getCategories().get().get(perCategory()))).collect(toList());
+    }
+
     private Function<TimeSeriesPoint, String> groupingClassifier() {
         return (point) -> point.getTimestamp() + "-" + point.getCategories().map(c -> c.get(perCategory())).orElse("");
     }
@@ -75,7 +95,8 @@ public class TimeSeriesQuery extends Query<List<TimeSeriesPoint>> {
                 .to(to())
                 .distance(distance())
                 .categories(categories())
-                .perCategory(perCategory());
+                .perCategory(perCategory())
+                .top(top(), topBy());
         return query;
     }
 
@@ -93,6 +114,8 @@ public class TimeSeriesQuery extends Query<List<TimeSeriesPoint>> {
         if (from() != null) parameters.put("from", formatTimestamp(from()));
         if (to() != null) parameters.put("to", formatTimestamp(to()));
         if (perCategory() != null) parameters.put("perCategory", perCategory());
+        if (top() != null) parameters.put("top", top());
+        if (topBy() != null) parameters.put("topBy", topBy());
         if (categories() != null && !categories().isEmpty())
             parameters.put("categories", categories().entrySet().stream().map(e -> e.getKey() + "=" + e.getValue()).collect(joining(",")));
         return parameters;
@@ -149,6 +172,12 @@ public class TimeSeriesQuery extends Query<List<TimeSeriesPoint>> {
         return this;
     }
 
+    public TimeSeriesQuery top(Integer top, String topBy) {
+        this.top = top;
+        this.topBy = topBy;
+        return this;
+    }
+
     public String owner() {
         return owner;
     }
@@ -177,6 +206,14 @@ public class TimeSeriesQuery extends Query<List<TimeSeriesPoint>> {
         return perCategory;
     }
 
+    public Integer top() {
+        return top;
+    }
+
+    public String topBy() {
+        return topBy;
+    }
+
     public TimeSeries selectFrom(List<TimeSeries> givenSeries) {
         if (distance != null)
             return givenSeries.stream().filter(s -> s.getDefinition().getDistance() == distance).findFirst().get();
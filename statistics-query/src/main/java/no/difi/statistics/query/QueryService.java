@@ -4,23 +4,99 @@ import no.difi.statistics.model.MeasurementDistance;
 import no.difi.statistics.model.TimeSeriesDefinition;
 import no.difi.statistics.model.TimeSeriesPoint;
 import no.difi.statistics.model.PercentileFilter;
+import no.difi.statistics.query.model.AvailableTimeSeries;
+import no.difi.statistics.query.model.BatchQuery;
+import no.difi.statistics.query.model.BatchResult;
+import no.difi.statistics.query.model.Deadline;
 import no.difi.statistics.query.model.QueryFilter;
 
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.stream.Stream;
 
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Query operations on time series. Operations returning several points return them as a stream, which should be
+ * consumed once and in order. The query itself has been performed when the stream is returned. Operations returning a
+ * completion stage are performed without blocking the calling thread.
+ */
 public interface QueryService {
 
-    List<TimeSeriesDefinition> availableTimeSeries();
+    AvailableTimeSeries availableTimeSeries();
+
+    CompletionStage<TimeSeriesPoint> last(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter);
+
+    CompletionStage<Stream<TimeSeriesPoint>> query(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter);
+
+    Stream<TimeSeriesPoint> query(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter, PercentileFilter filter);
+
+    Stream<TimeSeriesPoint> lastHistogram(TimeSeriesDefinition seriesDefinition, MeasurementDistance targetDistance, QueryFilter queryFilter);
 
-    TimeSeriesPoint last(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter);
+    CompletionStage<TimeSeriesPoint> sum(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter);
 
-    List<TimeSeriesPoint> query(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter);
+    CompletionStage<Stream<TimeSeriesPoint>> sumHistogram(TimeSeriesDefinition seriesDefinition, MeasurementDistance targetDistance, QueryFilter queryFilter);
 
-    List<TimeSeriesPoint> query(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter, PercentileFilter filter);
+    /**
+     * @return a point per target distance with the (approximate) number of distinct values of the category key, as a
+     * measurement named after the key
+     */
+    CompletionStage<Stream<TimeSeriesPoint>> cardinalityHistogram(
+            TimeSeriesDefinition seriesDefinition,
+            MeasurementDistance targetDistance,
+            String categoryKey,
+            QueryFilter queryFilter
+    );
 
-    List<TimeSeriesPoint> lastHistogram(TimeSeriesDefinition seriesDefinition, MeasurementDistance targetDistance, QueryFilter queryFilter);
+    /**
+     * @return a version of the series' points in the filter's time range, which changes whenever points in the range
+     * may have changed, or null if it is not known
+     */
+    default CompletionStage<String> version(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter) {
+        return CompletableFuture.completedFuture(null);
+    }
 
-    TimeSeriesPoint sum(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter);
+    /**
+     * Performs the queries one by one. Implementations should send them to the backend together.
+     *
+     * @param deadline the deadline shared by the queries
+     * @return the result of each query by its id, in the order of the queries: its points, of which a sum gives at
+     * most one, or the error it failed with. A failing query does not fail the others.
+     */
+    default Map<String, BatchResult> batch(List<BatchQuery> queries, Deadline deadline) {
+        Map<String, BatchResult> result = new LinkedHashMap<>();
+        for (BatchQuery query : queries) {
+            QueryFilter queryFilter = query.getQueryFilter().withDeadline(deadline);
+            try {
+                switch (query.getOperation()) {
+                    case query:
+                        result.put(query.getId(), BatchResult.points(
+                                query(query.getSeriesDefinition(), queryFilter).toCompletableFuture().join().collect(toList())
+                        ));
+                        break;
+                    case sum:
+                        TimeSeriesPoint sum = sum(query.getSeriesDefinition(), queryFilter).toCompletableFuture().join();
+                        result.put(query.getId(), BatchResult.points(sum != null ? singletonList(sum) : emptyList()));
+                        break;
+                    case sumHistogram:
+                        result.put(query.getId(), BatchResult.points(
+                                sumHistogram(query.getSeriesDefinition(), query.getTargetDistance(), queryFilter)
+                                        .toCompletableFuture().join().collect(toList())
+                        ));
+                        break;
+                    default:
+                        throw new IllegalArgumentException(query.getOperation().toString());
+                }
+            } catch (RuntimeException e) {
+                result.put(query.getId(), BatchResult.error(e));
+            }
+        }
+        return result;
+    }
 
-    List<TimeSeriesPoint> sumHistogram(TimeSeriesDefinition seriesDefinition, MeasurementDistance targetDistance, QueryFilter queryFilter);
-}
\ No newline at end of file
+}
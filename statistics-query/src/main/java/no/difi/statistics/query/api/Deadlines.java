@@ -0,0 +1,102 @@
+package no.difi.statistics.query.api;
+
+import no.difi.statistics.query.model.Deadline;
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.context.request.async.DeferredResultProcessingInterceptor;
+import org.springframework.web.context.request.async.WebAsyncUtils;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Gives each request a deadline, from the timeout of its endpoint or the request's <code>Query-Timeout</code> header
+ * in seconds, bounded by a maximum. Partial results are allowed with the parameter <code>partialResults=true</code>.
+ * <p>
+ * Searches stop by themselves at the deadline, as it is their timeout. As that is checked only now and then, the
+ * deadline is also cancelled a grace period later, cancelling searches still in progress. It is cancelled at once if
+ * the client goes away while waiting for the response.
+ * <p>
+ * The deadline is released when the response is ready to be sent, and is then not cancelled when it passes. Pages
+ * searched for while a body is streamed are thus not bounded by the deadline, so that a large body is not cut off
+ * after its headers have been sent. They are still cancelled if the client goes away.
+ */
+public class Deadlines {
+
+    static final String TIMEOUT_HEADER = "Query-Timeout";
+    static final String PARTIAL_RESULTS_HEADER = "Partial-Results";
+
+    private final Map<String, Duration> timeouts;
+    private final Duration defaultTimeout;
+    private final Duration maxTimeout;
+    private final Duration grace;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "query-deadlines");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param timeouts       timeouts by endpoint name
+     * @param defaultTimeout timeout of endpoints without one of their own
+     * @param maxTimeout     longest timeout a request may ask for
+     * @param grace          how long after the deadline searches still in progress are cancelled
+     */
+    public Deadlines(Map<String, Duration> timeouts, Duration defaultTimeout, Duration maxTimeout, Duration grace) {
+        this.timeouts = timeouts;
+        this.defaultTimeout = defaultTimeout;
+        this.maxTimeout = maxTimeout;
+        this.grace = grace;
+    }
+
+    Deadline start(String endpoint, WebRequest request) {
+        Deadline deadline = Deadline.after(timeout(endpoint, request), "true".equals(request.getParameter("partialResults")));
+        ScheduledFuture<?> expiry = scheduler.schedule(deadline::cancel, deadline.remaining().plus(grace).toMillis(), MILLISECONDS);
+        WebAsyncUtils.getAsyncManager(request).registerDeferredResultInterceptor(Deadlines.class.getName(), new DeferredResultProcessingInterceptor() {
+
+            @Override
+            public <T> void postProcess(NativeWebRequest request, DeferredResult<T> deferredResult, Object concurrentResult) {
+                deadline.release();
+                expiry.cancel(false);
+            }
+
+            @Override
+            public <T> boolean handleTimeout(NativeWebRequest request, DeferredResult<T> deferredResult) {
+                deadline.cancel();
+                expiry.cancel(false);
+                return true;
+            }
+
+            @Override
+            public <T> boolean handleError(NativeWebRequest request, DeferredResult<T> deferredResult, Throwable t) {
+                deadline.cancel();
+                expiry.cancel(false);
+                return true;
+            }
+
+        });
+        return deadline;
+    }
+
+    private Duration timeout(String endpoint, WebRequest request) {
+        String requested = request.getHeader(TIMEOUT_HEADER);
+        if (requested == null)
+            return timeouts.getOrDefault(endpoint, defaultTimeout);
+        Duration timeout;
+        try {
+            timeout = Duration.ofMillis((long) (Double.parseDouble(requested) * 1000));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + TIMEOUT_HEADER + " header: " + requested);
+        }
+        if (timeout.isNegative() || timeout.isZero())
+            throw new IllegalArgumentException(TIMEOUT_HEADER + " must be positive, was " + requested);
+        return timeout.compareTo(maxTimeout) > 0 ? maxTimeout : timeout;
+    }
+
+}
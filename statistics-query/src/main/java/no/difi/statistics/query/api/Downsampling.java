@@ -0,0 +1,275 @@
+package no.difi.statistics.query.api;
+
+import no.difi.statistics.model.MeasurementDistance;
+import no.difi.statistics.model.TimeRange;
+import no.difi.statistics.model.TimeSeriesPoint;
+
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import static java.util.Spliterator.NONNULL;
+import static java.util.Spliterator.ORDERED;
+import static java.util.Spliterators.spliteratorUnknownSize;
+
+/**
+ * Reduces points to at most a given number of timestamps with largest-triangle-three-buckets, which keeps the shape of
+ * the series when drawn. The range is divided into equally long buckets, and from each bucket the timestamp is kept
+ * which forms the largest triangle with the timestamp kept from the previous bucket and the average of the next. The
+ * first and last timestamps are always kept.
+ * <p>
+ * All points of a kept timestamp are kept, so that points per category stay aligned. Triangles are measured over
+ * the sum of all measurements of all categories.
+ * <p>
+ * When the range has a start, points are reduced while they are streamed, holding only two buckets of points, unless
+ * the range cannot hold more timestamps of the series' distance than the maximum, in which case all are kept.
+ * Otherwise the start is not known before all points are read, so they are collected first.
+ */
+class Downsampling {
+
+    private Downsampling() {
+        // Use downsample
+    }
+
+    /**
+     * @param points    points in order of timestamp
+     * @param maxPoints the maximum number of timestamps to keep, at least 3
+     * @param timeRange the queried range, if any
+     * @param distance  the distance between the timestamps of the series
+     */
+    static Stream<TimeSeriesPoint> downsample(Stream<TimeSeriesPoint> points, int maxPoints, TimeRange timeRange, MeasurementDistance distance) {
+        ZonedDateTime from = timeRange != null ? timeRange.from() : null;
+        ZonedDateTime to = timeRange != null && timeRange.to() != null ? timeRange.to() : ZonedDateTime.now();
+        if (from != null && unit(distance).between(from, to) + 1 <= maxPoints)
+            return points;
+        if (from != null)
+            return stream(new Reduction(samples(points.iterator()), maxPoints, millis(from), millis(to))).onClose(points::close);
+        // Collected when the stream is consumed, not by the caller
+        return Stream.of(points).flatMap(p -> collected(p, maxPoints));
+    }
+
+    private static Stream<TimeSeriesPoint> collected(Stream<TimeSeriesPoint> points, int maxPoints) {
+        List<Sample> samples = new ArrayList<>();
+        try (Stream<TimeSeriesPoint> p = points) {
+            samples(p.iterator()).forEachRemaining(samples::add);
+        }
+        if (samples.size() <= maxPoints)
+            return samples.stream().flatMap(sample -> sample.points.stream());
+        return stream(new Reduction(samples.iterator(), maxPoints, samples.get(0).time, samples.get(samples.size() - 1).time));
+    }
+
+    private static Stream<TimeSeriesPoint> stream(Iterator<TimeSeriesPoint> iterator) {
+        return StreamSupport.stream(spliteratorUnknownSize(iterator, ORDERED | NONNULL), false);
+    }
+
+    private static ChronoUnit unit(MeasurementDistance distance) {
+        switch (distance) {
+            case minutes: return ChronoUnit.MINUTES;
+            case hours: return ChronoUnit.HOURS;
+            case days: return ChronoUnit.DAYS;
+            case months: return ChronoUnit.MONTHS;
+            case years: return ChronoUnit.YEARS;
+            default: throw new IllegalArgumentException(distance.toString());
+        }
+    }
+
+    private static long millis(ZonedDateTime timestamp) {
+        return timestamp.toInstant().toEpochMilli();
+    }
+
+    /**
+     * @return the points grouped by timestamp
+     */
+    private static Iterator<Sample> samples(Iterator<TimeSeriesPoint> points) {
+        return new Iterator<Sample>() {
+
+            private TimeSeriesPoint pending;
+
+            @Override
+            public boolean hasNext() {
+                // Points are not read before the stream is consumed, as later pages may be fetched while reading
+                if (pending == null && points.hasNext())
+                    pending = points.next();
+                return pending != null;
+            }
+
+            @Override
+            public Sample next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                List<TimeSeriesPoint> group = new ArrayList<>();
+                group.add(pending);
+                pending = null;
+                while (points.hasNext()) {
+                    TimeSeriesPoint point = points.next();
+                    if (!point.getTimestamp().isEqual(group.get(0).getTimestamp())) {
+                        pending = point;
+                        break;
+                    }
+                    group.add(point);
+                }
+                return new Sample(group);
+            }
+
+        };
+    }
+
+    /**
+     * The points of one timestamp, and their measurements keyed by category and measurement id.
+     */
+    private static class Sample {
+
+        private final List<TimeSeriesPoint> points;
+        private final long time;
+        private final Map<String, Double> values = new HashMap<>();
+
+        private Sample(List<TimeSeriesPoint> points) {
+            this.points = points;
+            this.time = millis(points.get(0).getTimestamp());
+            for (TimeSeriesPoint point : points) {
+                String category = point.getCategories().map(Object::toString).orElse("");
+                point.getMeasurements().forEach((id, value) -> values.merge(category + id, value.doubleValue(), Double::sum));
+            }
+        }
+
+        private Sample(long time, Map<String, Double> values) {
+            this.points = Collections.emptyList();
+            this.time = time;
+            this.values.putAll(values);
+        }
+
+        private static Sample average(List<Sample> samples) {
+            Map<String, Double> values = samples.stream()
+                    .flatMap(sample -> sample.values.entrySet().stream())
+                    .collect(Collectors.groupingBy(Map.Entry::getKey, Collectors.averagingDouble(Map.Entry::getValue)));
+            return new Sample((long) samples.stream().mapToLong(sample -> sample.time).average().orElse(0), values);
+        }
+
+    }
+
+    private static class Reduction implements Iterator<TimeSeriesPoint> {
+
+        private final Iterator<Sample> samples;
+        private final int buckets;
+        private final long from;
+        private final long span;
+        private final Deque<TimeSeriesPoint> output = new ArrayDeque<>();
+        private Sample selected;
+        private Sample last;
+        private List<Sample> current = new ArrayList<>();
+        private List<Sample> next = new ArrayList<>();
+        private long currentBucket;
+        private long nextBucket;
+        private boolean done;
+
+        private Reduction(Iterator<Sample> samples, int maxPoints, long from, long to) {
+            this.samples = samples;
+            this.buckets = maxPoints - 2;
+            this.from = from;
+            this.span = Math.max(1, to - from);
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (output.isEmpty() && !done)
+                advance();
+            return !output.isEmpty();
+        }
+
+        @Override
+        public TimeSeriesPoint next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            return output.poll();
+        }
+
+        private void advance() {
+            if (!samples.hasNext()) {
+                finish();
+                done = true;
+                return;
+            }
+            Sample sample = samples.next();
+            if (selected == null) {
+                emit(sample);
+                return;
+            }
+            // The latest sample is held back, as the last sample is always kept
+            if (last != null)
+                add(last);
+            last = sample;
+        }
+
+        private void add(Sample sample) {
+            long bucket = bucket(sample);
+            if (current.isEmpty() || bucket == currentBucket) {
+                current.add(sample);
+                currentBucket = bucket;
+            } else if (next.isEmpty() || bucket == nextBucket) {
+                next.add(sample);
+                nextBucket = bucket;
+            } else {
+                select(current, Sample.average(next));
+                current = next;
+                currentBucket = nextBucket;
+                next = new ArrayList<>();
+                next.add(sample);
+                nextBucket = bucket;
+            }
+        }
+
+        private void finish() {
+            if (!current.isEmpty())
+                select(current, next.isEmpty() ? last : Sample.average(next));
+            if (!next.isEmpty())
+                select(next, last);
+            if (last != null)
+                emit(last);
+        }
+
+        private long bucket(Sample sample) {
+            long bucket = (long) ((double) (sample.time - from) * buckets / span);
+            return Math.max(0, Math.min(buckets - 1, bucket));
+        }
+
+        private void select(List<Sample> bucket, Sample average) {
+            Sample largest = null;
+            double largestArea = -1;
+            for (Sample candidate : bucket) {
+                double area = area(selected, candidate, average);
+                if (area > largestArea) {
+                    largest = candidate;
+                    largestArea = area;
+                }
+            }
+            emit(largest);
+        }
+
+        /**
+         * @return the sum of the triangle areas of each measurement, doubled
+         */
+        private static double area(Sample a, Sample b, Sample c) {
+            Set<String> keys = new HashSet<>(a.values.keySet());
+            keys.addAll(b.values.keySet());
+            keys.addAll(c.values.keySet());
+            double area = 0;
+            for (String key : keys) {
+                double ya = a.values.getOrDefault(key, 0d);
+                double yb = b.values.getOrDefault(key, 0d);
+                double yc = c.values.getOrDefault(key, 0d);
+                area += Math.abs((double) (a.time - c.time) * (yb - ya) - (double) (a.time - b.time) * (yc - ya));
+            }
+            return area;
+        }
+
+        private void emit(Sample sample) {
+            output.addAll(sample.points);
+            selected = sample;
+        }
+
+    }
+
+}
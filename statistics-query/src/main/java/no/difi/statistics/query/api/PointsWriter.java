@@ -0,0 +1,214 @@
+package no.difi.statistics.query.api;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import no.difi.statistics.model.TimeSeriesPoint;
+import org.springframework.http.MediaType;
+import org.springframework.util.StringUtils;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.stream.Stream;
+
+import static java.time.format.DateTimeFormatter.ISO_OFFSET_DATE_TIME;
+import static java.util.Arrays.asList;
+
+/**
+ * Writes points while they are converted, in the format the client prefers of JSON, Smile, CBOR and CSV. JSON is
+ * written when the client accepts none of them. Except for CSV, the points can instead be written as columns.
+ */
+class PointsWriter {
+
+    static final MediaType APPLICATION_SMILE = new MediaType("application", "x-jackson-smile");
+    static final MediaType APPLICATION_CBOR = new MediaType("application", "cbor");
+    static final MediaType TEXT_CSV = new MediaType("text", "csv", StandardCharsets.UTF_8);
+    private static final List<MediaType> supportedMediaTypes = asList(MediaType.APPLICATION_JSON, APPLICATION_SMILE, APPLICATION_CBOR, TEXT_CSV);
+
+    private final JsonFactory jsonFactory;
+    private final SmileFactory smileFactory = new SmileFactory();
+    private final CBORFactory cborFactory = new CBORFactory();
+    private final ObjectWriter pointWriter;
+    private final ObjectWriter epochMillisPointWriter;
+
+    PointsWriter(ObjectMapper objectMapper) {
+        this.jsonFactory = objectMapper.getFactory();
+        this.pointWriter = objectMapper.writerFor(TimeSeriesPoint.class).without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+        this.epochMillisPointWriter = pointWriter
+                .with(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS)
+                .without(SerializationFeature.WRITE_DATE_TIMESTAMPS_AS_NANOSECONDS);
+    }
+
+    /**
+     * @param accept the value of the request's Accept header, if any
+     * @return the supported media type the client prefers
+     */
+    MediaType mediaType(String accept) {
+        if (!StringUtils.hasText(accept))
+            return MediaType.APPLICATION_JSON;
+        List<MediaType> accepted = new ArrayList<>(MediaType.parseMediaTypes(accept));
+        MediaType.sortBySpecificityAndQuality(accepted);
+        for (MediaType mediaType : accepted) {
+            for (MediaType supported : supportedMediaTypes) {
+                if (mediaType.isCompatibleWith(supported))
+                    return supported;
+            }
+        }
+        return MediaType.APPLICATION_JSON;
+    }
+
+    /**
+     * Writes the points as an array, or as CSV rows after a header row. Columns of the CSV are the timestamp and the
+     * measurements and categories of the first point.
+     *
+     * @param epochMillis whether timestamps are written as milliseconds since the epoch. Applies to Smile and CBOR,
+     *                    and to columns in any format but CSV.
+     * @param columns     whether to write one object of columns instead of an array of points, for formats but CSV.
+     *                    The points are then collected before they are written.
+     */
+    void write(Stream<TimeSeriesPoint> points, MediaType mediaType, boolean epochMillis, boolean columns, OutputStream outputStream) throws IOException {
+        try (Stream<TimeSeriesPoint> p = points) {
+            if (mediaType.equals(TEXT_CSV)) {
+                writeCsv(p.iterator(), outputStream);
+                return;
+            }
+            JsonGenerator generator = mediaType.equals(APPLICATION_SMILE) ? smileFactory.createGenerator(outputStream)
+                    : mediaType.equals(APPLICATION_CBOR) ? cborFactory.createGenerator(outputStream)
+                    : jsonFactory.createGenerator(outputStream);
+            if (columns)
+                writeColumns(p.iterator(), generator, epochMillis);
+            else
+                writeArray(p.iterator(), generator, epochMillis && !mediaType.equals(MediaType.APPLICATION_JSON) ? epochMillisPointWriter : pointWriter);
+        }
+    }
+
+    private static void writeArray(Iterator<TimeSeriesPoint> points, JsonGenerator generator, ObjectWriter writer) throws IOException {
+        try (JsonGenerator g = generator) {
+            g.writeStartArray();
+            while (points.hasNext())
+                writer.writeValue(g, points.next());
+            g.writeEndArray();
+        }
+    }
+
+    /**
+     * Writes <code>{"timestamps": [...], "measurements": {"id": [...]}, "categories": {"key": [...]}}</code>, where the
+     * values at an index of the arrays are those of one point. Values a point does not have are null, and categories
+     * are left out if no point has any.
+     */
+    private static void writeColumns(Iterator<TimeSeriesPoint> points, JsonGenerator generator, boolean epochMillis) throws IOException {
+        List<ZonedDateTime> timestamps = new ArrayList<>();
+        Map<String, List<Long>> measurements = new LinkedHashMap<>();
+        Map<String, List<String>> categories = new LinkedHashMap<>();
+        while (points.hasNext()) {
+            TimeSeriesPoint point = points.next();
+            int index = timestamps.size();
+            timestamps.add(point.getTimestamp());
+            point.getMeasurements().forEach((id, value) -> column(measurements, id, index).add(value));
+            point.getCategories().ifPresent(c -> c.forEach((key, value) -> column(categories, key, index).add(value)));
+            measurements.values().forEach(column -> pad(column, index + 1));
+            categories.values().forEach(column -> pad(column, index + 1));
+        }
+        try (JsonGenerator g = generator) {
+            g.writeStartObject();
+            g.writeArrayFieldStart("timestamps");
+            for (ZonedDateTime timestamp : timestamps) {
+                if (epochMillis)
+                    g.writeNumber(timestamp.toInstant().toEpochMilli());
+                else
+                    g.writeString(ISO_OFFSET_DATE_TIME.format(timestamp));
+            }
+            g.writeEndArray();
+            g.writeObjectFieldStart("measurements");
+            for (Map.Entry<String, List<Long>> column : measurements.entrySet()) {
+                g.writeArrayFieldStart(column.getKey());
+                for (Long value : column.getValue()) {
+                    if (value != null)
+                        g.writeNumber(value);
+                    else
+                        g.writeNull();
+                }
+                g.writeEndArray();
+            }
+            g.writeEndObject();
+            if (!categories.isEmpty()) {
+                g.writeObjectFieldStart("categories");
+                for (Map.Entry<String, List<String>> column : categories.entrySet()) {
+                    g.writeArrayFieldStart(column.getKey());
+                    for (String value : column.getValue())
+                        g.writeString(value);
+                    g.writeEndArray();
+                }
+                g.writeEndObject();
+            }
+            g.writeEndObject();
+        }
+    }
+
+    /**
+     * @return the column of the key, created with empty values for the preceding points if the key is new
+     */
+    private static <T> List<T> column(Map<String, List<T>> columns, String key, int index) {
+        return columns.computeIfAbsent(key, k -> pad(new ArrayList<>(), index));
+    }
+
+    private static <T> List<T> pad(List<T> column, int size) {
+        while (column.size() < size)
+            column.add(null);
+        return column;
+    }
+
+    private static void writeCsv(Iterator<TimeSeriesPoint> points, OutputStream outputStream) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
+        if (!points.hasNext()) {
+            writer.write("timestamp\r\n");
+            writer.flush();
+            return;
+        }
+        TimeSeriesPoint first = points.next();
+        List<String> measurementIds = new ArrayList<>(new TreeSet<>(first.getMeasurements().keySet()));
+        List<String> categoryKeys = new ArrayList<>(new TreeSet<>(first.getCategories().map(Map::keySet).orElse(Collections.emptySet())));
+        writer.write("timestamp");
+        for (String measurementId : measurementIds)
+            writer.write("," + csvValue(measurementId));
+        for (String categoryKey : categoryKeys)
+            writer.write("," + csvValue("category." + categoryKey));
+        writer.write("\r\n");
+        for (TimeSeriesPoint point = first; point != null; point = points.hasNext() ? points.next() : null) {
+            writer.write(ISO_OFFSET_DATE_TIME.format(point.getTimestamp()));
+            for (String measurementId : measurementIds) {
+                Long value = point.getMeasurements().get(measurementId);
+                writer.write("," + (value != null ? value.toString() : ""));
+            }
+            for (String categoryKey : categoryKeys) {
+                String value = point.getCategoryValue(categoryKey);
+                writer.write("," + (value != null ? csvValue(value) : ""));
+            }
+            writer.write("\r\n");
+        }
+        writer.flush();
+    }
+
+    private static String csvValue(String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0)
+            return value;
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+
+}
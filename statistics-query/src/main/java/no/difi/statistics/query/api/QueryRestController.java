@@ -1,21 +1,45 @@
 package no.difi.statistics.query.api;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
 import io.swagger.annotations.ApiParam;
 import no.difi.statistics.model.*;
 import no.difi.statistics.query.QueryService;
+import no.difi.statistics.query.model.AvailableTimeSeries;
+import no.difi.statistics.query.model.BatchQuery;
+import no.difi.statistics.query.model.BatchResult;
+import no.difi.statistics.query.model.Deadline;
+import no.difi.statistics.query.model.DeadlineExceededException;
+import no.difi.statistics.query.model.QueryFilter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.util.DigestUtils;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 import org.springframework.web.servlet.view.RedirectView;
 import springfox.documentation.annotations.ApiIgnore;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.time.ZonedDateTime;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 
 import static java.lang.String.format;
+import static java.util.concurrent.CompletableFuture.completedFuture;
 import static no.difi.statistics.query.model.QueryFilter.queryFilter;
 
 @Api(tags = "Statistics-query", description = "Hent ut data frå statistikk-databasen")
@@ -23,9 +47,32 @@ import static no.difi.statistics.query.model.QueryFilter.queryFilter;
 public class QueryRestController {
 
     private QueryService service;
+    private PointsWriter pointsWriter;
+    private ResponseCache responseCache;
+    private Duration closedRangeMaxAge;
+    private Duration openRangeMaxAge;
+    private Deadlines deadlines;
 
-    public QueryRestController(QueryService service) {
+    /**
+     * @param responseCache     cache of point list responses by entity tag
+     * @param closedRangeMaxAge how long clients may use point lists of ranges which have ended without revalidating
+     * @param openRangeMaxAge   how long clients may use other point lists without revalidating
+     * @param deadlines         gives each query a deadline
+     */
+    public QueryRestController(
+            QueryService service,
+            ObjectMapper objectMapper,
+            ResponseCache responseCache,
+            Duration closedRangeMaxAge,
+            Duration openRangeMaxAge,
+            Deadlines deadlines
+    ) {
         this.service = service;
+        this.pointsWriter = new PointsWriter(objectMapper);
+        this.responseCache = responseCache;
+        this.closedRangeMaxAge = closedRangeMaxAge;
+        this.openRangeMaxAge = openRangeMaxAge;
+        this.deadlines = deadlines;
     }
 
     private final Logger logger = LoggerFactory.getLogger(getClass());
@@ -37,6 +84,13 @@ public class QueryRestController {
         return e.getMessage();
     }
 
+    @ExceptionHandler
+    @ResponseStatus(HttpStatus.GATEWAY_TIMEOUT)
+    public String handle(DeadlineExceededException e) {
+        logger.warn("Query exceeded its deadline: {}", e.getMessage());
+        return e.getMessage();
+    }
+
     @ApiIgnore
     @GetMapping("/")
     public RedirectView index() {
@@ -45,13 +99,16 @@ public class QueryRestController {
 
     @ApiOperation(value = "Hent ut liste over tilgjengelege tidsseriar")
     @GetMapping("/meta")
-    public List<TimeSeriesDefinition> available() {
-        return service.availableTimeSeries();
+    public List<TimeSeriesDefinition> available(@ApiIgnore WebRequest request) {
+        AvailableTimeSeries available = service.availableTimeSeries();
+        if (request.checkNotModified(Long.toHexString(available.getGeneration())))
+            return null;
+        return available.getDefinitions();
     }
 
-    @ApiOperation(value = "Hent data frå ein tidsserie")
+    @ApiOperation(value = "Hent data frå ein tidsserie", response = TimeSeriesPoint.class, responseContainer = "List")
     @GetMapping("{owner}/{seriesName}/{distance}")
-    public List<TimeSeriesPoint> query(
+    public CompletionStage<ResponseEntity<StreamingResponseBody>> query(
             @ApiParam(value = "eigar av tidsserien i form av eit organisasjonsnummer", example = "991825827", required = true)
             @PathVariable String owner,
             @PathVariable String seriesName,
@@ -60,30 +117,54 @@ public class QueryRestController {
             @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) ZonedDateTime from,
             @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) ZonedDateTime to,
             @RequestParam(required = false) String categories,
-            @RequestParam(required = false) String perCategory
+            @RequestParam(required = false) String perCategory,
+            @ApiParam(value = "høgste tal på tidspunkt i svaret. Fleire tidspunkt blir redusert med largest-triangle-three-buckets", example = "1000")
+            @RequestParam(required = false) Integer maxPoints,
+            @ApiParam(value = "tal på kategoriverdiar i svaret med perCategory, dei med størst sum av målinga topBy", example = "10")
+            @RequestParam(required = false) Integer top,
+            @ApiParam(value = "målinga kategoriverdiane blir rangerte etter med top")
+            @RequestParam(required = false) String topBy,
+            @ApiIgnore WebRequest request
     ) {
+        if (maxPoints != null && maxPoints < 3)
+            throw new IllegalArgumentException(format("Maximum number of points must be at least 3, was %d", maxPoints));
+        if (top != null && (perCategory == null || topBy == null))
+            throw new IllegalArgumentException("Parameter top requires perCategory and topBy");
+        if (top != null && top < 1)
+            throw new IllegalArgumentException(format("Parameter top must be at least 1, was %d", top));
         TimeSeriesDefinition seriesDefinition = TimeSeriesDefinition.builder().name(seriesName).distance(distance).owner(owner);
-        return service.query(seriesDefinition, queryFilter().range(from, to).categories(categories).perCategory(perCategory).build());
+        QueryFilter queryFilter = queryFilter().range(from, to).categories(categories).perCategory(perCategory).top(top, topBy)
+                .deadline(deadlines.start("query", request)).build();
+        return points(
+                request,
+                queryFilter,
+                () -> service.version(seriesDefinition, queryFilter),
+                () -> service.query(seriesDefinition, queryFilter).thenApply(
+                        points -> maxPoints != null ? Downsampling.downsample(points, maxPoints, queryFilter.timeRange(), distance) : points
+                )
+        );
     }
 
     @ApiOperation(value = "Hent nyaste datapunkt frå ein tidsserie")
     @GetMapping("{owner}/{seriesName}/{distance}/last")
-    public TimeSeriesPoint last(
+    public CompletionStage<ResponseEntity<TimeSeriesPoint>> last(
             @ApiParam(value = "eigar av tidsserien i form av eit organisasjonsnummer", example = "991825827", required = true)
             @PathVariable String owner,
             @PathVariable String seriesName,
             @PathVariable MeasurementDistance distance,
             @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) ZonedDateTime from,
             @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) ZonedDateTime to,
-            @RequestParam(required = false) String categories
+            @RequestParam(required = false) String categories,
+            @ApiIgnore WebRequest request
     ) {
         TimeSeriesDefinition seriesDefinition = TimeSeriesDefinition.builder().name(seriesName).distance(distance).owner(owner);
-        return service.last(seriesDefinition, queryFilter().range(from, to).categories(categories).build());
+        QueryFilter queryFilter = queryFilter().range(from, to).categories(categories).deadline(deadlines.start("last", request)).build();
+        return service.last(seriesDefinition, queryFilter).thenApply(point -> point(queryFilter, point));
     }
 
-    @ApiOperation(value = "Hent nyaste datapunkt frå ein tidsserie")
+    @ApiOperation(value = "Hent nyaste datapunkt frå ein tidsserie", response = TimeSeriesPoint.class, responseContainer = "List")
     @GetMapping("{owner}/{seriesName}/{distance}/last/{targetDistance}")
-    public List<TimeSeriesPoint> lastHistogram(
+    public CompletionStage<ResponseEntity<StreamingResponseBody>> lastHistogram(
             @ApiParam(value = "eigar av tidsserien i form av eit organisasjonsnummer", example = "991825827", required = true)
             @PathVariable String owner,
             @PathVariable String seriesName,
@@ -91,50 +172,100 @@ public class QueryRestController {
             @PathVariable MeasurementDistance targetDistance,
             @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) ZonedDateTime from,
             @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) ZonedDateTime to,
-            @RequestParam(required = false) String categories
+            @RequestParam(required = false) String categories,
+            @ApiIgnore WebRequest request
     ) {
         validateMeasurementDistance(distance, targetDistance);
         TimeSeriesDefinition seriesDefinition = TimeSeriesDefinition.builder().name(seriesName).distance(distance).owner(owner);
-        return service.lastHistogram(seriesDefinition, targetDistance, queryFilter().range(from, to).categories(categories).build());
+        QueryFilter queryFilter = queryFilter().range(from, to).categories(categories)
+                .deadline(deadlines.start("lastHistogram", request)).build();
+        return points(
+                request,
+                queryFilter,
+                () -> versionNow(seriesDefinition, queryFilter),
+                () -> completedFuture(service.lastHistogram(seriesDefinition, targetDistance, queryFilter))
+        );
     }
 
     @ApiOperation(value = "Hent eitt datapunkt med sum av målingar",
         notes = "Returnerer eitt datapunkt")
     @GetMapping("{owner}/{seriesName}/{distance}/sum")
-    public TimeSeriesPoint sum(
+    public CompletionStage<ResponseEntity<TimeSeriesPoint>> sum(
             @ApiParam(value = "eigar av tidsserien i form av eit organisasjonsnummer", example = "991825827", required = true)
             @PathVariable String owner,
             @PathVariable String seriesName,
             @PathVariable MeasurementDistance distance,
             @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) ZonedDateTime from,
             @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) ZonedDateTime to,
-            @RequestParam(required = false) String categories
+            @RequestParam(required = false) String categories,
+            @ApiIgnore WebRequest request
     ) {
         TimeSeriesDefinition seriesDefinition = TimeSeriesDefinition.builder().name(seriesName).distance(distance).owner(owner);
-        return service.sum(seriesDefinition, queryFilter().range(from, to).categories(categories).build());
+        QueryFilter queryFilter = queryFilter().range(from, to).categories(categories).deadline(deadlines.start("sum", request)).build();
+        return service.sum(seriesDefinition, queryFilter).thenApply(point -> point(queryFilter, point));
     }
 
     @ApiOperation(value = "Hent datapunkter med summar av målingar, omforma til ny måleavstand",
-        notes = "Ein tidsserie med måleavstand på timar kan for eksempel summerast opp på dag, månad eller årsnivå.")
+        notes = "Ein tidsserie med måleavstand på timar kan for eksempel summerast opp på dag, månad eller årsnivå.",
+        response = TimeSeriesPoint.class, responseContainer = "List")
     @GetMapping("{owner}/{seriesName}/{distance}/sum/{targetDistance}")
-    public List<TimeSeriesPoint> sumHistogram(
+    public CompletionStage<ResponseEntity<StreamingResponseBody>> sumHistogram(
+            @ApiParam(value = "eigar av tidsserien i form av eit organisasjonsnummer", example = "991825827", required = true)
+            @PathVariable String owner,
+            @PathVariable String seriesName,
+            @PathVariable MeasurementDistance distance,
+            @PathVariable MeasurementDistance targetDistance,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) ZonedDateTime from,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) ZonedDateTime to,
+            @RequestParam(required = false) String categories,
+            @ApiIgnore WebRequest request
+    ) {
+        validateMeasurementDistance(distance, targetDistance);
+        TimeSeriesDefinition seriesDefinition = TimeSeriesDefinition.builder().name(seriesName).distance(distance).owner(owner);
+        QueryFilter queryFilter = queryFilter().range(from, to).categories(categories)
+                .deadline(deadlines.start("sumHistogram", request)).build();
+        return points(
+                request,
+                queryFilter,
+                () -> service.version(seriesDefinition, queryFilter),
+                () -> service.sumHistogram(seriesDefinition, targetDistance, queryFilter)
+        );
+    }
+
+    @ApiOperation(value = "Hent talet på ulike verdiar av ein kategorinøkkel per måleavstand",
+        notes = "Talet er eksakt opp til om lag presisjonsterskelen til tenesta, og elles eit estimat med HyperLogLog++. " +
+                "Kvart datapunkt har talet som måling med same namn som kategorinøkkelen.",
+        response = TimeSeriesPoint.class, responseContainer = "List")
+    @GetMapping("{owner}/{seriesName}/{distance}/cardinality/{targetDistance}")
+    public CompletionStage<ResponseEntity<StreamingResponseBody>> cardinalityHistogram(
             @ApiParam(value = "eigar av tidsserien i form av eit organisasjonsnummer", example = "991825827", required = true)
             @PathVariable String owner,
             @PathVariable String seriesName,
             @PathVariable MeasurementDistance distance,
             @PathVariable MeasurementDistance targetDistance,
+            @ApiParam(value = "kategorinøkkelen ulike verdiar skal teljast for", example = "TE", required = true)
+            @RequestParam String categoryKey,
             @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) ZonedDateTime from,
             @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) ZonedDateTime to,
-            @RequestParam(required = false) String categories
+            @RequestParam(required = false) String categories,
+            @ApiIgnore WebRequest request
     ) {
         validateMeasurementDistance(distance, targetDistance);
         TimeSeriesDefinition seriesDefinition = TimeSeriesDefinition.builder().name(seriesName).distance(distance).owner(owner);
-        return service.sumHistogram(seriesDefinition, targetDistance, queryFilter().range(from, to).categories(categories).build());
+        QueryFilter queryFilter = queryFilter().range(from, to).categories(categories)
+                .deadline(deadlines.start("cardinalityHistogram", request)).build();
+        return points(
+                request,
+                queryFilter,
+                () -> service.version(seriesDefinition, queryFilter),
+                () -> service.cardinalityHistogram(seriesDefinition, targetDistance, categoryKey, queryFilter)
+        );
     }
 
     @GetMapping(path = "{owner}/{seriesName}/{distance}/percentile", params = {"percentile", "measurementId", "operator"})
-    @ApiOperation(value = "", notes = "<b>Experimental feature -- use at your own risk. Categorized series are not supported.</b>")
-    public List<TimeSeriesPoint> relationalToPercentile(
+    @ApiOperation(value = "", notes = "<b>Experimental feature -- use at your own risk. Categorized series are not supported.</b>",
+        response = TimeSeriesPoint.class, responseContainer = "List")
+    public CompletionStage<ResponseEntity<StreamingResponseBody>> relationalToPercentile(
             @ApiParam(value = "eigar av tidsserien i form av eit organisasjonsnummer", example = "991825827", required = true)
             @PathVariable String owner,
             @PathVariable String seriesName,
@@ -144,10 +275,221 @@ public class QueryRestController {
             @RequestParam(required = false) String categories,
             @RequestParam int percentile,
             @RequestParam String measurementId,
-            @RequestParam RelationalOperator operator
+            @RequestParam RelationalOperator operator,
+            @ApiIgnore WebRequest request
     ) {
         TimeSeriesDefinition seriesDefinition = TimeSeriesDefinition.builder().name(seriesName).distance(distance).owner(owner);
-        return service.query(seriesDefinition, queryFilter().range(from, to).build(), new PercentileFilter(percentile, measurementId, operator));
+        QueryFilter queryFilter = queryFilter().range(from, to).deadline(deadlines.start("percentile", request)).build();
+        return points(
+                request,
+                queryFilter,
+                () -> versionNow(seriesDefinition, queryFilter),
+                () -> completedFuture(service.query(seriesDefinition, queryFilter, new PercentileFilter(percentile, measurementId, operator)))
+        );
+    }
+
+    @ApiOperation(value = "Hent data frå fleire tidsseriar i éin førespurnad",
+        notes = "Kvar spørring har ein id, og svaret inneheld resultatet for kvar id: anten datapunkta under 'points' " +
+                "eller feilen spørringa fekk under 'error'. Ei spørring som feilar, stoppar ikkje dei andre. " +
+                "Operasjonane er query, sum og sumHistogram, med same parametrar som dei tilsvarande " +
+                "enkeltspørringane. Ein sum gir høgst eitt datapunkt. Spørringane har ei felles tidsfrist.")
+    @PostMapping("/batch")
+    public CompletionStage<Map<String, BatchResult>> batch(@RequestBody List<BatchQuery> queries, @ApiIgnore WebRequest request) {
+        Set<String> ids = new HashSet<>();
+        for (BatchQuery query : queries) {
+            if (!ids.add(query.getId()))
+                throw new IllegalArgumentException("Duplicate query id " + query.getId());
+            if (query.getOperation() == BatchQuery.Operation.sumHistogram) {
+                if (query.getTargetDistance() == null)
+                    throw new IllegalArgumentException("Missing target distance for query " + query.getId());
+                validateMeasurementDistance(query.getSeriesDefinition().getDistance(), query.getTargetDistance());
+            }
+        }
+        // Performed by the calling thread, as the queries are sent together in one blocking multi search
+        return completedFuture(service.batch(queries, deadlines.start("batch", request)));
+    }
+
+    /**
+     * Writes the points while they are converted, instead of collecting them first, in the format negotiated from the
+     * request's Accept header. Smile and CBOR give timestamps as epoch milliseconds with the parameter
+     * <code>timestamps=epochMillis</code>. The parameter <code>layout=columns</code> gives one array per field
+     * instead of one object per point.
+     * <p>
+     * When the version of the series is known, the response has an entity tag derived from it and the request, and
+     * is not modified if the client has that tag. Responses are kept gzipped by their tag, and served from the cache
+     * without querying. A gzipped body has its own tag, as a strong tag must differ between content codings.
+     * <p>
+     * Responses to requests allowing partial results have no tag, are not kept and must not be stored by clients, as
+     * whether they are complete depends on how long the searches took. Searches for pages while the body is written are
+     * not bounded by the deadline, so a body is never cut short after the headers have been sent.
+     * <p>
+     * A body is kept only if the version is the same after it has been written as before the query, so that a body
+     * searched while points were ingested or refreshed is not kept under a tag it does not match.
+     *
+     * @param version gets the version of the series, or null if it is not known
+     * @param query   performs the query. It is called when the version has completed.
+     */
+    private CompletionStage<ResponseEntity<StreamingResponseBody>> points(
+            WebRequest request,
+            QueryFilter queryFilter,
+            Supplier<CompletionStage<String>> version,
+            Supplier<CompletionStage<Stream<TimeSeriesPoint>>> query
+    ) {
+        MediaType mediaType = pointsWriter.mediaType(request.getHeader(HttpHeaders.ACCEPT));
+        boolean epochMillis = "epochMillis".equals(request.getParameter("timestamps"));
+        boolean columns = "columns".equals(request.getParameter("layout"));
+        String ifNoneMatch = request.getHeader(HttpHeaders.IF_NONE_MATCH);
+        boolean gzip = acceptsGzip(request.getHeader(HttpHeaders.ACCEPT_ENCODING));
+        String resource = resource(request, mediaType);
+        CacheControl cacheControl = cacheControl(queryFilter);
+        Deadline deadline = queryFilter.deadline();
+        CompletionStage<String> versionBefore = deadline.allowsPartialResults() ? completedFuture(null) : version.get();
+        return versionBefore.exceptionally(e -> {
+            logger.warn("Failed to get version of series. Responding without entity tag.", e);
+            return null;
+        }).thenCompose(v -> {
+            if (v == null) {
+                return query.get().thenApply(points -> (deadline.isPartial() ? partial() : untagged()).contentType(mediaType).body(
+                        cancelOnAbort(deadline, outputStream -> pointsWriter.write(points, mediaType, epochMillis, columns, outputStream))
+                ));
+            }
+            String entityTag = entityTag(v, resource);
+            byte[] cached = responseCache.get(entityTag);
+            boolean gzipped = cached != null && gzip;
+            String sentEntityTag = gzipped ? gzipEntityTag(entityTag) : entityTag;
+            if (matches(ifNoneMatch, entityTag) || matches(ifNoneMatch, gzipEntityTag(entityTag))) {
+                return completedFuture(ResponseEntity.status(HttpStatus.NOT_MODIFIED)
+                        .eTag(sentEntityTag).cacheControl(cacheControl).varyBy(HttpHeaders.ACCEPT, HttpHeaders.ACCEPT_ENCODING)
+                        .build());
+            }
+            ResponseEntity.BodyBuilder response = ResponseEntity.ok()
+                    .eTag(sentEntityTag).cacheControl(cacheControl).varyBy(HttpHeaders.ACCEPT, HttpHeaders.ACCEPT_ENCODING)
+                    .contentType(mediaType);
+            if (cached != null) {
+                if (gzipped)
+                    response.header(HttpHeaders.CONTENT_ENCODING, "gzip");
+                return completedFuture(response.body(outputStream -> ResponseCache.write(cached, gzipped, outputStream)));
+            }
+            return query.get().thenApply(points -> response.body(cancelOnAbort(deadline, outputStream -> responseCache.write(
+                    entityTag,
+                    o -> pointsWriter.write(points, mediaType, epochMillis, columns, o),
+                    outputStream,
+                    () -> v.equals(versionAfter(version))
+            ))));
+        });
+    }
+
+    /**
+     * @return a response flagging that searches timed out and gave partial results, which must not be cached
+     */
+    private static ResponseEntity.BodyBuilder partial() {
+        return ResponseEntity.ok().header(Deadlines.PARTIAL_RESULTS_HEADER, "true").cacheControl(CacheControl.noStore());
+    }
+
+    /**
+     * @return a response without entity tag, which may be stored but not reused without a new request, as it cannot
+     * be revalidated
+     */
+    private static ResponseEntity.BodyBuilder untagged() {
+        return ResponseEntity.ok().cacheControl(CacheControl.noCache());
+    }
+
+    private static ResponseEntity<TimeSeriesPoint> point(QueryFilter queryFilter, TimeSeriesPoint point) {
+        return (queryFilter.deadline().isPartial() ? partial() : untagged()).body(point);
+    }
+
+    /**
+     * @return the body, cancelling the deadline if the client goes away while it is written, so that searches for
+     * later pages are not performed
+     */
+    private static StreamingResponseBody cancelOnAbort(Deadline deadline, StreamingResponseBody body) {
+        return outputStream -> {
+            try {
+                body.writeTo(outputStream);
+            } catch (IOException e) {
+                deadline.cancel();
+                throw e;
+            }
+        };
+    }
+
+    /**
+     * @return the version of the series, waited for so that a synchronous query is performed by the calling thread
+     */
+    private CompletionStage<String> versionNow(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter) {
+        CompletableFuture<String> version = service.version(seriesDefinition, queryFilter).toCompletableFuture();
+        try {
+            return completedFuture(version.join());
+        } catch (CompletionException e) {
+            return version;
+        }
+    }
+
+    /**
+     * @return the version of the series now, or null if it failed
+     */
+    private String versionAfter(Supplier<CompletionStage<String>> version) {
+        try {
+            return version.get().toCompletableFuture().join();
+        } catch (RuntimeException e) {
+            logger.warn("Failed to get version of series. Not keeping response.", e);
+            return null;
+        }
+    }
+
+    /**
+     * @return what identifies the response besides the series' version: the path, the parameters and the format
+     */
+    private static String resource(WebRequest request, MediaType mediaType) {
+        StringBuilder resource = new StringBuilder(request.getDescription(false)).append(' ').append(mediaType);
+        new TreeMap<>(request.getParameterMap()).forEach(
+                (name, values) -> resource.append(' ').append(name).append('=').append(String.join(",", values))
+        );
+        return resource.toString();
+    }
+
+    private static String entityTag(String version, String resource) {
+        return "\"" + DigestUtils.md5DigestAsHex((version + "\n" + resource).getBytes(StandardCharsets.UTF_8)) + "\"";
+    }
+
+    /**
+     * @return the tag of the gzipped body of the response with the given tag
+     */
+    private static String gzipEntityTag(String entityTag) {
+        return entityTag.substring(0, entityTag.length() - 1) + "-gzip\"";
+    }
+
+    private static boolean matches(String ifNoneMatch, String entityTag) {
+        if (ifNoneMatch == null)
+            return false;
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.equals("*") || tag.equals(entityTag) || tag.equals("W/" + entityTag))
+                return true;
+        }
+        return false;
+    }
+
+    private static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null)
+            return false;
+        for (String encoding : acceptEncoding.split(",")) {
+            String[] parts = encoding.trim().split(";");
+            if (parts[0].trim().equalsIgnoreCase("gzip"))
+                return parts.length == 1 || !parts[1].trim().matches("q=0(\\.0*)?");
+        }
+        return false;
+    }
+
+    /**
+     * @return the caching of a response for the query filter, which is longer if its range has ended
+     */
+    private CacheControl cacheControl(QueryFilter queryFilter) {
+        boolean closed = queryFilter.timeRange() != null
+                && queryFilter.timeRange().to() != null
+                && queryFilter.timeRange().to().isBefore(ZonedDateTime.now());
+        Duration maxAge = closed ? closedRangeMaxAge : openRangeMaxAge;
+        return maxAge.isZero() ? CacheControl.noCache() : CacheControl.maxAge(maxAge);
     }
 
     private void validateMeasurementDistance(MeasurementDistance distance, MeasurementDistance targetDistance) {
@@ -0,0 +1,145 @@
+package no.difi.statistics.query.api;
+
+import org.springframework.util.StreamUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Response bodies kept as gzipped bytes by their entity tag. Since the tag changes with the content, entries are never
+ * stale, and are only evicted, least recently used first, when their total size exceeds the maximum. Bodies larger
+ * than the maximum entry size are not kept.
+ */
+public class ResponseCache {
+
+    private final long maxBytes;
+    private final int maxEntryBytes;
+    private final LinkedHashMap<String, byte[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+
+    /**
+     * @param maxBytes      the maximum total size of the gzipped bodies. With zero nothing is kept.
+     * @param maxEntryBytes the maximum size of a body before it is gzipped
+     */
+    public ResponseCache(long maxBytes, int maxEntryBytes) {
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = maxEntryBytes;
+    }
+
+    @FunctionalInterface
+    interface Body {
+        void writeTo(OutputStream outputStream) throws IOException;
+    }
+
+    /**
+     * @return the gzipped body, or null if it is not kept
+     */
+    synchronized byte[] get(String entityTag) {
+        return entries.get(entityTag);
+    }
+
+    /**
+     * Writes the body to the output stream, keeping a gzipped copy of it if it is written completely and within the
+     * maximum entry size, and if it is still current when written.
+     *
+     * @param current whether the body written is still what the entity tag stands for
+     */
+    void write(String entityTag, Body body, OutputStream outputStream, BooleanSupplier current) throws IOException {
+        if (maxBytes <= 0) {
+            body.writeTo(outputStream);
+            return;
+        }
+        Copy copy = new Copy(outputStream);
+        body.writeTo(copy);
+        byte[] gzipped = copy.gzipped();
+        if (gzipped != null && current.getAsBoolean())
+            put(entityTag, gzipped);
+    }
+
+    /**
+     * Writes a kept body, as is if the client accepts gzip and otherwise decompressed.
+     */
+    static void write(byte[] gzipped, boolean gzip, OutputStream outputStream) throws IOException {
+        if (gzip) {
+            outputStream.write(gzipped);
+            return;
+        }
+        try (InputStream body = new GZIPInputStream(new ByteArrayInputStream(gzipped))) {
+            StreamUtils.copy(body, outputStream);
+        }
+    }
+
+    synchronized long bytes() {
+        return bytes;
+    }
+
+    private synchronized void put(String entityTag, byte[] gzipped) {
+        if (gzipped.length > maxBytes)
+            return;
+        byte[] previous = entries.put(entityTag, gzipped);
+        bytes += gzipped.length - (previous != null ? previous.length : 0);
+        Iterator<Map.Entry<String, byte[]>> eldest = entries.entrySet().iterator();
+        while (bytes > maxBytes) {
+            bytes -= eldest.next().getValue().length;
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Passes the body on to the client while gzipping a copy of it, until the copy exceeds the maximum entry size.
+     */
+    private class Copy extends FilterOutputStream {
+
+        private ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        private GZIPOutputStream gzip;
+        private long size;
+
+        private Copy(OutputStream outputStream) throws IOException {
+            super(outputStream);
+            gzip = new GZIPOutputStream(gzipped);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            copy(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            copy(b, off, len);
+        }
+
+        private void copy(byte[] b, int off, int len) throws IOException {
+            if (gzip == null)
+                return;
+            size += len;
+            if (size > maxEntryBytes) {
+                gzip = null;
+                gzipped = null;
+                return;
+            }
+            gzip.write(b, off, len);
+        }
+
+        private byte[] gzipped() throws IOException {
+            if (gzip == null)
+                return null;
+            gzip.close();
+            return gzipped.toByteArray();
+        }
+
+    }
+
+}
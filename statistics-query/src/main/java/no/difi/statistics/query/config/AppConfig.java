@@ -1,11 +1,15 @@
 package no.difi.statistics.query.config;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import no.difi.statistics.query.api.Deadlines;
 import no.difi.statistics.query.api.QueryRestController;
+import no.difi.statistics.query.api.ResponseCache;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.PropertySource;
 import org.springframework.core.Ordered;
+import org.springframework.core.env.Environment;
 import org.springframework.core.io.ClassPathResource;
 import org.springframework.web.servlet.HandlerMapping;
 import org.springframework.web.servlet.handler.SimpleUrlHandlerMapping;
@@ -16,10 +20,14 @@ import springfox.documentation.spi.DocumentationType;
 import springfox.documentation.spring.web.plugins.Docket;
 import springfox.documentation.swagger2.annotations.EnableSwagger2;
 
+import java.time.Duration;
 import java.time.ZonedDateTime;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Optional;
 
 import static java.lang.String.format;
+import static java.util.Arrays.asList;
 import static java.util.Collections.singletonList;
 import static java.util.Collections.singletonMap;
 import static springfox.documentation.builders.PathSelectors.any;
@@ -31,15 +39,51 @@ import static springfox.documentation.builders.RequestHandlerSelectors.basePacka
 public class AppConfig {
 
     private final BackendConfig backendConfig;
+    private final Environment environment;
 
     @Autowired
-    public AppConfig(BackendConfig backendConfig) {
+    public AppConfig(BackendConfig backendConfig, Environment environment) {
         this.backendConfig = backendConfig;
+        this.environment = environment;
     }
 
     @Bean
-    public QueryRestController api() {
-        return new QueryRestController(backendConfig.queryService());
+    public QueryRestController api(ObjectMapper objectMapper) {
+        return new QueryRestController(
+                backendConfig.queryService(),
+                objectMapper,
+                responseCache(),
+                Duration.ofSeconds(environment.getProperty("no.difi.statistics.query.cache-control.closed-max-age-seconds", Long.class, 86400L)),
+                Duration.ofSeconds(environment.getProperty("no.difi.statistics.query.cache-control.open-max-age-seconds", Long.class, 0L)),
+                deadlines()
+        );
+    }
+
+    /**
+     * @return deadlines of queries, with a timeout per endpoint falling back to the default timeout
+     */
+    @Bean
+    public Deadlines deadlines() {
+        Map<String, Duration> timeouts = new HashMap<>();
+        for (String endpoint : asList("query", "last", "lastHistogram", "sum", "sumHistogram", "cardinalityHistogram", "percentile", "batch")) {
+            Long seconds = environment.getProperty("no.difi.statistics.query.deadline." + endpoint + "-seconds", Long.class);
+            if (seconds != null)
+                timeouts.put(endpoint, Duration.ofSeconds(seconds));
+        }
+        return new Deadlines(
+                timeouts,
+                Duration.ofSeconds(environment.getProperty("no.difi.statistics.query.deadline.default-seconds", Long.class, 30L)),
+                Duration.ofSeconds(environment.getProperty("no.difi.statistics.query.deadline.max-seconds", Long.class, 300L)),
+                Duration.ofSeconds(environment.getProperty("no.difi.statistics.query.deadline.grace-seconds", Long.class, 5L))
+        );
+    }
+
+    @Bean
+    public ResponseCache responseCache() {
+        return new ResponseCache(
+                environment.getProperty("no.difi.statistics.query.response-cache.max-bytes", Long.class, 64L * 1024 * 1024),
+                environment.getProperty("no.difi.statistics.query.response-cache.max-entry-bytes", Integer.class, 4 * 1024 * 1024)
+        );
     }
 
     @Bean
@@ -70,8 +114,16 @@ public class AppConfig {
                                         + "Merk at filteret ikkje filtrerer der det er nøyaktig lik verdi. Til dømes blir søketermen 'https://www.vest-testen.kommune.no/v3/' tolka til fleire søkeord (tokens): 'https', 'www.vest', 'testen.kommune.no' og 'v3'. Filteret sjekkar at alle søkeordene er med, men utelet ikkje treff som også har fleire søkeord. I dette dømet vert også 'https://www.vest-testen.kommune.no/sd/v3/' tatt med ('sd' er eit ekstra søkeord).\n\n"
                                         + "<i>Per kategorinøkkel</i>\n"
                                         + "Med parameteret 'perCategory' kan du hente ut datapunkt for kvar ulik verdi på kategorinøkkelen du oppgir. For eksempel, med statistikk for idporten-innloggingar, kan du få fleire datapunkt på samme tid, der kvart datapunkt er for ulike verdiar av Tjenesteeigar (kategorinøkkel). I dette eksempelet kan ulike verdiar av Tjenesteeigar kan vere Skatteetaten, Aure kommune osb.\n\n"
+                                        + "Med parameteret 'top' saman med 'perCategory' får du berre dei kategoriverdiane som har størst sum av målinga i parameteret 'topBy' over heile tidsrommet. For eksempel gir top=10&topBy=antall dei ti tenesteeigarane med flest innloggingar.\n\n"
+                                        + "Kor mange ulike verdiar ein kategorinøkkel har per måleavstand, til dømes kor mange tenesteeigarar som hadde innloggingar kvar dag, hentar du med '/cardinality/{måleavstand}?categoryKey=TE' i staden for å telje datapunkta frå 'perCategory'.\n\n"
                                         + "<i>Tidspunkt</i>\n"
-                                        + "Alle tidspunkt i parameter og responsar er oppgjevne i ISO 8601 datetime-format. Eksempel: '2018-06-18T09:00Z'."
+                                        + "Alle tidspunkt i parameter og responsar er oppgjevne i ISO 8601 datetime-format. Eksempel: '2018-06-18T09:00Z'.\n\n"
+                                        + "<i>Format</i>\n"
+                                        + "Lister med datapunkt kan også hentast som Smile ('application/x-jackson-smile'), CBOR ('application/cbor') eller CSV ('text/csv') ved å oppgi formatet i Accept-headeren. For Smile og CBOR gir parameteret 'timestamps=epochMillis' tidspunkt som millisekund sidan 1970-01-01T00:00Z. Med parameteret 'layout=columns' kjem datapunkta som kolonnar: ei liste med tidspunkt og ei liste per måling og kategori, der 'timestamps=epochMillis' gjeld for alle format utanom CSV.\n\n"
+                                        + "<i>Mellomlagring</i>\n"
+                                        + "Lister med datapunkt har ein ETag som endrar seg når det kjem nye målingar i tidsserien. Med headeren If-None-Match kan du spørje om lista er endra, og får då svaret 304 Not Modified om ho ikkje er det. Cache-Control seier kor lenge lista kan brukast utan å spørje på nytt, som er lengre for tidsrom som er avslutta.\n\n"
+                                        + "<i>Tidsfrist</i>\n"
+                                        + "Kvar spørring har ei tidsfrist, og svaret er 504 Gateway Timeout om ho ikkje blir halden. Med headeren Query-Timeout kan du oppgi ei anna tidsfrist i sekund. Med parameteret 'partialResults=true' får du i staden det som vart funne innan fristen, og svaret har då headeren Partial-Results."
 
                                 ,
                                 apiVersion
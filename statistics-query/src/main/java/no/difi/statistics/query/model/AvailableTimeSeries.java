@@ -0,0 +1,34 @@
+package no.difi.statistics.query.model;
+
+import no.difi.statistics.model.TimeSeriesDefinition;
+
+import java.util.List;
+
+/**
+ * The available series together with the generation they were read at, so that both describe the same catalog.
+ */
+public class AvailableTimeSeries {
+
+    private final List<TimeSeriesDefinition> definitions;
+    private final long generation;
+
+    public AvailableTimeSeries(List<TimeSeriesDefinition> definitions, long generation) {
+        this.definitions = definitions;
+        this.generation = generation;
+    }
+
+    /**
+     * @return all available series, sorted
+     */
+    public List<TimeSeriesDefinition> getDefinitions() {
+        return definitions;
+    }
+
+    /**
+     * @return the generation of the available series, which changes whenever they may have changed
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+}
@@ -0,0 +1,109 @@
+package no.difi.statistics.query.model;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import no.difi.statistics.model.MeasurementDistance;
+import no.difi.statistics.model.TimeSeriesDefinition;
+
+import java.io.IOException;
+import java.time.ZonedDateTime;
+
+import static no.difi.statistics.query.model.QueryFilter.queryFilter;
+
+/**
+ * One of several queries requested together, identified by an id chosen by the client.
+ */
+@JsonDeserialize(using = BatchQuery.JsonDeserializer.class)
+public class BatchQuery {
+
+    public enum Operation {
+        query,
+        sum,
+        sumHistogram
+    }
+
+    private final String id;
+    private final TimeSeriesDefinition seriesDefinition;
+    private final Operation operation;
+    private final MeasurementDistance targetDistance;
+    private final QueryFilter queryFilter;
+
+    public BatchQuery(
+            String id,
+            TimeSeriesDefinition seriesDefinition,
+            Operation operation,
+            MeasurementDistance targetDistance,
+            QueryFilter queryFilter
+    ) {
+        this.id = id;
+        this.seriesDefinition = seriesDefinition;
+        this.operation = operation;
+        this.targetDistance = targetDistance;
+        this.queryFilter = queryFilter;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public TimeSeriesDefinition getSeriesDefinition() {
+        return seriesDefinition;
+    }
+
+    public Operation getOperation() {
+        return operation;
+    }
+
+    /**
+     * @return the distance to sum to, for {@link Operation#sumHistogram}
+     */
+    public MeasurementDistance getTargetDistance() {
+        return targetDistance;
+    }
+
+    public QueryFilter getQueryFilter() {
+        return queryFilter;
+    }
+
+    /**
+     * Reads the query from the same parameters as the single series operations:
+     * <code>{"id": "a", "owner": "991825827", "series": "name", "distance": "hours", "operation": "sumHistogram",
+     * "targetDistance": "days", "from": "2016-01-01T00:00:00Z", "to": "2016-02-01T00:00:00Z", "categories": "TE=x",
+     * "perCategory": "TE"}</code>. Only id, owner, series, distance and operation are required.
+     */
+    static class JsonDeserializer extends com.fasterxml.jackson.databind.JsonDeserializer<BatchQuery> {
+
+        @Override
+        public BatchQuery deserialize(JsonParser parser, DeserializationContext ctxt) throws IOException {
+            JsonNode node = parser.getCodec().readTree(parser);
+            return new BatchQuery(
+                    required(node, "id", ctxt),
+                    TimeSeriesDefinition.builder()
+                            .name(required(node, "series", ctxt))
+                            .distance(MeasurementDistance.valueOf(required(node, "distance", ctxt)))
+                            .owner(required(node, "owner", ctxt)),
+                    Operation.valueOf(required(node, "operation", ctxt)),
+                    node.hasNonNull("targetDistance") ? MeasurementDistance.valueOf(node.get("targetDistance").asText()) : null,
+                    queryFilter()
+                            .range(timestamp(node, "from"), timestamp(node, "to"))
+                            .categories(node.hasNonNull("categories") ? node.get("categories").asText() : null)
+                            .perCategory(node.hasNonNull("perCategory") ? node.get("perCategory").asText() : null)
+                            .build()
+            );
+        }
+
+        private static String required(JsonNode node, String field, DeserializationContext ctxt) throws IOException {
+            if (!node.hasNonNull(field))
+                throw ctxt.weirdStringException(null, BatchQuery.class, "Missing " + field);
+            return node.get(field).asText();
+        }
+
+        private static ZonedDateTime timestamp(JsonNode node, String field) {
+            return node.hasNonNull(field) ? ZonedDateTime.parse(node.get(field).asText()) : null;
+        }
+
+    }
+
+}
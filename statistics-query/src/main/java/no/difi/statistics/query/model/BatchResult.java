@@ -0,0 +1,45 @@
+package no.difi.statistics.query.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import no.difi.statistics.model.TimeSeriesPoint;
+
+import java.util.List;
+import java.util.concurrent.CompletionException;
+
+/**
+ * The result of one of several queries requested together: either its points, or the error it failed with. Written
+ * as <code>{"points": [...]}</code> or <code>{"error": "..."}</code>.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class BatchResult {
+
+    private final List<TimeSeriesPoint> points;
+    private final String error;
+
+    private BatchResult(List<TimeSeriesPoint> points, String error) {
+        this.points = points;
+        this.error = error;
+    }
+
+    public static BatchResult points(List<TimeSeriesPoint> points) {
+        return new BatchResult(points, null);
+    }
+
+    public static BatchResult error(String error) {
+        return new BatchResult(null, error);
+    }
+
+    public static BatchResult error(Throwable e) {
+        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        return error(cause.getMessage() != null ? cause.getMessage() : cause.getClass().getSimpleName());
+    }
+
+    public List<TimeSeriesPoint> getPoints() {
+        return points;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+}
@@ -0,0 +1,115 @@
+package no.difi.statistics.query.model;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * When a query must be done by. Searches are given the remaining time as their timeout, and are cancelled when the
+ * deadline is cancelled, which happens when it has passed or the client has gone away.
+ * <p>
+ * The deadline bounds the time until the response starts. It is then released, and searches still needed to write the
+ * response, such as for following pages, have no timeout and are cancelled only if the client goes away. A response
+ * that has started is thus never cut off by the deadline.
+ */
+public class Deadline {
+
+    private volatile Instant at;
+    private final boolean partialResults;
+    private final List<Runnable> cancellations = new ArrayList<>();
+    private boolean cancelled;
+    private volatile boolean released;
+    private volatile boolean partial;
+
+    /**
+     * @param partialResults whether searches timing out may give the results found so far instead of failing
+     */
+    public Deadline(Instant at, boolean partialResults) {
+        this.at = at;
+        this.partialResults = partialResults;
+    }
+
+    public static Deadline after(Duration timeout, boolean partialResults) {
+        return new Deadline(Instant.now().plus(timeout), partialResults);
+    }
+
+    public Instant at() {
+        return at;
+    }
+
+    /**
+     * Moves the deadline to the given instant, if that is later. Searches already started keep their timeout.
+     */
+    public synchronized void extendTo(Instant later) {
+        if (later.isAfter(at))
+            at = later;
+    }
+
+    /**
+     * @return the time left, or zero if the deadline has passed
+     */
+    public Duration remaining() {
+        Duration remaining = Duration.between(Instant.now(), at);
+        return remaining.isNegative() ? Duration.ZERO : remaining;
+    }
+
+    public boolean allowsPartialResults() {
+        return partialResults;
+    }
+
+    /**
+     * Records that a search timed out and gave partial results.
+     */
+    public void markPartial() {
+        partial = true;
+    }
+
+    /**
+     * @return whether any search timed out and gave partial results
+     */
+    public boolean isPartial() {
+        return partial;
+    }
+
+    /**
+     * @param cancellation run when the deadline is cancelled, or at once if it already is
+     */
+    public void onCancel(Runnable cancellation) {
+        synchronized (this) {
+            if (!cancelled) {
+                cancellations.add(cancellation);
+                return;
+            }
+        }
+        cancellation.run();
+    }
+
+    public void cancel() {
+        List<Runnable> cancellations;
+        synchronized (this) {
+            if (cancelled)
+                return;
+            cancelled = true;
+            cancellations = new ArrayList<>(this.cancellations);
+            this.cancellations.clear();
+        }
+        cancellations.forEach(Runnable::run);
+    }
+
+    /**
+     * Releases the query from the deadline, as its response has started.
+     */
+    public void release() {
+        released = true;
+    }
+
+    public boolean isReleased() {
+        return released;
+    }
+
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+}
@@ -0,0 +1,12 @@
+package no.difi.statistics.query.model;
+
+/**
+ * Thrown when a query is not done by its {@link Deadline}.
+ */
+public class DeadlineExceededException extends RuntimeException {
+
+    public DeadlineExceededException(String message) {
+        super(message);
+    }
+
+}
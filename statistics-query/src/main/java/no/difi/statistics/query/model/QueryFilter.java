@@ -16,6 +16,9 @@ public class QueryFilter {
     private Map<String, String> categories;
     private TimeRange timeRange;
     private String perCategory;
+    private Integer top;
+    private String topBy;
+    private Deadline deadline;
 
     private QueryFilter() {
         // Use builder
@@ -35,6 +38,39 @@ public class QueryFilter {
         return this.perCategory;
     }
 
+    /**
+     * @return the number of values of the {@link #perCategory() category key} to include, the ones with the largest
+     * sums of the {@link #topBy() measurement} over the range, or null to include all
+     */
+    public Integer top() {
+        return top;
+    }
+
+    public String topBy() {
+        return topBy;
+    }
+
+    /**
+     * @return the deadline of the query, if any. It is not part of the filter's equality.
+     */
+    public Deadline deadline() {
+        return deadline;
+    }
+
+    /**
+     * @return a copy of this filter with the given deadline
+     */
+    public QueryFilter withDeadline(Deadline deadline) {
+        QueryFilter copy = new QueryFilter();
+        copy.categories = categories;
+        copy.timeRange = timeRange;
+        copy.perCategory = perCategory;
+        copy.top = top;
+        copy.topBy = topBy;
+        copy.deadline = deadline;
+        return copy;
+    }
+
     public static Builder queryFilter() {
         return new Builder(new QueryFilter());
     }
@@ -66,6 +102,17 @@ public class QueryFilter {
             return this;
         }
 
+        public Builder top(Integer top, String topBy) {
+            instance.top = top;
+            instance.topBy = topBy;
+            return this;
+        }
+
+        public Builder deadline(Deadline deadline) {
+            instance.deadline = deadline;
+            return this;
+        }
+
         public Builder range(ZonedDateTime from, ZonedDateTime to) {
             if (from != null || to != null)
                 instance.timeRange = new TimeRange(from, to);
@@ -84,12 +131,14 @@ public class QueryFilter {
         if (o == null || getClass() != o.getClass()) return false;
         QueryFilter that = (QueryFilter) o;
         return Objects.equals(categories, that.categories) &&
-                Objects.equals(timeRange, that.timeRange);
+                Objects.equals(timeRange, that.timeRange) &&
+                Objects.equals(top, that.top) &&
+                Objects.equals(topBy, that.topBy);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(categories, timeRange);
+        return Objects.hash(categories, timeRange, top, topBy);
     }
 
     @Override
@@ -97,6 +146,7 @@ public class QueryFilter {
         return "QueryFilter{" +
                 "categories=" + categories +
                 ", timeRange=" + timeRange +
+                (top != null ? ", top=" + top + ", topBy=" + topBy : "") +
                 '}';
     }
 
@@ -0,0 +1,86 @@
+package no.difi.statistics.query.api;
+
+import no.difi.statistics.model.TimeRange;
+import no.difi.statistics.model.TimeSeriesPoint;
+import org.junit.Test;
+
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static java.util.stream.Collectors.toList;
+import static no.difi.statistics.model.MeasurementDistance.minutes;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DownsamplingTest {
+
+    private static final ZonedDateTime start = ZonedDateTime.parse("2016-01-01T00:00:00Z");
+
+    @Test
+    public void shouldKeepAtMostMaxPointsIncludingFirstAndLast() {
+        List<TimeSeriesPoint> points = Downsampling.downsample(points(10_000), 100, new TimeRange(start, start.plusMinutes(10_000)), minutes)
+                .collect(toList());
+        assertTrue(points.size() <= 100);
+        assertEquals(start, points.get(0).getTimestamp());
+        assertEquals(start.plusMinutes(9_999), points.get(points.size() - 1).getTimestamp());
+        for (int i = 1; i < points.size(); i++)
+            assertTrue(points.get(i).getTimestamp().isAfter(points.get(i - 1).getTimestamp()));
+    }
+
+    @Test
+    public void shouldKeepPeak() {
+        List<TimeSeriesPoint> points = new ArrayList<>();
+        for (int i = 0; i < 1_000; i++)
+            points.add(point(start.plusMinutes(i), i == 500 ? 1_000 : 1));
+        List<TimeSeriesPoint> downsampled = Downsampling.downsample(points.stream(), 10, new TimeRange(start, start.plusMinutes(1_000)), minutes)
+                .collect(toList());
+        assertTrue(downsampled.stream().anyMatch(point -> point.getTimestamp().equals(start.plusMinutes(500))));
+    }
+
+    @Test
+    public void shouldKeepAllPointsWhenFewerThanMaxPointsAndRangeIsOpen() {
+        assertEquals(50, Downsampling.downsample(points(50), 100, null, minutes).count());
+    }
+
+    @Test
+    public void shouldKeepAllPointsWhenRangeHoldsFewerTimestampsThanMaxPoints() {
+        List<TimeSeriesPoint> points = Downsampling.downsample(points(60), 100, new TimeRange(start, start.plusMinutes(99)), minutes)
+                .collect(toList());
+        assertEquals(60, points.size());
+    }
+
+    @Test
+    public void shouldReduceCollectedPointsWhenRangeIsOpen() {
+        List<TimeSeriesPoint> points = Downsampling.downsample(points(1_000), 20, null, minutes).collect(toList());
+        assertTrue(points.size() <= 20);
+        assertEquals(start.plusMinutes(999), points.get(points.size() - 1).getTimestamp());
+    }
+
+    @Test
+    public void shouldKeepAllPointsOfAKeptTimestamp() {
+        List<TimeSeriesPoint> points = new ArrayList<>();
+        for (int i = 0; i < 1_000; i++) {
+            points.add(TimeSeriesPoint.builder().timestamp(start.plusMinutes(i)).measurement("m", i % 7).category("TE", "a").build());
+            points.add(TimeSeriesPoint.builder().timestamp(start.plusMinutes(i)).measurement("m", i % 5).category("TE", "b").build());
+        }
+        List<TimeSeriesPoint> downsampled = Downsampling.downsample(points.stream(), 10, new TimeRange(start, start.plusMinutes(1_000)), minutes)
+                .collect(toList());
+        assertEquals(0, downsampled.size() % 2);
+        for (int i = 0; i < downsampled.size(); i += 2)
+            assertEquals(downsampled.get(i).getTimestamp(), downsampled.get(i + 1).getTimestamp());
+    }
+
+    private static Stream<TimeSeriesPoint> points(int count) {
+        List<TimeSeriesPoint> points = new ArrayList<>();
+        for (int i = 0; i < count; i++)
+            points.add(point(start.plusMinutes(i), (long) (100 * Math.sin(i / 50.0))));
+        return points.stream();
+    }
+
+    private static TimeSeriesPoint point(ZonedDateTime timestamp, long value) {
+        return TimeSeriesPoint.builder().timestamp(timestamp).measurement("m", value).build();
+    }
+
+}
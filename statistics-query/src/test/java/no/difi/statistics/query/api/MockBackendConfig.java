@@ -5,6 +5,10 @@ import no.difi.statistics.query.config.BackendConfig;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+import static org.mockito.Mockito.RETURNS_DEFAULTS;
 import static org.mockito.Mockito.mock;
 
 @Configuration
@@ -12,7 +16,10 @@ public class MockBackendConfig implements BackendConfig {
 
     @Bean
     public QueryService queryService() {
-        return mock(QueryService.class);
+        // Operations returning a completion stage complete without a result unless stubbed
+        return mock(QueryService.class, invocation -> CompletionStage.class.equals(invocation.getMethod().getReturnType())
+                ? CompletableFuture.completedFuture(null)
+                : RETURNS_DEFAULTS.answer(invocation));
     }
 
 }
@@ -1,32 +1,62 @@
 package no.difi.statistics.query.api;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import no.difi.statistics.model.MeasurementDistance;
 import no.difi.statistics.model.RelationalOperator;
 import no.difi.statistics.model.TimeSeriesDefinition;
 import no.difi.statistics.model.TimeSeriesPoint;
 import no.difi.statistics.model.PercentileFilter;
+import no.difi.statistics.query.model.AvailableTimeSeries;
+import no.difi.statistics.query.model.BatchQuery;
+import no.difi.statistics.query.model.BatchResult;
+import no.difi.statistics.query.model.Deadline;
+import no.difi.statistics.query.model.DeadlineExceededException;
 import no.difi.statistics.query.model.QueryFilter;
 import no.difi.statistics.query.config.AppConfig;
 import no.difi.statistics.query.config.BackendConfig;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockHttpServletResponse;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.RequestBuilder;
 import org.springframework.test.web.servlet.ResultActions;
 
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
 
+import static java.util.Collections.emptyList;
 import static java.util.Collections.singletonList;
+import static java.util.Collections.singletonMap;
+import static java.util.concurrent.CompletableFuture.completedFuture;
+import static no.difi.statistics.model.MeasurementDistance.days;
 import static no.difi.statistics.model.MeasurementDistance.minutes;
 import static no.difi.statistics.query.model.QueryFilter.queryFilter;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
@@ -128,13 +158,294 @@ public class QueryRestControllerTest {
     @Test
     public void whenSendingRequestWithoutCategoryThenResponseContainsNoCategoryField() throws Exception {
         when(backendConfig.queryService().query(any(TimeSeriesDefinition.class), any(QueryFilter.class))).thenReturn(
-                singletonList(aPointWithoutCategory())
+                completedFuture(Stream.of(aPointWithoutCategory()))
         );
-        mockMvc.perform(get("/{owner}/{series}/minutes", anOwner(), aSeries()))
+        performStreaming(get("/{owner}/{series}/minutes", anOwner(), aSeries()))
                 .andExpect(jsonPath("$[*].timestamp").exists())
                 .andExpect(jsonPath("$[*].categories").doesNotExist());
     }
 
+    @Test
+    public void whenRequestingSumHistogramThenPointsAreWrittenAsJsonArray() throws Exception {
+        when(backendConfig.queryService().sumHistogram(any(TimeSeriesDefinition.class), any(), any(QueryFilter.class))).thenReturn(
+                completedFuture(Stream.of(aPointWithoutCategory(), aPointWithoutCategory()))
+        );
+        performStreaming(get("/{owner}/{series}/minutes/sum/days", anOwner(), aSeries()))
+                .andExpect(status().isOk())
+                .andExpect(content().contentTypeCompatibleWith(MediaType.APPLICATION_JSON))
+                .andExpect(jsonPath("$.length()").value(2))
+                .andExpect(jsonPath("$[1].measurements.m1").value(aMeasurementValue()));
+    }
+
+    @Test
+    public void whenAcceptingCsvThenPointsAreWrittenAsCsvRows() throws Exception {
+        when(backendConfig.queryService().sumHistogram(any(TimeSeriesDefinition.class), any(), any(QueryFilter.class))).thenReturn(
+                completedFuture(Stream.of(aPointWithoutCategory(), aPointWithoutCategory()))
+        );
+        String csv = performStreaming(get("/{owner}/{series}/minutes/sum/days", anOwner(), aSeries()).accept("text/csv"))
+                .andExpect(content().contentTypeCompatibleWith("text/csv"))
+                .andReturn().getResponse().getContentAsString();
+        String[] rows = csv.split("\r\n");
+        assertEquals(3, rows.length);
+        assertEquals("timestamp," + aMeasurementId(), rows[0]);
+        assertTrue(rows[1].endsWith("," + aMeasurementValue()));
+    }
+
+    @Test
+    public void whenAcceptingSmileWithEpochMillisThenTimestampsAreNumbers() throws Exception {
+        ZonedDateTime timestamp = ZonedDateTime.parse("2016-01-01T00:00:00Z");
+        when(backendConfig.queryService().query(any(TimeSeriesDefinition.class), any(QueryFilter.class))).thenReturn(
+                completedFuture(Stream.of(TimeSeriesPoint.builder().timestamp(timestamp).measurement(aMeasurementId(), aMeasurementValue()).build()))
+        );
+        byte[] smile = performStreaming(
+                get("/{owner}/{series}/minutes", anOwner(), aSeries()).param("timestamps", "epochMillis").accept("application/x-jackson-smile")
+        )
+                .andExpect(content().contentTypeCompatibleWith("application/x-jackson-smile"))
+                .andReturn().getResponse().getContentAsByteArray();
+        JsonNode points = new ObjectMapper(new SmileFactory()).readTree(smile);
+        assertEquals(timestamp.toInstant().toEpochMilli(), points.get(0).get("timestamp").asLong());
+        assertEquals(aMeasurementValue(), points.get(0).get("measurements").get(aMeasurementId()).asLong());
+    }
+
+    @Test
+    public void whenRequestingColumnsThenEachFieldIsWrittenAsAnArray() throws Exception {
+        ZonedDateTime timestamp = ZonedDateTime.parse("2016-01-01T00:00:00Z");
+        when(backendConfig.queryService().lastHistogram(any(TimeSeriesDefinition.class), any(), any(QueryFilter.class))).thenReturn(
+                Stream.of(
+                        TimeSeriesPoint.builder().timestamp(timestamp).measurement("m1", 1).category("TE", "x").build(),
+                        TimeSeriesPoint.builder().timestamp(timestamp.plusDays(1)).measurement("m2", 2).build()
+                )
+        );
+        performStreaming(
+                get("/{owner}/{series}/minutes/last/days", anOwner(), aSeries()).param("layout", "columns").param("timestamps", "epochMillis")
+        )
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.timestamps[1]").value(timestamp.plusDays(1).toInstant().toEpochMilli()))
+                .andExpect(jsonPath("$.measurements.m1[0]").value(1))
+                .andExpect(jsonPath("$.measurements.m1[1]").doesNotExist())
+                .andExpect(jsonPath("$.measurements.m2[1]").value(2))
+                .andExpect(jsonPath("$.categories.TE[0]").value("x"));
+    }
+
+    @Test
+    public void whenRequestingMaxPointsThenPointsAreDownsampled() throws Exception {
+        ZonedDateTime from = ZonedDateTime.parse("2016-01-01T00:00:00Z");
+        when(backendConfig.queryService().query(any(TimeSeriesDefinition.class), any(QueryFilter.class))).thenAnswer(
+                invocation -> completedFuture(Stream.iterate(0, i -> i + 1).limit(1_000).map(
+                        i -> TimeSeriesPoint.builder().timestamp(from.plusMinutes(i)).measurement(aMeasurementId(), i % 10).build()
+                ))
+        );
+        performStreaming(
+                get("/{owner}/{series}/minutes", anOwner(), aSeries())
+                        .param("from", from.toString())
+                        .param("to", from.plusMinutes(1_000).toString())
+                        .param("maxPoints", "100")
+        )
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.length()").value(100));
+    }
+
+    @Test
+    public void whenRequestingTopCategoriesThenServiceReceivesThem() throws Exception {
+        when(backendConfig.queryService().query(any(TimeSeriesDefinition.class), any(QueryFilter.class))).thenAnswer(
+                invocation -> completedFuture(Stream.of(aPointWithoutCategory()))
+        );
+        performStreaming(
+                get("/{owner}/{series}/minutes", anOwner(), aSeries())
+                        .param("perCategory", "TE")
+                        .param("top", "5")
+                        .param("topBy", aMeasurementId())
+        )
+                .andExpect(status().isOk());
+        verify(backendConfig.queryService()).query(
+                TimeSeriesDefinition.builder().name(aSeries()).minutes().owner(anOwner()),
+                queryFilter().perCategory("TE").top(5, aMeasurementId()).build()
+        );
+    }
+
+    @Test
+    public void whenRequestingCardinalityThenServiceReceivesCategoryKey() throws Exception {
+        when(backendConfig.queryService().cardinalityHistogram(any(TimeSeriesDefinition.class), any(MeasurementDistance.class), any(String.class), any(QueryFilter.class)))
+                .thenAnswer(invocation -> completedFuture(Stream.of(
+                        TimeSeriesPoint.builder().timestamp(ZonedDateTime.parse("2016-01-01T00:00:00Z")).measurement("TE", 42).build()
+                )));
+        performStreaming(get("/{owner}/{series}/hours/cardinality/days", anOwner(), aSeries()).param("categoryKey", "TE"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[0].measurements.TE").value(42));
+        verify(backendConfig.queryService()).cardinalityHistogram(
+                TimeSeriesDefinition.builder().name(aSeries()).hours().owner(anOwner()),
+                days,
+                "TE",
+                queryFilter().build()
+        );
+    }
+
+    @Test
+    public void whenSearchTimesOutWithPartialResultsAllowedThenResponseIsFlagged() throws Exception {
+        when(backendConfig.queryService().sum(any(TimeSeriesDefinition.class), any(QueryFilter.class))).thenAnswer(invocation -> {
+            QueryFilter queryFilter = invocation.getArgument(1);
+            assertTrue(queryFilter.deadline().allowsPartialResults());
+            queryFilter.deadline().markPartial();
+            return completedFuture(aPointWithoutCategory());
+        });
+        mockMvc.perform(asyncDispatch(mockMvc.perform(
+                get("/{owner}/{series}/minutes/sum", anOwner(), aSeries()).param("partialResults", "true").header("Query-Timeout", "2.5")
+        ).andReturn()))
+                .andExpect(status().isOk())
+                .andExpect(header().string("Partial-Results", "true"))
+                .andExpect(header().string("Cache-Control", "no-store"))
+                .andExpect(jsonPath("$.measurements.m1").value(aMeasurementValue()));
+    }
+
+    @Test
+    public void whenDeadlineIsExceededThenExpectGatewayTimeout() throws Exception {
+        CompletableFuture<TimeSeriesPoint> timedOut = new CompletableFuture<>();
+        timedOut.completeExceptionally(new DeadlineExceededException("Search timed out"));
+        when(backendConfig.queryService().last(any(TimeSeriesDefinition.class), any(QueryFilter.class))).thenReturn(timedOut);
+        mockMvc.perform(asyncDispatch(mockMvc.perform(get("/{owner}/{series}/minutes/last", anOwner(), aSeries())).andReturn()))
+                .andExpect(status().isGatewayTimeout());
+        when(backendConfig.queryService().last(any(TimeSeriesDefinition.class), any(QueryFilter.class))).thenReturn(completedFuture(null));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void whenRequestingBatchThenServiceReceivesQueriesAndResultIsKeyedById() throws Exception {
+        final String from = "2013-10-12T12:13:13.123+02:00";
+        when(backendConfig.queryService().batch(any(List.class), any(Deadline.class))).thenReturn(
+                singletonMap("a", BatchResult.points(singletonList(aPointWithoutCategory())))
+        );
+        mockMvc.perform(asyncDispatch(mockMvc.perform(
+                post("/batch")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("[{\"id\":\"a\",\"owner\":\"" + anOwner() + "\",\"series\":\"" + aSeries() + "\"," +
+                                "\"distance\":\"minutes\",\"operation\":\"sumHistogram\",\"targetDistance\":\"days\"," +
+                                "\"from\":\"" + from + "\",\"categories\":\"TE=x\"}]")
+        ).andReturn()))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.a.points[0].measurements.m1").value(aMeasurementValue()))
+                .andExpect(jsonPath("$.a.error").doesNotExist());
+        ArgumentCaptor<List> queries = ArgumentCaptor.forClass(List.class);
+        verify(backendConfig.queryService(), atLeastOnce()).batch(queries.capture(), any(Deadline.class));
+        BatchQuery query = ((List<BatchQuery>) queries.getAllValues().stream().filter(q -> q.size() == 1).findFirst().get()).get(0);
+        assertEquals("a", query.getId());
+        assertEquals(TimeSeriesDefinition.builder().name(aSeries()).minutes().owner(anOwner()), query.getSeriesDefinition());
+        assertEquals(BatchQuery.Operation.sumHistogram, query.getOperation());
+        assertEquals(days, query.getTargetDistance());
+        assertEquals(queryFilter().range(parseTimestamp(from), null).categories("TE=x").build(), query.getQueryFilter());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void whenOneQueryOfBatchFailsThenExpectErrorForThatQueryOnly() throws Exception {
+        Map<String, BatchResult> result = new LinkedHashMap<>();
+        result.put("a", BatchResult.points(singletonList(aPointWithoutCategory())));
+        result.put("b", BatchResult.error("Search failed"));
+        when(backendConfig.queryService().batch(any(List.class), any(Deadline.class))).thenReturn(result);
+        String query = "\"owner\":\"" + anOwner() + "\",\"series\":\"" + aSeries() + "\",\"distance\":\"minutes\",\"operation\":\"sum\"}";
+        mockMvc.perform(asyncDispatch(mockMvc.perform(
+                post("/batch")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("[{\"id\":\"a\"," + query + ",{\"id\":\"b\"," + query + "]")
+        ).andReturn()))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.a.points[0].measurements.m1").value(aMeasurementValue()))
+                .andExpect(jsonPath("$.b.error").value("Search failed"))
+                .andExpect(jsonPath("$.b.points").doesNotExist());
+    }
+
+    @Test
+    public void whenRequestingBatchWithDuplicateIdsThenExpectError() throws Exception {
+        String query = "{\"id\":\"a\",\"owner\":\"" + anOwner() + "\",\"series\":\"" + aSeries() + "\"," +
+                "\"distance\":\"minutes\",\"operation\":\"sum\"}";
+        mockMvc.perform(post("/batch").contentType(MediaType.APPLICATION_JSON).content("[" + query + "," + query + "]"))
+                .andExpect(status().isInternalServerError());
+    }
+
+    @Test
+    public void whenRequestingAvailableSeriesWithCurrentEntityTagThenExpectNotModified() throws Exception {
+        when(backendConfig.queryService().availableTimeSeries()).thenReturn(new AvailableTimeSeries(singletonList(
+                TimeSeriesDefinition.builder().name(aSeries()).minutes().owner(anOwner())
+        ), 41L));
+        String entityTag = mockMvc.perform(get("/meta"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[0].name").value(aSeries()))
+                .andReturn().getResponse().getHeader("ETag");
+        mockMvc.perform(get("/meta").header("If-None-Match", entityTag))
+                .andExpect(status().isNotModified());
+    }
+
+    @Test
+    public void whenAvailableSeriesHaveChangedThenExpectNewEntityTag() throws Exception {
+        when(backendConfig.queryService().availableTimeSeries()).thenReturn(new AvailableTimeSeries(emptyList(), 41L));
+        String entityTag = mockMvc.perform(get("/meta")).andExpect(status().isOk()).andReturn().getResponse().getHeader("ETag");
+        when(backendConfig.queryService().availableTimeSeries()).thenReturn(new AvailableTimeSeries(emptyList(), 42L));
+        String changedEntityTag = mockMvc.perform(get("/meta").header("If-None-Match", entityTag))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getHeader("ETag");
+        assertNotEquals(entityTag, changedEntityTag);
+    }
+
+    @Test
+    public void whenRequestingPointsWithCurrentEntityTagThenExpectNotModified() throws Exception {
+        TimeSeriesDefinition seriesDefinition = TimeSeriesDefinition.builder().name("versionedSeries").minutes().owner(anOwner());
+        when(backendConfig.queryService().version(any(TimeSeriesDefinition.class), any(QueryFilter.class))).thenAnswer(
+                invocation -> completedFuture(seriesDefinition.equals(invocation.getArgument(0)) ? "index/0:41:42" : null)
+        );
+        when(backendConfig.queryService().query(any(TimeSeriesDefinition.class), any(QueryFilter.class))).thenAnswer(
+                invocation -> completedFuture(Stream.of(aPointWithoutCategory()))
+        );
+        MockHttpServletResponse response = performStreaming(
+                get("/{owner}/{series}/minutes", anOwner(), seriesDefinition.getName()).param("to", "2016-01-01T00:00:00Z")
+        )
+                .andExpect(status().isOk())
+                .andExpect(header().string("Cache-Control", "max-age=86400"))
+                .andExpect(jsonPath("$[0].measurements.m1").value(aMeasurementValue()))
+                .andReturn().getResponse();
+        String entityTag = response.getHeader("ETag");
+        assertTrue(entityTag.startsWith("\""));
+        mockMvc.perform(asyncDispatch(mockMvc.perform(
+                get("/{owner}/{series}/minutes", anOwner(), seriesDefinition.getName()).param("to", "2016-01-01T00:00:00Z")
+                        .header("If-None-Match", entityTag)
+        ).andReturn()))
+                .andExpect(status().isNotModified())
+                .andExpect(header().string("ETag", entityTag));
+        String gzipEntityTag = performStreaming(
+                get("/{owner}/{series}/minutes", anOwner(), seriesDefinition.getName()).param("to", "2016-01-01T00:00:00Z")
+                        .header("Accept-Encoding", "gzip")
+        )
+                .andExpect(status().isOk())
+                .andExpect(header().string("Content-Encoding", "gzip"))
+                .andReturn().getResponse().getHeader("ETag");
+        assertNotEquals(entityTag, gzipEntityTag);
+        mockMvc.perform(asyncDispatch(mockMvc.perform(
+                get("/{owner}/{series}/minutes", anOwner(), seriesDefinition.getName()).param("to", "2016-01-01T00:00:00Z")
+                        .header("Accept-Encoding", "gzip")
+                        .header("If-None-Match", gzipEntityTag)
+        ).andReturn()))
+                .andExpect(status().isNotModified())
+                .andExpect(header().string("ETag", gzipEntityTag));
+    }
+
+    @Test
+    public void whenRequestingPointsWithPartialResultsAllowedThenResponseHasNoEntityTag() throws Exception {
+        TimeSeriesDefinition seriesDefinition = TimeSeriesDefinition.builder().name("versionedSeries").minutes().owner(anOwner());
+        when(backendConfig.queryService().version(any(TimeSeriesDefinition.class), any(QueryFilter.class))).thenAnswer(
+                invocation -> completedFuture(seriesDefinition.equals(invocation.getArgument(0)) ? "index/0:41:42" : null)
+        );
+        when(backendConfig.queryService().query(any(TimeSeriesDefinition.class), any(QueryFilter.class))).thenAnswer(
+                invocation -> completedFuture(Stream.of(aPointWithoutCategory()))
+        );
+        performStreaming(
+                get("/{owner}/{series}/minutes", anOwner(), seriesDefinition.getName())
+                        .param("to", "2016-01-01T00:00:00Z")
+                        .param("partialResults", "true")
+        )
+                .andExpect(status().isOk())
+                .andExpect(header().doesNotExist("ETag"))
+                .andExpect(header().string("Cache-Control", "no-cache"))
+                .andExpect(jsonPath("$[0].measurements.m1").value(aMeasurementValue()));
+    }
+
     private TimeSeriesPoint aPointWithoutCategory() {
         return TimeSeriesPoint.builder().timestamp(aTimestamp()).measurement(aMeasurementId(), aMeasurementValue()).build();
     }
@@ -163,6 +474,14 @@ public class QueryRestControllerTest {
         return ZonedDateTime.parse(timestamp, DateTimeFormatter.ISO_OFFSET_DATE_TIME);
     }
 
+    /**
+     * Performs the request, then dispatches the completed query and finally the points written by the streaming body.
+     */
+    private ResultActions performStreaming(RequestBuilder request) throws Exception {
+        MvcResult completed = mockMvc.perform(asyncDispatch(mockMvc.perform(request).andReturn())).andReturn();
+        return mockMvc.perform(asyncDispatch(completed));
+    }
+
     private void assertNormalResponse(ResultActions result) throws Exception {
         result.andExpect(status().isOk());
     }
@@ -0,0 +1,71 @@
+package no.difi.statistics.query.api;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class ResponseCacheTest {
+
+    @Test
+    public void whenBodyIsWrittenThenItIsKeptGzipped() throws IOException {
+        ResponseCache cache = new ResponseCache(1024 * 1024, 1024);
+        byte[] body = "[{\"m1\":1}]".getBytes();
+        assertArrayEquals(body, write(cache, "a", body));
+        assertNotNull(cache.get("a"));
+        ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        ResponseCache.write(cache.get("a"), true, gzipped);
+        assertEquals(0x1f, gzipped.toByteArray()[0] & 0xff);
+        ByteArrayOutputStream plain = new ByteArrayOutputStream();
+        ResponseCache.write(cache.get("a"), false, plain);
+        assertArrayEquals(body, plain.toByteArray());
+    }
+
+    @Test
+    public void whenBodyExceedsMaximumEntrySizeThenItIsNotKept() throws IOException {
+        ResponseCache cache = new ResponseCache(1024 * 1024, 4);
+        byte[] body = "[{\"m1\":1}]".getBytes();
+        assertArrayEquals(body, write(cache, "a", body));
+        assertNull(cache.get("a"));
+    }
+
+    @Test
+    public void whenCacheIsFullThenLeastRecentlyUsedBodyIsEvicted() throws IOException {
+        ResponseCache cache = new ResponseCache(1, 1024);
+        write(cache, "a", "a".getBytes());
+        assertNull(cache.get("a"));
+        cache = new ResponseCache(Long.MAX_VALUE, 1024);
+        write(cache, "a", "a".getBytes());
+        long entryBytes = cache.bytes();
+        cache = new ResponseCache(2 * entryBytes, 1024);
+        write(cache, "a", "a".getBytes());
+        write(cache, "b", "b".getBytes());
+        cache.get("a");
+        write(cache, "c", "c".getBytes());
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("c"));
+    }
+
+    @Test
+    public void whenBodyIsNoLongerCurrentWhenWrittenThenItIsNotKept() throws IOException {
+        ResponseCache cache = new ResponseCache(1024 * 1024, 1024);
+        byte[] body = "[{\"m1\":1}]".getBytes();
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        cache.write("a", o -> o.write(body), outputStream, () -> false);
+        assertArrayEquals(body, outputStream.toByteArray());
+        assertNull(cache.get("a"));
+    }
+
+    private static byte[] write(ResponseCache cache, String entityTag, byte[] body) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        cache.write(entityTag, o -> o.write(body), outputStream, () -> true);
+        return outputStream.toByteArray();
+    }
+
+}